@@ -0,0 +1,112 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Splits a global memory budget between concurrent sorts. Each sort is
+ * admitted with a grant no bigger than the budget, waiting first until that
+ * much is free, and gives it back when done. Sorts are admitted in arrival
+ * order, so a big one is not starved by a stream of small ones. Waiting is
+ * on a ReentrantLock rather than a monitor, so a sort on a virtual thread
+ * gives up its carrier thread while it waits.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class AdmissionController {
+    private long budget;
+    private long available;
+    private ArrayDeque<Thread> waiting; // sorts in line, first one next
+    private ReentrantLock lock = new ReentrantLock();
+    private Condition changed = lock.newCondition();
+
+    /**
+     * Create a new AdmissionController.
+     *
+     * @param budget
+     *            bytes shared by all sorts
+     */
+    public AdmissionController(long budget) {
+        if (budget < 1) {
+            throw new IllegalArgumentException("Empty memory budget: "
+                + budget);
+        }
+        this.budget = budget;
+        this.available = budget;
+        this.waiting = new ArrayDeque<Thread>();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Wait for memory for a sort.
+     *
+     * @param wanted
+     *            bytes the sort asks for
+     * @return bytes granted, the smaller of wanted and the whole budget
+     * @throws InterruptedException
+     */
+    public long admit(long wanted) throws InterruptedException {
+        long grant = Math.max(1, Math.min(wanted, budget));
+        Thread self = Thread.currentThread();
+        lock.lock();
+        try {
+            waiting.addLast(self);
+            try {
+                while (waiting.peekFirst() != self || available < grant) {
+                    changed.await();
+                }
+            }
+            finally {
+                // on an interrupt too, so those behind are not held up
+                waiting.remove(self);
+                changed.signalAll();
+            }
+            available -= grant;
+            return grant;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Give back memory granted by admit()
+     *
+     * @param grant
+     *            bytes granted
+     */
+    public void release(long grant) {
+        lock.lock();
+        try {
+            available += grant;
+            changed.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * @return bytes not granted to any sort right now
+     */
+    public long available() {
+        lock.lock();
+        try {
+            return available;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * @return bytes shared by all sorts
+     */
+    public long budget() {
+        return budget;
+    }
+}
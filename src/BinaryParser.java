@@ -2,6 +2,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 public class BinaryParser {
     private static final int HEAP_BLOCKS = 8;
@@ -156,18 +157,12 @@ public class BinaryParser {
 
 
     private void copyRunToInput(DoubleLL.Node run) throws IOException {
-        inputFile.seek(0);
-        runFile.seek(run.getStart());
-
-        byte[] buffer = new byte[ByteFile.BYTES_PER_BLOCK];
-        long remaining = run.getLength() * Record.BYTES;
-
-        while (remaining > 0) {
-            int toRead = (int)Math.min(buffer.length, remaining);
-            runFile.read(buffer, 0, toRead);
-            inputFile.write(buffer, 0, toRead);
-            remaining -= toRead;
-        }
+        // both files stay open, so copy channel to channel instead of
+        // renaming
+        FileChannel target = inputFile.getChannel();
+        target.position(0);
+        MultiwayMerge.transfer(runFile.getChannel(), run.getStart(), run
+            .getLength() * Record.BYTES, target);
     }
 
 
@@ -190,34 +185,7 @@ public class BinaryParser {
 
 
     private void printOutput() throws IOException {
-        inputFile.seek(0);
-        Buffer printBuffer = new Buffer(inputFile, 0);
-        int recordCounter = 0;
-
-        while (inputFile.getFilePointer() < inputFile.length()) {
-            if (printBuffer.hasRemaining()) {
-                Record record = printBuffer.getNextRecord();
-                System.out.print(record.getID() + " " + record.getKey());
-                recordCounter++;
-
-                if (recordCounter % 5 == 0) {
-                    System.out.println();
-                }
-                else if (inputFile.getFilePointer() < inputFile.length()) {
-                    System.out.print(" ");
-                }
-
-                // Skip to next block's first record
-                printBuffer = new Buffer(inputFile, inputFile.getFilePointer()
-                    + ByteFile.BYTES_PER_BLOCK - Record.BYTES);
-            }
-            else {
-                printBuffer = new Buffer(inputFile, inputFile.getFilePointer());
-            }
-        }
-        if (recordCounter % 5 != 0) {
-            System.out.println();
-        }
+        BlockSample.read(inputFile.getChannel()).print(System.out);
     }
 
 
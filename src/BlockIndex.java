@@ -0,0 +1,173 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * A sparse index of the output: the SortOrder sort key of the first record
+ * of every block, gathered as an OutputSink while the output is written.
+ * Block b is the output's records b * RECORDS_PER_BLOCK onward, so a
+ * lookup by key reads one block instead of searching the file. It is kept
+ * in memory, and can be written to an F.index file next to the output:
+ *
+ * <pre>
+ * BLOCKS (8 bytes) then a SORT_KEY (8 bytes) per block
+ * </pre>
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class BlockIndex implements OutputSink {
+    /**
+     * suffix of the index file next to the output
+     */
+    public static final String SUFFIX = ".index";
+
+    private SortOrder order;
+    private long[] firstKeys = new long[64];
+    private int blocks;
+    private long records;
+
+    /**
+     * Create an empty index.
+     *
+     * @param order
+     *            order the output is sorted in
+     */
+    public BlockIndex(SortOrder order) {
+        this.order = order;
+    }
+
+
+    /**
+     * Read an index file.
+     *
+     * @param outputFile
+     *            output the index was written next to
+     * @param order
+     *            order the output is sorted in
+     * @return the index
+     * @throws IOException
+     */
+    public static BlockIndex read(String outputFile, SortOrder order)
+        throws IOException {
+        BlockIndex index = new BlockIndex(order);
+        DataInputStream in = new DataInputStream(new FileInputStream(
+            outputFile + SUFFIX));
+        try {
+            index.blocks = (int)in.readLong();
+            index.firstKeys = new long[index.blocks];
+            for (int b = 0; b < index.blocks; b++) {
+                index.firstKeys[b] = in.readLong();
+            }
+        }
+        finally {
+            in.close();
+        }
+        return index;
+    }
+
+
+    @Override
+    public void accept(ByteBuffer records) {
+        int at = records.position();
+        // skip to the first record starting a block
+        long into = this.records % ByteFile.RECORDS_PER_BLOCK;
+        if (into > 0) {
+            at += (ByteFile.RECORDS_PER_BLOCK - into) * Record.BYTES;
+        }
+        for (; at < records.limit(); at += ByteFile.BYTES_PER_BLOCK) {
+            if (blocks == firstKeys.length) {
+                firstKeys = Arrays.copyOf(firstKeys, blocks * 2);
+            }
+            firstKeys[blocks++] = order.sortKey(records.getLong(at), records
+                .getDouble(at + Long.BYTES));
+        }
+        this.records += records.remaining() / Record.BYTES;
+    }
+
+
+    @Override
+    public void finish() {
+        // nothing to write
+    }
+
+
+    /**
+     * Write the index file, whole or not at all.
+     *
+     * @param outputFile
+     *            output the index is written next to
+     * @throws IOException
+     */
+    public void write(String outputFile) throws IOException {
+        String path = outputFile + SUFFIX;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(path + ".tmp"), 1 << 16));
+        try {
+            out.writeLong(blocks);
+            for (int b = 0; b < blocks; b++) {
+                out.writeLong(firstKeys[b]);
+            }
+        }
+        finally {
+            out.close();
+        }
+        try {
+            Files.move(Paths.get(path + ".tmp"), Paths.get(path),
+                StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(Paths.get(path + ".tmp"), Paths.get(path),
+                StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+
+    /**
+     * @return the blocks indexed
+     */
+    public int getBlocks() {
+        return blocks;
+    }
+
+
+    /**
+     * @param block
+     *            a block
+     * @return the sort key of its first record
+     */
+    public long firstKey(int block) {
+        return firstKeys[block];
+    }
+
+
+    /**
+     * @param sortKey
+     *            a SortOrder sort key
+     * @return the first block a record with it could be in: the last one
+     *         starting below it, or 0
+     */
+    public int find(long sortKey) {
+        int low = 0;
+        int high = blocks;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (firstKeys[mid] < sortKey) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return Math.max(0, low - 1);
+    }
+}
@@ -0,0 +1,161 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The first record of every block of a sorted file, printed five to a line
+ * once the sort is done. A RunWriter can collect them as the final output
+ * is written, so no extra pass is needed; a file written some other way is
+ * sampled by reading just the 16 bytes of each block's first record.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class BlockSample {
+    private static final int PER_LINE = 5;
+
+    private long[] ids;
+    private double[] keys;
+    private int size;
+
+    /**
+     * Create a new, empty BlockSample.
+     */
+    public BlockSample() {
+        ids = new long[16];
+        keys = new double[16];
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Sample a file already on disk.
+     *
+     * @param filename
+     *            sorted file
+     * @return the first record of each of its blocks
+     * @throws IOException
+     */
+    public static BlockSample read(String filename) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(filename),
+            StandardOpenOption.READ);
+        try {
+            return read(channel);
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Sample an open file. Only positional reads are used, so the channel's
+     * position is left where it was.
+     *
+     * @param channel
+     *            sorted file
+     * @return the first record of each of its blocks
+     * @throws IOException
+     */
+    public static BlockSample read(FileChannel channel) throws IOException {
+        BlockSample sample = new BlockSample();
+        ByteBuffer record = ByteBuffer.allocate(Record.BYTES);
+        long last = channel.size() - Record.BYTES;
+        for (long pos = 0; pos <= last; pos += ByteFile.BYTES_PER_BLOCK) {
+            record.clear();
+            while (record.hasRemaining() && channel.read(record, pos + record
+                .position()) > 0) {
+                // keep reading until the whole record is in
+            }
+            sample.add(record.getLong(0), record.getDouble(Long.BYTES));
+        }
+        return sample;
+    }
+
+
+    /**
+     * Add the next block's first record
+     *
+     * @param id
+     *            record ID
+     * @param key
+     *            record key
+     */
+    public void add(long id, double key) {
+        if (size == ids.length) {
+            int grown = (int)Math.min(2L * size, Integer.MAX_VALUE - 8);
+            if (grown == size) {
+                throw new IllegalStateException("Too many blocks to sample");
+            }
+            ids = Arrays.copyOf(ids, grown);
+            keys = Arrays.copyOf(keys, grown);
+        }
+        ids[size] = id;
+        keys[size] = key;
+        size++;
+    }
+
+
+    /**
+     * @return the number of blocks sampled
+     */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+     * @param block
+     *            block number
+     * @return ID of the block's first record
+     */
+    public long getID(int block) {
+        return ids[block];
+    }
+
+
+    /**
+     * @param block
+     *            block number
+     * @return key of the block's first record
+     */
+    public double getKey(int block) {
+        return keys[block];
+    }
+
+
+    /**
+     * Print the sample with a single write
+     *
+     * @param out
+     *            stream to print to
+     */
+    public void print(PrintStream out) {
+        out.print(toString());
+        out.flush();
+    }
+
+
+    /**
+     * @return the records as "ID key", five to a line, each followed by a
+     *         space or, ending a line, a newline; a short last line also
+     *         ends in a newline
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(size * 32);
+        for (int i = 0; i < size; i++) {
+            builder.append(ids[i]).append(' ').append(keys[i]);
+            builder.append((i + 1) % PER_LINE == 0 ? '\n' : ' ');
+        }
+        if (size % PER_LINE != 0) {
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,58 @@
+import java.io.File;
+import java.io.IOException;
+import student.TestCase;
+
+/**
+ * Tests for BlockSample
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class BlockSampleTest extends TestCase {
+
+    /**
+     * Samples collected while merging match the ones read back from disk,
+     * for both the merged and the moved final run
+     * @throws IOException
+     */
+    public void testCollectedMatchesRead() throws IOException {
+        new ByteFile("blockInput.bin", 21).writeRandomRecords();
+        try {
+            for (int heapBlocks = 1; heapBlocks <= 32; heapBlocks *= 32) {
+                SortOptions options = new SortOptions();
+                options.setHeapBlocks(heapBlocks);
+                ReplacementSelection selection = new ReplacementSelection(
+                    "blockInput.bin", "blockRuns.bin", options);
+                MultiwayMerge merge = new MultiwayMerge(selection.getRuns(),
+                    "blockRuns.bin", "blockOutput.bin", options);
+                BlockSample collected = merge.getSample();
+                BlockSample read = BlockSample.read("blockOutput.bin");
+                assertEquals(21, collected.size());
+                assertEquals(read.toString(), collected.toString());
+                for (int i = 1; i < read.size(); i++) {
+                    assertTrue(read.getKey(i - 1) <= read.getKey(i));
+                }
+            }
+        }
+        finally {
+            new File("blockInput.bin").delete();
+            new File("blockRuns.bin").delete();
+            new File("blockOutput.bin").delete();
+        }
+    }
+
+
+    /**
+     * Records print five to a line, each followed by a space or a newline,
+     * and a short last line still ends the output with a newline
+     */
+    public void testFormat() {
+        BlockSample sample = new BlockSample();
+        assertEquals("", sample.toString());
+        for (int i = 0; i < 7; i++) {
+            sample.add(i, i + 0.5);
+        }
+        assertEquals("0 0.5 1 1.5 2 2.5 3 3.5 4 4.5\n5 5.5 6 6.5 \n", sample
+            .toString());
+    }
+}
@@ -11,6 +11,7 @@ class Buffer {
     private RandomAccessFile file;
     private boolean dirty;
     private long position;
+    private long[] words; // records as longs, for bulk decode and encode
 
     /**
      * @return the position
@@ -28,6 +29,15 @@ class Buffer {
     }
 
 
+    /**
+     * @param file
+     *            the file to read from/write to from now on
+     */
+    public void setFile(RandomAccessFile file) {
+        this.file = file;
+    }
+
+
     /**
      * Create a new buffer.
      * 
@@ -45,43 +55,320 @@ class Buffer {
     }
 
 
+    /**
+     * Create an empty buffer for writing. Nothing is read; records are put
+     * from the start of the buffer and flushed at position.
+     * 
+     * @param file
+     *            File to write to
+     * @param position
+     *            Position in file of the first record put
+     * @param capacity
+     *            Size of the buffer in bytes
+     */
+    public Buffer(RandomAccessFile file, long position, int capacity) {
+        this(file, position, ByteBuffer.allocate(capacity));
+    }
+
+
+    /**
+     * Create an empty buffer over given storage, such as a direct block
+     * from a DirectBufferPool.
+     * 
+     * @param file
+     *            File to write to
+     * @param position
+     *            Position in file of the first record put
+     * @param storage
+     *            Memory to buffer in, cleared first
+     */
+    public Buffer(RandomAccessFile file, long position, ByteBuffer storage) {
+        this.file = file;
+        this.position = position;
+        this.buffer = storage;
+        this.dirty = false;
+        buffer.clear();
+    }
+
+
     /**
      * Read a block from file into buffer.
      */
     private void readBlock() throws IOException {
-        file.seek(position);
-        file.read(buffer.array());
-        buffer.position(0);
+        load(position, buffer.capacity());
+        buffer.limit(buffer.capacity());
     }
 
+
+    /**
+     * Read up to maxBytes at a new position into the buffer. The buffer's
+     * limit is set to what was actually read, so hasRemaining() turns false
+     * at the end of the file or after maxBytes.
+     * 
+     * @param newPosition
+     *            position in file to read from
+     * @param maxBytes
+     *            most bytes to read
+     * @return the number of bytes read
+     */
+    public int load(long newPosition, int maxBytes) throws IOException {
+        SortEvents.IoWaitEvent event = new SortEvents.IoWaitEvent();
+        event.begin();
+        position = newPosition;
+        int wanted = Math.min(maxBytes, buffer.capacity());
+        int total = 0;
+        if (file instanceof DirectFile) {
+            buffer.clear();
+            buffer.limit(wanted);
+            total = ((DirectFile)file).read(buffer, position);
+        }
+        else if (buffer.hasArray()) {
+            byte[] array = buffer.array();
+            file.seek(position);
+            while (total < wanted) {
+                int read = file.read(array, total, wanted - total);
+                if (read < 0) {
+                    break;
+                }
+                total += read;
+            }
+        }
+        else {
+            // direct memory has no array, read it through the channel
+            buffer.clear();
+            buffer.limit(wanted);
+            while (buffer.hasRemaining()) {
+                int read = file.getChannel().read(buffer, position + buffer
+                    .position());
+                if (read < 0) {
+                    break;
+                }
+            }
+            total = buffer.position();
+        }
+        buffer.clear();
+        buffer.limit(total - total % Record.BYTES);
+        dirty = false;
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = "read";
+            event.bytes = total;
+            event.commit();
+        }
+        return total;
+    }
+
+
     /**
      * Write buffer contents to file.
      */
     public void flush() throws IOException {
         if (dirty) {
-            file.seek(position);
-            file.write(buffer.array());
+            SortEvents.IoWaitEvent event = new SortEvents.IoWaitEvent();
+            event.begin();
+            if (file instanceof DirectFile) {
+                ByteBuffer pending = buffer.duplicate();
+                pending.flip();
+                ((DirectFile)file).write(pending, position);
+            }
+            else if (buffer.hasArray()) {
+                file.seek(position);
+                file.write(buffer.array(), 0, buffer.position());
+            }
+            else {
+                ByteBuffer pending = buffer.duplicate();
+                pending.flip();
+                while (pending.hasRemaining()) {
+                    file.getChannel().write(pending, position + pending
+                        .position());
+                }
+            }
             dirty = false;
+            event.end();
+            if (event.shouldCommit()) {
+                event.operation = "write";
+                event.bytes = buffer.position();
+                event.commit();
+            }
         }
     }
 
 
+    /**
+     * Write buffer contents to file and empty the buffer, positioned right
+     * after what was written. Used to write a file sequentially.
+     */
+    public void flushAndAdvance() throws IOException {
+        flush();
+        position += buffer.position();
+        buffer.clear();
+    }
+
+
+    /**
+     * @return the bytes put in the buffer since it was last emptied, as a
+     *         read only view valid until it is changed again
+     */
+    public ByteBuffer contents() {
+        ByteBuffer pending = buffer.asReadOnlyBuffer();
+        pending.flip();
+        return pending;
+    }
+
+
     /**
      * Get next record from buffer.
      */
     public Record getNextRecord() {
         long id = buffer.getLong();
-        double key = buffer.getDouble();
+        double key = canonical(buffer.getDouble());
         return new Record(id, key);
     }
 
 
+    /**
+     * Read the ID of the next record. Must be followed by nextKey().
+     */
+    public long nextID() {
+        return buffer.getLong();
+    }
+
+
+    /**
+     * Read the key of the record whose ID was just read.
+     */
+    public double nextKey() {
+        return canonical(buffer.getDouble());
+    }
+
+
+    /**
+     * Decode the records left in the buffer, as many as fit, into arrays
+     * from offset on. The whole block goes through one bulk get on a
+     * LongBuffer view instead of a bounds-checked getLong() and getDouble()
+     * per record. Like every read of a key here, a NaN comes out as the
+     * canonical NaN.
+     *
+     * @param ids
+     *            array receiving the IDs
+     * @param keys
+     *            array receiving the keys
+     * @param offset
+     *            index of the first record in the arrays
+     * @return the number of records decoded
+     */
+    public int getRecords(long[] ids, double[] keys, int offset) {
+        int count = Math.min(buffer.remaining() / Record.BYTES, ids.length
+            - offset);
+        long[] longs = words(count);
+        buffer.asLongBuffer().get(longs, 0, 2 * count);
+        buffer.position(buffer.position() + count * Record.BYTES);
+        for (int i = 0; i < count; i++) {
+            ids[offset + i] = longs[2 * i];
+            keys[offset + i] = canonical(Double.longBitsToDouble(longs[2 * i
+                + 1]));
+        }
+        SortEvents.decoded(count);
+        return count;
+    }
+
+
+    /**
+     * Encode records from arrays into the buffer with one bulk put. The
+     * buffer must have room for them.
+     *
+     * @param ids
+     *            record IDs
+     * @param keys
+     *            record keys
+     * @param offset
+     *            index of the first record in the arrays
+     * @param count
+     *            number of records to put
+     */
+    public void putRecords(long[] ids, double[] keys, int offset, int count) {
+        long[] longs = words(count);
+        for (int i = 0; i < count; i++) {
+            longs[2 * i] = ids[offset + i];
+            longs[2 * i + 1] = Double.doubleToRawLongBits(keys[offset + i]);
+        }
+        buffer.asLongBuffer().put(longs, 0, 2 * count);
+        buffer.position(buffer.position() + count * Record.BYTES);
+        dirty = true;
+        SortEvents.encoded(count);
+    }
+
+
+    /**
+     * @return the number of whole records the last load() read
+     */
+    public int loadedRecords() {
+        return buffer.limit() / Record.BYTES;
+    }
+
+
+    /**
+     * @param record
+     *            index of a record in the buffer
+     * @return its ID, without moving the buffer's position
+     */
+    public long idAt(int record) {
+        return buffer.getLong(record * Record.BYTES);
+    }
+
+
+    /**
+     * @param record
+     *            index of a record in the buffer
+     * @return its key, without moving the buffer's position
+     */
+    public double keyAt(int record) {
+        return canonical(buffer.getDouble(record * Record.BYTES
+            + Long.BYTES));
+    }
+
+
+    /**
+     * Make every NaN the one Java makes, whatever its sign and payload, so
+     * the raw bits SortOrder.sortable() orders by put all NaNs together
+     * after positive infinity, as Double.compare does. Every other key
+     * keeps its bits, -0.0 included.
+     */
+    private static double canonical(double key) {
+        return key != key ? Double.NaN : key;
+    }
+
+
+    /**
+     * @return the number of records the buffer holds when full
+     */
+    public int recordCapacity() {
+        return buffer.capacity() / Record.BYTES;
+    }
+
+
+    private long[] words(int count) {
+        if (words == null || words.length < 2 * count) {
+            words = new long[2 * recordCapacity()];
+        }
+        return words;
+    }
+
+
     /**
      * Put a record into the buffer.
      */
     public void putRecord(Record record) {
-        buffer.putLong(record.getID());
-        buffer.putDouble(record.getKey());
+        putRecord(record.getID(), record.getKey());
+    }
+
+
+    /**
+     * Put a record given as its fields into the buffer.
+     */
+    public void putRecord(long id, double key) {
+        buffer.putLong(id);
+        buffer.putDouble(key);
         dirty = true;
     }
 
@@ -132,9 +419,31 @@ class BufferPool {
      *            File access mode
      */
     public BufferPool(int maxBuffers, String filename, String mode)
+        throws IOException {
+        this(maxBuffers, filename, mode, false);
+    }
+
+
+    /**
+     * Create a new buffer pool, optionally around the page cache.
+     * 
+     * @param maxBuffers
+     *            Maximum number of buffers
+     * @param filename
+     *            File to read from/write to
+     * @param mode
+     *            File access mode
+     * @param direct
+     *            true to read and write through a DirectFile
+     */
+    public BufferPool(
+        int maxBuffers,
+        String filename,
+        String mode,
+        boolean direct)
         throws IOException {
         this.maxBuffers = maxBuffers;
-        this.file = new RandomAccessFile(filename, mode);
+        this.file = DirectFile.open(filename, mode, direct);
     }
 
 
@@ -158,6 +467,18 @@ class BufferPool {
     }
 
 
+    /**
+     * Get an empty buffer that writes the file sequentially from a position.
+     */
+    public Buffer getWriteBuffer(long position) throws IOException {
+        if (currentBuffer != null) {
+            currentBuffer.close();
+        }
+        currentBuffer = new Buffer(file, position, ByteFile.BYTES_PER_BLOCK);
+        return currentBuffer;
+    }
+
+
     /**
      * Close the buffer pool and associated resources.
      */
@@ -0,0 +1,56 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import student.TestCase;
+
+/**
+ * Tests for Buffer
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class BufferTest extends TestCase {
+
+    /**
+     * Bulk encoded records read back the same one at a time and in bulk,
+     * -0.0 bit for bit and an odd NaN as the canonical NaN
+     * @throws IOException
+     */
+    public void testBulkRoundTrip() throws IOException {
+        int n = ByteFile.RECORDS_PER_BLOCK;
+        long[] ids = new long[n];
+        double[] keys = new double[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = i * 0x9E3779B97F4A7C15L;
+            keys[i] = i % 3 == 0 ? -0.0 : i - n / 2.0;
+        }
+        keys[1] = Double.longBitsToDouble(0x7ff8000000000123L); // odd NaN
+        RandomAccessFile file = new RandomAccessFile("bufferTest.bin", "rw");
+        try {
+            Buffer buffer = new Buffer(file, 0, ByteFile.BYTES_PER_BLOCK);
+            assertEquals(n, buffer.recordCapacity());
+            buffer.putRecords(ids, keys, 0, 10);
+            buffer.putRecords(ids, keys, 10, n - 10);
+            assertTrue(buffer.isFull());
+            buffer.flush();
+
+            buffer.load(0, ByteFile.BYTES_PER_BLOCK);
+            assertEquals(ids[0], buffer.nextID());
+            assertEquals(0, Double.compare(keys[0], buffer.nextKey()));
+            long[] readIDs = new long[n + 1];
+            double[] readKeys = new double[n + 1];
+            assertEquals(n - 1, buffer.getRecords(readIDs, readKeys, 2));
+            assertFalse(buffer.hasRemaining());
+            for (int i = 1; i < n; i++) {
+                assertEquals(ids[i], readIDs[i + 1]);
+                assertEquals(Double.doubleToLongBits(keys[i]), Double
+                    .doubleToRawLongBits(readKeys[i + 1]));
+            }
+            assertEquals(0, buffer.getRecords(readIDs, readKeys, 0));
+        }
+        finally {
+            file.close();
+            new File("bufferTest.bin").delete();
+        }
+    }
+}
@@ -32,7 +32,7 @@ public class ByteFile {
         * RECORDS_PER_BLOCK;
 
     private String filename;
-    private int numBlocks;
+    private long numBlocks;
 
     // ----------------------------------------------------------
     /**
@@ -43,12 +43,87 @@ public class ByteFile {
      * @param numBlocks
      *            the number of blocks in this file
      */
-    public ByteFile(String filename, int numBlocks) {
+    public ByteFile(String filename, long numBlocks) {
         this.filename = filename;
         this.numBlocks = numBlocks;
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Return how many whole records a file holds
+     *
+     * @param filename
+     *            file name
+     * @return number of records, 0 if the file does not exist
+     */
+    public static long recordCount(String filename) {
+        return new File(filename).length() / BYTES_PER_RECORD;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Read all of a file
+     *
+     * @param filename
+     *            file name
+     * @return its bytes
+     * @throws IOException
+     */
+    public static byte[] readAll(String filename) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(filename, "r");
+        try {
+            byte[] bytes = new byte[(int)raf.length()];
+            raf.readFully(bytes);
+            return bytes;
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Read the statistics a sort with key statistics left next to a file:
+     * its record count, key histogram and quantile sketch
+     *
+     * @param filename
+     *            sorted file
+     * @return its statistics
+     * @throws IOException
+     *             if the file has no statistics
+     */
+    public static KeyStats readKeyStats(String filename) throws IOException {
+        return KeyStats.read(filename);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Read part of the zone map a sort with key statistics left next to a
+     * file, to find the blocks a key range can be in
+     *
+     * @param filename
+     *            sorted file
+     * @param firstBlock
+     *            first block wanted
+     * @param blocks
+     *            number of blocks wanted
+     * @return the smallest and largest key of each block, interleaved
+     * @throws IOException
+     *             if the file has no statistics
+     */
+    public static double[] readZoneMap(
+        String filename,
+        long firstBlock,
+        int blocks)
+        throws IOException {
+        return KeyStats.readZones(filename, firstBlock, blocks);
+    }
+
+
     // ----------------------------------------------------------
     /**
      * call writeRandonRecords function, and the parameter is null
@@ -80,7 +155,7 @@ public class ByteFile {
         // ensuring file will have only the new data
 
         RandomAccessFile raf = new RandomAccessFile(theFile, "rw");
-        for (int block = 0; block < numBlocks; block++) {
+        for (long block = 0; block < numBlocks; block++) {
             bb.position(0); // resets to byte position zero in ByteBuffer
 
             for (int rec = 0; rec < RECORDS_PER_BLOCK; rec++) {
@@ -105,31 +180,48 @@ public class ByteFile {
      * @throws IOException
      */
     public boolean isSorted() throws IOException {
+        return isSorted(SortOrder.ASCENDING);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * checks if a file of records is sorted in the given order
+     *
+     * @param order
+     *            the order the records should be in
+     * @return true if it is sorted, otherwise false
+     * @throws IOException
+     */
+    public boolean isSorted(SortOrder order) throws IOException {
         byte[] basicBuffer = new byte[BYTES_PER_BLOCK];
         ByteBuffer bb = ByteBuffer.wrap(basicBuffer);
 
         File theFile = new File(filename);
         RandomAccessFile raf = new RandomAccessFile(theFile, "r");
         raf.seek(0);
-        Double prevRecKey = Double.MIN_VALUE;
+        boolean first = true;
+        long prevRecID = 0;
+        double prevRecKey = 0;
 
-        for (int block = 0; block < numBlocks; block++) {
-            raf.read(basicBuffer);
+        for (long block = 0; block < numBlocks; block++) {
+            int bytes = raf.read(basicBuffer);
             // ^^^ the slow, costly operation!!! Good thing we use buffer
 
             bb.position(0); // goes to byte position zero in ByteBuffer
-            for (int rec = 0; rec < RECORDS_PER_BLOCK; rec++) {
+            // the last block of a file may be short
+            int records = Math.max(0, bytes) / BYTES_PER_RECORD;
+            for (int rec = 0; rec < records; rec++) {
                 long recID = bb.getLong();
-                // ^^^ reading the recID is important to advance the byteBuffer
-                // position, but it is not used in the sort order
                 double recKey = bb.getDouble();
-                if (recKey < prevRecKey) {
+                if (!first && order.compare(prevRecID, prevRecKey, recID,
+                    recKey) > 0) {
                     raf.close();
                     return false;
                 }
-                else {
-                    prevRecKey = recKey;
-                }
+                first = false;
+                prevRecID = recID;
+                prevRecKey = recKey;
             }
         }
         raf.close(); // be sure to close file
@@ -0,0 +1,403 @@
+// -------------------------------------------------------------------------
+/**
+ * A d-ary min-heap over primitive arrays. Keys are SortOrder sort keys in a
+ * long[] and each key carries a long tie breaker, compared only when keys are
+ * equal, and a long payload (what is needed to rebuild the record during run
+ * generation, a run index during merging), so no Record objects are touched
+ * and no comparator is called while sifting.
+ *
+ * Node j is stored at array index j + (arity - 1). With that offset the
+ * children of any node start on an arity-aligned index, so all the keys one
+ * siftDown step compares sit next to each other (one 64 byte line for 8-ary).
+ * Sifting moves a hole instead of swapping, so each level costs a single
+ * store per array.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+class DaryHeap {
+    /**
+     * arity used when none is given
+     */
+    public static final int DEFAULT_ARITY = 4;
+
+    private final int arity; // number of children per node
+    private final int shift; // log2(arity)
+    private final int offset; // array index of the root
+    private final int capacity; // maximum number of elements
+    private long[] keys;
+    private long[] ties;
+    private long[] payloads;
+    private int n; // number of elements currently in the heap
+
+    // ----------------------------------------------------------
+    /**
+     * Create a new, empty DaryHeap.
+     *
+     * @param capacity
+     *            maximum number of elements
+     * @param arity
+     *            number of children per node, a power of two
+     */
+    DaryHeap(int capacity, int arity) {
+        if (arity < 2 || Integer.bitCount(arity) != 1) {
+            throw new IllegalArgumentException("arity must be a power of two"
+                + " and at least 2: " + arity);
+        }
+        this.arity = arity;
+        this.shift = Integer.numberOfTrailingZeros(arity);
+        this.offset = arity - 1;
+        this.capacity = capacity;
+        this.keys = new long[capacity + offset];
+        this.ties = new long[capacity + offset];
+        this.payloads = new long[capacity + offset];
+        this.n = 0;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Create a new, empty DaryHeap with the default arity.
+     *
+     * @param capacity
+     *            maximum number of elements
+     */
+    DaryHeap(int capacity) {
+        this(capacity, DEFAULT_ARITY);
+    }
+
+
+    /**
+     * Return current size of the heap
+     *
+     * @return current heapSize
+     */
+    public int heapSize() {
+        return n;
+    }
+
+
+    /**
+     * Forcefully changes the heap size. May need a buildHeap() afterwards
+     *
+     * @param newSize
+     *            new size
+     */
+    public void setHeapSize(int newSize) {
+        assert newSize <= capacity : "Heap size is beyond max";
+        n = newSize;
+    }
+
+
+    /**
+     * Return the maximum number of elements
+     *
+     * @return capacity
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+
+    /**
+     * Return the number of children per node
+     *
+     * @return arity
+     */
+    public int arity() {
+        return arity;
+    }
+
+
+    /**
+     * Return the smallest key
+     *
+     * @return key at the root
+     */
+    public long minKey() {
+        assert n > 0 : "Heap is empty";
+        return keys[offset];
+    }
+
+
+    /**
+     * Return the tie breaker stored with the smallest key
+     *
+     * @return tie breaker at the root
+     */
+    public long minTie() {
+        assert n > 0 : "Heap is empty";
+        return ties[offset];
+    }
+
+
+    /**
+     * Return the payload stored with the smallest key
+     *
+     * @return payload at the root
+     */
+    public long minPayload() {
+        assert n > 0 : "Heap is empty";
+        return payloads[offset];
+    }
+
+
+    /**
+     * Return the key of the element at a node
+     *
+     * @param pos
+     *            node, less than heapSize()
+     * @return key
+     */
+    public long keyAt(int pos) {
+        assert (0 <= pos && pos < n) : "Invalid heap position";
+        return keys[pos + offset];
+    }
+
+
+    /**
+     * Return the tie breaker of the element at a node
+     *
+     * @param pos
+     *            node, less than heapSize()
+     * @return tie breaker
+     */
+    public long tieAt(int pos) {
+        assert (0 <= pos && pos < n) : "Invalid heap position";
+        return ties[pos + offset];
+    }
+
+
+    /**
+     * Return the payload of the element at a node
+     *
+     * @param pos
+     *            node, less than heapSize()
+     * @return payload
+     */
+    public long payloadAt(int pos) {
+        assert (0 <= pos && pos < n) : "Invalid heap position";
+        return payloads[pos + offset];
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Append an element without restoring the heap property. Used to bulk
+     * load the heap before a single buildHeap().
+     *
+     * @param key
+     *            key
+     * @param tie
+     *            tie breaker for equal keys
+     * @param payload
+     *            payload carried with the key
+     */
+    public void append(long key, long tie, long payload) {
+        assert n < capacity : "Heap is full; cannot insert";
+        keys[n + offset] = key;
+        ties[n + offset] = tie;
+        payloads[n + offset] = payload;
+        n++;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Insert an element into the heap
+     *
+     * @param key
+     *            key
+     * @param tie
+     *            tie breaker for equal keys
+     * @param payload
+     *            payload carried with the key
+     */
+    public void insert(long key, long tie, long payload) {
+        assert n < capacity : "Heap is full; cannot insert";
+        siftUp(n, key, tie, payload);
+        n++;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Organize contents of array to satisfy the heap structure
+     */
+    public void buildHeap() {
+        if (n < 2) {
+            return;
+        }
+        for (int i = (n - 2) >> shift; i >= 0; i--) {
+            siftDown(i, keys[i + offset], ties[i + offset],
+                payloads[i + offset]);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Replace the minimum with a new element and restore the heap. This is
+     * the common step of both replacement selection and merging, and costs
+     * one siftDown instead of a removeMin() plus an insert().
+     *
+     * @param key
+     *            key
+     * @param tie
+     *            tie breaker for equal keys
+     * @param payload
+     *            payload carried with the key
+     */
+    public void replaceMin(long key, long tie, long payload) {
+        assert n > 0 : "Heap is empty";
+        siftDown(0, key, tie, payload);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Remove the minimum element. Read it with minKey()/minPayload() first.
+     */
+    public void removeMin() {
+        assert n > 0 : "Heap is empty; cannot remove";
+        n--;
+        if (n > 0) {
+            siftDown(0, keys[n + offset], ties[n + offset],
+                payloads[n + offset]);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Remove the minimum element and park a new element in the slot freed at
+     * the end of the heap. Parked elements are outside the heap until
+     * restoreParked() brings them back, which is how replacement selection
+     * holds records for the next run.
+     *
+     * @param key
+     *            key
+     * @param tie
+     *            tie breaker for equal keys
+     * @param payload
+     *            payload carried with the key
+     */
+    public void deferMin(long key, long tie, long payload) {
+        assert n > 0 : "Heap is empty; cannot remove";
+        n--;
+        int last = n + offset;
+        long lastKey = keys[last];
+        long lastTie = ties[last];
+        long lastPayload = payloads[last];
+        keys[last] = key;
+        ties[last] = tie;
+        payloads[last] = payload;
+        if (n > 0) {
+            siftDown(0, lastKey, lastTie, lastPayload);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Turn the count parked elements that end just before index end into a
+     * fresh heap. Parked elements are contiguous and end at the heap size
+     * the heap had while input was still arriving.
+     *
+     * @param end
+     *            one past the last parked element
+     * @param count
+     *            number of parked elements
+     */
+    public void restoreParked(int end, int count) {
+        assert n == 0 : "Heap must be empty before restoring parked elements";
+        assert count <= end && end <= capacity : "Invalid parked range";
+        int from = end - count;
+        if (from > 0) {
+            System.arraycopy(keys, from + offset, keys, offset, count);
+            System.arraycopy(ties, from + offset, ties, offset, count);
+            System.arraycopy(payloads, from + offset, payloads, offset, count);
+        }
+        n = count;
+        buildHeap();
+    }
+
+
+    /**
+     * Move the hole at node pos down until key fits, then fill it.
+     *
+     * @param pos
+     *            node holding the hole
+     * @param key
+     *            key to place
+     * @param tie
+     *            tie breaker to place
+     * @param payload
+     *            payload to place
+     */
+    private void siftDown(int pos, long key, long tie, long payload) {
+        long[] k = keys;
+        long[] t = ties;
+        int off = offset;
+        while (true) {
+            int first = (pos << shift) + 1;
+            if (first >= n) {
+                break;
+            }
+            int last = Math.min(first + arity, n);
+            int child = first;
+            long childKey = k[first + off];
+            long childTie = t[first + off];
+            for (int c = first + 1; c < last; c++) {
+                long ck = k[c + off];
+                long ct = t[c + off];
+                if (ck < childKey || (ck == childKey && ct < childTie)) {
+                    child = c;
+                    childKey = ck;
+                    childTie = ct;
+                }
+            }
+            if (!(childKey < key || (childKey == key && childTie < tie))) {
+                break;
+            }
+            k[pos + off] = childKey;
+            t[pos + off] = childTie;
+            payloads[pos + off] = payloads[child + off];
+            pos = child;
+        }
+        k[pos + off] = key;
+        t[pos + off] = tie;
+        payloads[pos + off] = payload;
+    }
+
+
+    /**
+     * Move the hole at node pos up until key fits, then fill it.
+     *
+     * @param pos
+     *            node holding the hole
+     * @param key
+     *            key to place
+     * @param tie
+     *            tie breaker to place
+     * @param payload
+     *            payload to place
+     */
+    private void siftUp(int pos, long key, long tie, long payload) {
+        while (pos > 0) {
+            int parent = (pos - 1) >> shift;
+            long parentKey = keys[parent + offset];
+            long parentTie = ties[parent + offset];
+            if (!(key < parentKey || (key == parentKey && tie < parentTie))) {
+                break;
+            }
+            keys[pos + offset] = parentKey;
+            ties[pos + offset] = parentTie;
+            payloads[pos + offset] = payloads[parent + offset];
+            pos = parent;
+        }
+        keys[pos + offset] = key;
+        ties[pos + offset] = tie;
+        payloads[pos + offset] = payload;
+    }
+}
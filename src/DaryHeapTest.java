@@ -0,0 +1,162 @@
+import java.util.Arrays;
+import java.util.Random;
+import student.TestCase;
+
+/**
+ * Tests for DaryHeap
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class DaryHeapTest extends TestCase {
+
+    /**
+     * set up for tests
+     */
+    public void setUp() {
+        // nothing to set up.
+    }
+
+
+    /**
+     * Heapsort random keys with every supported arity
+     */
+    public void testRemoveMinSorts() {
+        for (int arity = 2; arity <= 16; arity *= 2) {
+            Random rng = new Random(arity);
+            long[] expected = new long[1000];
+            DaryHeap heap = new DaryHeap(expected.length, arity);
+            for (int i = 0; i < expected.length; i++) {
+                expected[i] = rng.nextLong();
+                if (i % 2 == 0) {
+                    heap.insert(expected[i], 0, i);
+                }
+                else {
+                    heap.append(expected[i], 0, i);
+                    heap.buildHeap();
+                }
+            }
+            Arrays.sort(expected);
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i], heap.minKey());
+                heap.removeMin();
+            }
+            assertEquals(0, heap.heapSize());
+        }
+    }
+
+
+    /**
+     * replaceMin keeps the payload attached to its key
+     */
+    public void testReplaceMin() {
+        DaryHeap heap = new DaryHeap(4, 4);
+        heap.insert(3, 0, 30);
+        heap.insert(1, 0, 10);
+        heap.insert(2, 0, 20);
+        heap.replaceMin(5, 0, 50);
+        assertEquals(2, heap.minKey());
+        assertEquals(20, heap.minPayload());
+        heap.removeMin();
+        assertEquals(30, heap.minPayload());
+        heap.removeMin();
+        assertEquals(50, heap.minPayload());
+    }
+
+
+    /**
+     * Equal keys come out in tie breaker order
+     */
+    public void testTies() {
+        DaryHeap heap = new DaryHeap(8, 4);
+        for (int i = 7; i >= 0; i--) {
+            heap.insert(1, i, i * 10);
+        }
+        for (int i = 0; i < 8; i++) {
+            assertEquals(i, heap.minTie());
+            assertEquals(i * 10, heap.minPayload());
+            heap.removeMin();
+        }
+    }
+
+
+    /**
+     * Parked elements come back as the next heap
+     */
+    public void testDeferAndRestore() {
+        DaryHeap heap = new DaryHeap(3, 2);
+        heap.append(4, 0, 4);
+        heap.append(5, 0, 5);
+        heap.append(6, 0, 6);
+        heap.buildHeap();
+        heap.deferMin(2, 0, 2);
+        heap.deferMin(1, 0, 1);
+        heap.removeMin();
+        assertEquals(0, heap.heapSize());
+        heap.restoreParked(3, 2);
+        assertEquals(2, heap.heapSize());
+        assertEquals(1, heap.minPayload());
+        heap.removeMin();
+        assertEquals(2, heap.minPayload());
+    }
+
+
+    /**
+     * Arity must be a power of two
+     */
+    public void testBadArity() {
+        try {
+            new DaryHeap(8, 3);
+            fail("expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("3"));
+        }
+    }
+
+
+    /**
+     * A heap in an arena does exactly what the same heap on the Java heap
+     * does, through replacement selection's mix of operations
+     */
+    public void testOffHeapMatches() {
+        RecordArena arena = new RecordArena();
+        for (int arity = 2; arity <= 8; arity *= 2) {
+            Random rng = new Random(arity);
+            DaryHeap onHeap = new DaryHeap(500, arity);
+            DaryHeap offHeap = new OffHeapDaryHeap(500, arity, arena);
+            for (int i = 0; i < 500; i++) {
+                long key = rng.nextInt(100);
+                onHeap.append(key, i, i);
+                offHeap.append(key, i, i);
+            }
+            onHeap.buildHeap();
+            offHeap.buildHeap();
+            int end = onHeap.heapSize();
+            int parked = 0;
+            for (int i = 500; i < 5000; i++) {
+                assertEquals(onHeap.minKey(), offHeap.minKey());
+                assertEquals(onHeap.minTie(), offHeap.minTie());
+                assertEquals(onHeap.minPayload(), offHeap.minPayload());
+                long key = rng.nextInt(100);
+                if (key >= onHeap.minKey()) {
+                    onHeap.replaceMin(key, i, i);
+                    offHeap.replaceMin(key, i, i);
+                }
+                else {
+                    onHeap.deferMin(key, i, i);
+                    offHeap.deferMin(key, i, i);
+                    parked++;
+                }
+                if (onHeap.heapSize() == 0) {
+                    onHeap.restoreParked(end, parked);
+                    offHeap.restoreParked(end, parked);
+                    end = parked;
+                    parked = 0;
+                }
+                assertEquals(onHeap.heapSize(), offHeap.heapSize());
+            }
+        }
+        assertTrue(arena.allocated() > 500 * RecordArena.RECORD_BYTES);
+    }
+}
@@ -0,0 +1,172 @@
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded pool of direct, block sized buffers shared by concurrent sorts,
+ * so a long running server allocates its I/O memory once instead of per
+ * job. A sort takes every block it needs for a phase in one acquire() call;
+ * taking them one at a time could leave two sorts each holding half of
+ * what they need and waiting forever for the rest. Sorts wait on a
+ * ReentrantLock, which unlike a monitor lets a virtual thread give up its
+ * carrier thread while it waits.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class DirectBufferPool {
+    private ByteBuffer[] free;
+    private int available;
+    private int capacity;
+    private ReentrantLock lock = new ReentrantLock();
+    private Condition released = lock.newCondition();
+
+    /**
+     * Create a new DirectBufferPool.
+     *
+     * @param capacity
+     *            number of blocks in the pool
+     */
+    public DirectBufferPool(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Pool needs a block: "
+                + capacity);
+        }
+        this.capacity = capacity;
+        this.free = new ByteBuffer[capacity];
+        for (int i = 0; i < capacity; i++) {
+            free[i] = ByteBuffer.allocateDirect(ByteFile.BYTES_PER_BLOCK);
+        }
+        this.available = capacity;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Take count blocks, waiting until that many are free.
+     *
+     * @param count
+     *            blocks wanted, at most the pool's capacity
+     * @return the blocks, cleared
+     * @throws InterruptedException
+     */
+    public ByteBuffer[] acquire(int count) throws InterruptedException {
+        if (count > capacity) {
+            throw new IllegalArgumentException(count + " blocks asked of a "
+                + capacity + " block pool");
+        }
+        lock.lock();
+        try {
+            if (available < count) {
+                SortEvents.PoolWaitEvent event =
+                    new SortEvents.PoolWaitEvent();
+                event.begin();
+                while (available < count) {
+                    released.await();
+                }
+                event.blocks = count;
+                event.commit();
+            }
+            ByteBuffer[] blocks = new ByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                available--;
+                blocks[i] = free[available];
+                free[available] = null;
+                blocks[i].clear();
+            }
+            return blocks;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Return blocks taken by acquire()
+     *
+     * @param blocks
+     *            blocks to return, may be null
+     */
+    public void release(ByteBuffer[] blocks) {
+        if (blocks == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            for (ByteBuffer block : blocks) {
+                free[available] = block;
+                available++;
+            }
+            released.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Take blocks for a phase of a sort, or none when it has no pool and
+     * allocates its own.
+     *
+     * @param pool
+     *            pool to take from, or null
+     * @param count
+     *            blocks wanted
+     * @return the blocks, or null when pool is null
+     * @throws InterruptedIOException
+     *             if interrupted while waiting
+     */
+    public static ByteBuffer[] acquire(DirectBufferPool pool, int count)
+        throws InterruptedIOException {
+        if (pool == null) {
+            return null;
+        }
+        try {
+            return pool.acquire(count);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                "Interrupted waiting for buffers");
+        }
+    }
+
+
+    /**
+     * @param blocks
+     *            blocks from acquire(), or null
+     * @param i
+     *            which one
+     * @return block i, or a new heap block when there are no pooled ones
+     */
+    public static ByteBuffer block(ByteBuffer[] blocks, int i) {
+        return blocks == null
+            ? ByteBuffer.allocate(ByteFile.BYTES_PER_BLOCK)
+            : blocks[i];
+    }
+
+
+    /**
+     * @return blocks free right now
+     */
+    public int available() {
+        lock.lock();
+        try {
+            return available;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * @return blocks in the pool
+     */
+    public int capacity() {
+        return capacity;
+    }
+}
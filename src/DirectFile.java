@@ -0,0 +1,389 @@
+import com.sun.nio.file.ExtendedOpenOption;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A file read and written around the page cache, so a sort much larger than
+ * memory does not push everything else on the host out of the cache, and
+ * its blocks are not held twice, once by the sort and once by the kernel.
+ * Buffer sends its reads and writes here when its file is a DirectFile;
+ * everything else, such as setLength() and the file descriptor, is the
+ * RandomAccessFile's.
+ *
+ * Where the file system takes O_DIRECT, data goes through a second channel
+ * opened with ExtendedOpenOption.DIRECT. Direct I/O must start and end on
+ * the file system's block boundaries and use memory aligned the same way,
+ * while records and runs fall anywhere, so:
+ * <ul>
+ * <li>writes are gathered in an aligned buffer and written a megabyte at a
+ * time; a partial block at either end is filled in from the file
+ * first</li>
+ * <li>reads fill an aligned window and are copied out of it, a whole
+ * window at a time while the reads follow each other, as the kernel's read
+ * ahead would have, and just the blocks asked for otherwise</li>
+ * <li>the file is cut back to the bytes written when it is closed, since
+ * the last block is written whole</li>
+ * </ul>
+ *
+ * Where it does not, such as on some network and in-memory file systems,
+ * the file is read and written through the cache as usual, but written
+ * data is forced out every few megabytes. Java cannot pass
+ * posix_fadvise() hints without native code; forcing is the nearest it
+ * has, and keeps the sort from filling memory with dirty pages that
+ * everything else has to wait behind.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+class DirectFile extends RandomAccessFile {
+    private static final int READ_AHEAD = 256 << 10;
+    private static final int WRITE_BEHIND = 1 << 20;
+    private static final long FORCE_BYTES = 8 << 20; // without O_DIRECT
+
+    private final FileChannel direct; // null without O_DIRECT
+    private final boolean writable;
+    private int align;
+    private ByteBuffer window; // file bytes from windowStart, to its limit
+    private long windowStart;
+    private long lastEnd; // where the last read ended
+    private ByteBuffer pending; // bytes from pendingStart, to its position
+    private long pendingStart;
+    private boolean pendingDirty;
+    private long size;
+    private long unforced;
+
+    // ----------------------------------------------------------
+    /**
+     * Open a file, with O_DIRECT if the file system takes it.
+     *
+     * @param path
+     *            file to open
+     * @param mode
+     *            "r" to read it, "rw" to read and write it
+     * @throws IOException
+     */
+    DirectFile(String path, String mode) throws IOException {
+        this(path, mode, true);
+    }
+
+
+    /**
+     * Open a file.
+     *
+     * @param path
+     *            file to open
+     * @param mode
+     *            "r" to read it, "rw" to read and write it
+     * @param tryDirect
+     *            false to go straight to the cached fallback
+     * @throws IOException
+     */
+    DirectFile(String path, String mode, boolean tryDirect)
+        throws IOException {
+        super(path, mode);
+        this.writable = mode.contains("w");
+        this.size = super.length();
+        this.direct = tryDirect ? openDirect(Paths.get(path)) : null;
+        if (direct != null) {
+            window = aligned(READ_AHEAD);
+            window.limit(0);
+            pending = aligned(WRITE_BEHIND);
+        }
+    }
+
+
+    /**
+     * Open a file for a sort, around the page cache if asked to.
+     *
+     * @param path
+     *            file to open
+     * @param mode
+     *            "r" to read it, "rw" to read and write it
+     * @param direct
+     *            true for a DirectFile, false for a plain RandomAccessFile
+     * @return the open file
+     * @throws IOException
+     */
+    static RandomAccessFile open(String path, String mode, boolean direct)
+        throws IOException {
+        return direct
+            ? new DirectFile(path, mode)
+            : new RandomAccessFile(path, mode);
+    }
+
+
+    /**
+     * Force a file's contents to disk, including what a DirectFile is still
+     * gathering.
+     *
+     * @param file
+     *            file to sync
+     * @throws IOException
+     */
+    static void sync(RandomAccessFile file) throws IOException {
+        if (file instanceof DirectFile) {
+            ((DirectFile)file).writePending();
+        }
+        file.getFD().sync();
+    }
+
+
+    /**
+     * @return true if reads and writes bypass the page cache
+     */
+    boolean isDirect() {
+        return direct != null;
+    }
+
+
+    private FileChannel openDirect(Path path) {
+        OpenOption[] options = writable
+            ? new OpenOption[] { StandardOpenOption.READ,
+                StandardOpenOption.WRITE, ExtendedOpenOption.DIRECT }
+            : new OpenOption[] { StandardOpenOption.READ,
+                ExtendedOpenOption.DIRECT };
+        try {
+            long blockSize = Files.getFileStore(path).getBlockSize();
+            if (blockSize <= 0 || blockSize > READ_AHEAD || Long.bitCount(
+                blockSize) != 1) {
+                return null;
+            }
+            align = (int)blockSize;
+            return FileChannel.open(path, options);
+        }
+        catch (IOException | UnsupportedOperationException e) {
+            return null; // no O_DIRECT here, use the fallback
+        }
+    }
+
+
+    private ByteBuffer aligned(int bytes) {
+        return ByteBuffer.allocateDirect(bytes + align).alignedSlice(align);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Read bytes at a position into dst, as many as it has room for or
+     * the file has.
+     *
+     * @param dst
+     *            buffer read into, from its position
+     * @param position
+     *            position in the file of the first byte
+     * @return the number of bytes read
+     * @throws IOException
+     */
+    synchronized int read(ByteBuffer dst, long position) throws IOException {
+        int wanted = (int)Math.max(0, Math.min(dst.remaining(), size
+            - position));
+        if (direct == null) {
+            ByteBuffer part = dst.duplicate();
+            part.limit(part.position() + wanted);
+            while (part.hasRemaining()) {
+                if (getChannel().read(part, position + part.position()
+                    - dst.position()) < 0) {
+                    break;
+                }
+            }
+            int total = part.position() - dst.position();
+            dst.position(part.position());
+            return total;
+        }
+        if (pendingDirty && position < pendingStart + pending.position()
+            && position + wanted > pendingStart) {
+            writePending();
+        }
+        int total = 0;
+        while (total < wanted) {
+            long at = position + total;
+            if (at < windowStart || at >= windowStart + window.limit()) {
+                int bytes = at == lastEnd
+                    ? window.capacity()
+                    : (int)(at & (align - 1)) + wanted - total;
+                fill(at, bytes);
+                if (at >= windowStart + window.limit()) {
+                    break; // the file is shorter than it was said to be
+                }
+            }
+            ByteBuffer part = window.duplicate();
+            part.position((int)(at - windowStart));
+            part.limit(Math.min(window.limit(), part.position() + wanted
+                - total));
+            total += part.remaining();
+            dst.put(part);
+        }
+        lastEnd = position + total;
+        return total;
+    }
+
+
+    /**
+     * Write the bytes left in src at a position.
+     *
+     * @param src
+     *            bytes to write, from its position to its limit
+     * @param position
+     *            position in the file of the first byte
+     * @throws IOException
+     */
+    synchronized void write(ByteBuffer src, long position)
+        throws IOException {
+        long end = position + src.remaining();
+        if (direct == null) {
+            long written = src.remaining();
+            while (src.hasRemaining()) {
+                getChannel().write(src, end - src.remaining());
+            }
+            size = Math.max(size, end);
+            unforced += written;
+            if (unforced >= FORCE_BYTES) {
+                getChannel().force(false);
+                unforced = 0;
+            }
+            return;
+        }
+        window.limit(0);
+        if (position != pendingStart + pending.position()) {
+            writePending();
+            startPending(position);
+        }
+        while (src.hasRemaining()) {
+            if (!pending.hasRemaining()) {
+                writePending();
+                pendingStart += pending.capacity();
+                pending.clear();
+            }
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + Math.min(part.remaining(), pending
+                .remaining()));
+            pending.put(part);
+            src.position(part.position());
+            pendingDirty = true;
+        }
+        size = Math.max(size, end);
+    }
+
+
+    /**
+     * Start gathering writes at position, keeping what the file already
+     * holds between the block boundary before it and position.
+     */
+    private void startPending(long position) throws IOException {
+        pendingStart = position & -align;
+        pending.clear();
+        int lead = (int)(position - pendingStart);
+        if (lead > 0) {
+            fill(pendingStart, align);
+            for (int i = 0; i < lead; i++) {
+                pending.put(i < window.limit() ? window.get(i) : 0);
+            }
+            window.limit(0);
+        }
+    }
+
+
+    /**
+     * Write what has been gathered, out to the next block boundary. The
+     * bytes are kept, so writes that carry on from them rewrite that last
+     * block whole.
+     */
+    private void writePending() throws IOException {
+        if (!pendingDirty) {
+            return;
+        }
+        int used = pending.position();
+        int padded = (used + align - 1) & -align;
+        if (padded > used) {
+            // keep what the file holds after the last byte written
+            int unit = padded - align;
+            fill(pendingStart + unit, align);
+            for (int i = used; i < padded; i++) {
+                pending.put(i, i - unit < window.limit()
+                    ? window.get(i - unit)
+                    : 0);
+            }
+            window.limit(0);
+        }
+        ByteBuffer out = pending.duplicate();
+        out.position(0).limit(padded);
+        while (out.hasRemaining()) {
+            direct.write(out, pendingStart + out.position());
+        }
+        pendingDirty = false;
+    }
+
+
+    /**
+     * Read bytes from the block boundary at or before position into the
+     * window, up to a block boundary and no more than it holds. The
+     * window's limit is what was read.
+     */
+    private void fill(long position, int bytes) throws IOException {
+        windowStart = position & -align;
+        window.clear();
+        int end = ((int)(position - windowStart) + bytes + align - 1)
+            & -align;
+        window.limit(Math.min(window.capacity(), end));
+        while (window.hasRemaining()) {
+            int read = direct.read(window, windowStart + window.position());
+            if (read <= 0 || (window.position() & (align - 1)) != 0) {
+                break; // a short read only happens at the end of the file
+            }
+        }
+        window.flip();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * @return the length of the file, counting bytes still being gathered
+     */
+    @Override
+    public synchronized long length() {
+        return size;
+    }
+
+
+    /**
+     * Set the length of the file, after writing anything gathered.
+     */
+    @Override
+    public synchronized void setLength(long newLength) throws IOException {
+        writePending();
+        super.setLength(newLength);
+        size = newLength;
+        if (direct != null) {
+            window.limit(0);
+            pending.clear();
+        }
+    }
+
+
+    /**
+     * Write anything gathered, cut the file back to the bytes written and
+     * close it.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (direct != null) {
+                writePending();
+                direct.close();
+                if (writable && super.length() > size) {
+                    super.setLength(size);
+                }
+            }
+        }
+        finally {
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import student.TestCase;
+
+/**
+ * Tests for DirectFile, with O_DIRECT where the file system here takes it
+ * and through the cached fallback.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class DirectFileTest extends TestCase {
+    private static final String FILE = "directFile.bin";
+    private static final String COPY = "directCopy.bin";
+
+    private Random rng;
+
+    /**
+     * set up for tests
+     */
+    public void setUp() {
+        rng = new Random(3114);
+    }
+
+
+    /**
+     * remove the files of a test
+     */
+    public void tearDown() {
+        new File(FILE).delete();
+        new File(COPY).delete();
+    }
+
+
+    /**
+     * Writes of any length at any position, read back at any position,
+     * leave the same bytes as a plain RandomAccessFile
+     * @throws IOException
+     */
+    public void testMatchesRandomAccessFile() throws IOException {
+        for (boolean tryDirect : new boolean[] { true, false }) {
+            byte[] expected = new byte[3 << 20];
+            int end = 0;
+            DirectFile file = new DirectFile(FILE, "rw", tryDirect);
+            file.setLength(0);
+            // runs of writes carrying on from each other, as a RunWriter
+            // makes them, then some elsewhere
+            int position = 5;
+            for (int i = 0; i < 400; i++) {
+                if (i % 50 == 0) {
+                    position = rng.nextInt(end + 1);
+                }
+                byte[] bytes = new byte[1 + rng.nextInt(12000)];
+                rng.nextBytes(bytes);
+                file.write(ByteBuffer.wrap(bytes), position);
+                System.arraycopy(bytes, 0, expected, position, bytes.length);
+                position += bytes.length;
+                end = Math.max(end, position);
+                if (i % 90 == 0) {
+                    assertSameBytes(file, expected, end);
+                }
+            }
+            assertEquals(end, file.length());
+            file.close();
+            assertEquals(end, new File(FILE).length());
+            assertTrue(Arrays.equals(Arrays.copyOf(expected, end), ByteFile
+                .readAll(FILE)));
+
+            file = new DirectFile(FILE, "r", tryDirect);
+            assertSameBytes(file, expected, end);
+            file.close();
+        }
+    }
+
+
+    /**
+     * A sync mid-write puts what has been gathered on disk, and writing
+     * carries on after it
+     * @throws IOException
+     */
+    public void testSync() throws IOException {
+        DirectFile file = new DirectFile(FILE, "rw");
+        file.setLength(0);
+        byte[] bytes = new byte[10000];
+        rng.nextBytes(bytes);
+        file.write(ByteBuffer.wrap(bytes, 0, 7000), 0);
+        DirectFile.sync(file);
+        RandomAccessFile plain = new RandomAccessFile(FILE, "r");
+        byte[] synced = new byte[7000];
+        plain.readFully(synced);
+        plain.close();
+        assertTrue(Arrays.equals(Arrays.copyOf(bytes, 7000), synced));
+
+        file.write(ByteBuffer.wrap(bytes, 7000, 3000), 7000);
+        file.close();
+        assertTrue(Arrays.equals(bytes, ByteFile.readAll(FILE)));
+    }
+
+
+    /**
+     * Reads stop at the end of the file
+     * @throws IOException
+     */
+    public void testReadPastEnd() throws IOException {
+        RandomAccessFile plain = new RandomAccessFile(FILE, "rw");
+        plain.write(new byte[100]);
+        plain.close();
+        DirectFile file = new DirectFile(FILE, "r");
+        ByteBuffer into = ByteBuffer.allocate(4096);
+        assertEquals(60, file.read(into, 40));
+        assertEquals(60, into.position());
+        into.clear();
+        assertEquals(0, file.read(into, 100));
+        file.close();
+    }
+
+
+    /**
+     * A single run moved with a copy around the cache arrives intact
+     * @throws IOException
+     */
+    public void testMoveRunDirect() throws IOException {
+        byte[] bytes = new byte[100000];
+        rng.nextBytes(bytes);
+        RandomAccessFile plain = new RandomAccessFile(FILE, "rw");
+        plain.write(bytes);
+        plain.close();
+        MultiwayMerge.moveRun(FILE, 48, 90000, COPY, true, true);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(bytes, 48, 90048),
+            ByteFile.readAll(COPY)));
+    }
+
+
+    private void assertSameBytes(DirectFile file, byte[] expected, int end)
+        throws IOException {
+        for (int i = 0; i < 20; i++) {
+            int position = rng.nextInt(end);
+            ByteBuffer into = ByteBuffer.allocate(1 + rng.nextInt(70000));
+            int read = file.read(into, position);
+            assertEquals(Math.min(into.capacity(), end - position), read);
+            assertTrue(Arrays.equals(Arrays.copyOfRange(expected, position,
+                position + read), Arrays.copyOf(into.array(), read)));
+        }
+        // a sequential scan, block by block
+        ByteBuffer block = ByteBuffer.allocateDirect(ByteFile.BYTES_PER_BLOCK);
+        for (int position = 0; position < end; position += block.limit()) {
+            block.clear();
+            file.read(block, position);
+            block.flip();
+            byte[] got = new byte[block.limit()];
+            block.get(got).flip();
+            assertTrue(Arrays.equals(Arrays.copyOfRange(expected, position,
+                position + got.length), got));
+        }
+    }
+}
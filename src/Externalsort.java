@@ -4,8 +4,10 @@
  * check this (nimay's edit)
  */
 
+import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.util.Arrays;
+import jdk.jfr.Recording;
 
 /**
  * The class containing the main method.
@@ -38,20 +40,456 @@ public class Externalsort {
 
     /**
      * @param args
-     *            Command line parameters
+     *            Command line parameters: the file to sort, optionally
+     *            followed by --stable (equal keys keep input order),
+     *            --stable-id (equal keys ordered by ID),
+     *            --order=ascending|descending|key-id|id, one of
+     *            --distinct, --first-per-key or --count-per-key, and
+     *            --checkpoint (journal progress so the sort can be resumed)
+     *            or --resume (continue an interrupted checkpointed sort),
+     *            --engine=merge|sample, --merge=balanced|polyphase (how
+     *            the merge engine merges runs down, see MergeStrategy),
+     *            --threads=N, --memory=MB,
+     *            --prefetch=BLOCKS (spare blocks merges read ahead into),
+     *            --off-heap (run generation heap in direct memory),
+     *            --direct-io (read and write around the page cache),
+     *            --calibrate (pick fan-in and read size for the spill
+     *            devices, see IoCostModel),
+     *            --shards=N or --shard-keys=K1,K2,... (split the output
+     *            into shards by record count or at keys, IDs when sorting
+     *            by ID, see ShardedOutput),
+     *            --key-stats (zone map, histogram and quantile sketch of
+     *            the output, see KeyStats),
+     *            --verify, --checksum and --index (check the output is in
+     *            order, take its CRC-32C and write its block index while
+     *            it is written, see OutputTee, and report them after the
+     *            blocks),
+     *            --jfr[=FILE] (record Flight Recorder events, see
+     *            SortEvents) and
+     *            --spill=DIR, once per directory the runs are striped
+     *            across. The first record of each block of the output is
+     *            printed, five to a line. With --serve instead of a file,
+     *            sort requests are taken from a socket, see SortServer.
+     *            --append DATA DELTA sorts DELTA into a new segment of the
+     *            sorted file DATA, and --compact DATA [DELTA] merges DATA's
+     *            segments, and DELTA, back into DATA, see IncrementalSort.
+     *            --join A B OUTPUT writes the records of A and B with equal
+     *            keys, paired, to OUTPUT, see SortMergeJoin.
+     *            --merge OUTPUT FILE... merges files already sorted under
+     *            the options into OUTPUT without generating runs, see
+     *            MultiwayMerge.mergeFiles().
      * @throws IOException
      */
     public static void main(String[] args) throws IOException {
-        String fileName = args[0];
-        String runsName = "runs.bin";
-        String outputFile = "outputFile.bin";
-
-        int runCount = 1;
-        new ReplacementSelection(fileName, runsName, runCount);
-        new MultiwayMerge(runCount, runsName, outputFile);
+        if (args[0].equals("--serve")) {
+            SortServer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args[0].equals("--append") || args[0].equals("--compact")) {
+            incremental(args);
+            return;
+        }
+        if (args[0].equals("--merge")) {
+            int from = 2;
+            while (from < args.length && !args[from].startsWith("--")) {
+                from++;
+            }
+            SortOptions options = parseOptions(args, from, new SortOptions());
+            Recording recording = SortEvents.start(options
+                .getRecordingFile());
+            try {
+                merge(Arrays.copyOfRange(args, 2, from), args[1], options)
+                    .print(System.out);
+                report(options.getSinks(), args[1]);
+            }
+            finally {
+                SortEvents.stop(recording);
+            }
+            return;
+        }
+        if (args[0].equals("--join")) {
+            SortMergeJoin join = new SortMergeJoin(args[1], args[2], args[3],
+                parseOptions(args, 4, new SortOptions()));
+            System.out.println(join.getMatches() + " records joined");
+            return;
+        }
+        SortOptions options = parseOptions(args, 1, new SortOptions());
+        Recording recording = SortEvents.start(options.getRecordingFile());
+        try {
+            sort(args[0], "runs.bin", "outputFile.bin", options).print(
+                System.out);
+            report(options.getSinks(), "outputFile.bin");
+        }
+        finally {
+            SortEvents.stop(recording);
+        }
         
         //BinaryParser binaryParser = new BinaryParser(fileName);
         //binaryParser.printRecords();
     }
 
+
+    /**
+     * Sort a file.
+     *
+     * @param fileName
+     *            file to sort
+     * @param runsName
+     *            scratch file for the runs, also naming the manifest
+     * @param outputFile
+     *            file the sorted records are written to
+     * @param options
+     *            how to sort
+     * @return the first record of each block of the output
+     * @throws IOException
+     * @throws IllegalArgumentException
+     *             if the options cannot be combined, see SortOptions.check()
+     */
+    public static BlockSample sort(
+        String fileName,
+        String runsName,
+        String outputFile,
+        SortOptions options)
+        throws IOException {
+        options.check();
+        if (options.getEngine() == SortEngine.SAMPLE) {
+            return new SampleSort(fileName, outputFile, options).getSample();
+        }
+
+        SortManifest manifest = null;
+        if (options.isResume()) {
+            manifest = SortManifest.resume(runsName + SortManifest.SUFFIX,
+                fileName, options);
+        }
+        if (options.isCheckpoint() && manifest == null) {
+            manifest = new SortManifest(runsName + SortManifest.SUFFIX,
+                fileName, options);
+        }
+
+        MultiwayMerge merge;
+        try {
+            RunTable runs;
+            if (manifest != null && manifest.isMerging()) {
+                runs = manifest.getRuns();
+            }
+            else {
+                runs = new ReplacementSelection(fileName, runsName, options,
+                    manifest).getRuns();
+            }
+            SortOptions merging = options;
+            if (options.isCalibrate() && runs.size() > 1) {
+                merging = IoCostModel.of(runsName, options).plan(runs,
+                    options);
+            }
+            merge = new MultiwayMerge(runs, runsName, outputFile, merging,
+                manifest);
+        }
+        catch (IOException | RuntimeException e) {
+            if (manifest == null) {
+                // nothing to resume from, so nothing worth keeping
+                MultiwayMerge.deleteAll(runsName, options);
+            }
+            throw e;
+        }
+        if (manifest != null) {
+            manifest.delete();
+        }
+        return merge.getSample();
+    }
+
+
+    /**
+     * Merge files that are each already sorted, without generating runs.
+     * With more files than the fan-in and calibration asked for, the fan-in
+     * and read size are planned for them as for any runs.
+     *
+     * @param files
+     *            files sorted under options, oldest first
+     * @param outputFile
+     *            file the merged records are written to, none of files;
+     *            its name also names the scratch file
+     * @param options
+     *            how the files are sorted and how to merge them
+     * @return the first record of each block of the output
+     * @throws IOException
+     *             also if a file is not sorted
+     * @throws IllegalArgumentException
+     *             if options are refused by SortOptions.check() or count
+     *             records per key, which would take the files' IDs for
+     *             counts, or the output is one of files
+     */
+    public static BlockSample merge(
+        String[] files,
+        String outputFile,
+        SortOptions options)
+        throws IOException {
+        options.check();
+        if (options.getReduction() == Reduction.COUNT_PER_KEY) {
+            throw new IllegalArgumentException(
+                "Counts per key cannot be merged again");
+        }
+        RunTable runs = new RunTable();
+        for (int i = 0; i < files.length; i++) {
+            if (new File(files[i]).getCanonicalPath().equals(new File(
+                outputFile).getCanonicalPath())) {
+                throw new IllegalArgumentException(
+                    "Cannot merge into one of the inputs: " + outputFile);
+            }
+            runs.add(0, new File(files[i]).length() / Record.BYTES, i);
+        }
+        String runsName = outputFile + ".runs";
+        SortOptions merging = options;
+        if (options.isCalibrate() && files.length > Math.max(2, options
+            .getFanIn())) {
+            merging = IoCostModel.of(runsName, options).plan(runs, options);
+        }
+        return MultiwayMerge.mergeFiles(files, runsName, outputFile, merging)
+            .getSample();
+    }
+
+
+    /**
+     * Print what the sinks a sort's output was teed to found, writing the
+     * block index next to the output.
+     *
+     * @param sinks
+     *            the sinks
+     * @param outputFile
+     *            the sorted file
+     * @throws IOException
+     */
+    private static void report(OutputSink[] sinks, String outputFile)
+        throws IOException {
+        for (OutputSink sink : sinks) {
+            if (sink instanceof OrderVerifier) {
+                OrderVerifier verifier = (OrderVerifier)sink;
+                System.out.println(verifier.isSorted()
+                    ? "Verified " + verifier.getRecords() + " records in order"
+                    : "Out of order at record " + verifier.getFirstDisorder());
+            }
+            else if (sink instanceof OutputChecksum) {
+                OutputChecksum checksum = (OutputChecksum)sink;
+                System.out.println("CRC-32C " + Long.toHexString(checksum
+                    .getValue()) + " of " + checksum.getBytes() + " bytes");
+            }
+            else if (sink instanceof BlockIndex) {
+                BlockIndex index = (BlockIndex)sink;
+                index.write(outputFile);
+                System.out.println(index.getBlocks() + " blocks indexed in "
+                    + outputFile + BlockIndex.SUFFIX);
+            }
+        }
+    }
+
+
+    /**
+     * Run --append DATA DELTA or --compact DATA [DELTA], followed by
+     * options.
+     *
+     * @param args
+     *            command line
+     * @throws IOException
+     */
+    private static void incremental(String[] args) throws IOException {
+        String delta = null;
+        int from = 2;
+        if (args.length > 2 && !args[2].startsWith("--")) {
+            delta = args[2];
+            from = 3;
+        }
+        SortOptions options = parseOptions(args, from, new SortOptions());
+        if (args[0].equals("--append") && delta == null) {
+            throw new IllegalArgumentException("--append needs a file to add");
+        }
+        Recording recording = SortEvents.start(options.getRecordingFile());
+        try {
+            IncrementalSort sorted = new IncrementalSort(args[1], options);
+            if (args[0].equals("--compact")) {
+                sorted.compact(delta).print(System.out);
+            }
+            else {
+                sorted.append(delta);
+            }
+        }
+        finally {
+            SortEvents.stop(recording);
+        }
+    }
+
+
+    /**
+     * Apply command line options.
+     *
+     * @param args
+     *            command line
+     * @param from
+     *            index of the first option
+     * @param options
+     *            options to change
+     * @return options
+     */
+    public static SortOptions parseOptions(
+        String[] args,
+        int from,
+        SortOptions options) {
+        String shardKeys = null;
+        boolean verify = false;
+        boolean checksum = false;
+        boolean index = false;
+        for (int i = from; i < args.length; i++) {
+            if (args[i].equals("--stable")) {
+                options.setTieBreak(TieBreak.ORDINAL);
+            }
+            else if (args[i].equals("--stable-id")) {
+                options.setTieBreak(TieBreak.ID);
+            }
+            else if (args[i].equals("--distinct")) {
+                options.setReduction(Reduction.DISTINCT);
+            }
+            else if (args[i].equals("--first-per-key")) {
+                options.setReduction(Reduction.FIRST_PER_KEY);
+            }
+            else if (args[i].equals("--count-per-key")) {
+                options.setReduction(Reduction.COUNT_PER_KEY);
+            }
+            else if (args[i].equals("--checkpoint")) {
+                options.setCheckpoint(true);
+            }
+            else if (args[i].equals("--resume")) {
+                options.setCheckpoint(true);
+                options.setResume(true);
+            }
+            else if (args[i].equals("--engine=sample")) {
+                options.setEngine(SortEngine.SAMPLE);
+            }
+            else if (args[i].equals("--engine=merge")) {
+                options.setEngine(SortEngine.MERGE);
+            }
+            else if (args[i].equals("--merge=balanced")) {
+                options.setMergeStrategy(MergeStrategy.BALANCED);
+            }
+            else if (args[i].equals("--merge=polyphase")) {
+                options.setMergeStrategy(MergeStrategy.POLYPHASE);
+            }
+            else if (args[i].startsWith("--threads=")) {
+                options.setThreads(Integer.parseInt(args[i].substring(10)));
+            }
+            else if (args[i].startsWith("--memory=")) {
+                options.setMemoryBytes(Long.parseLong(args[i].substring(9))
+                    << 20);
+            }
+            else if (args[i].startsWith("--prefetch=")) {
+                options.setPrefetchBlocks(Integer.parseInt(args[i].substring(
+                    11)));
+            }
+            else if (args[i].equals("--jfr")) {
+                options.setRecordingFile(SortEvents.DEFAULT_FILE);
+            }
+            else if (args[i].startsWith("--jfr=")) {
+                options.setRecordingFile(args[i].substring(6));
+            }
+            else if (args[i].equals("--off-heap")) {
+                options.setRecordArena(new RecordArena());
+            }
+            else if (args[i].equals("--direct-io")) {
+                options.setDirectIo(true);
+            }
+            else if (args[i].equals("--calibrate")) {
+                options.setCalibrate(true);
+            }
+            else if (args[i].equals("--key-stats")) {
+                options.setKeyStats(true);
+            }
+            else if (args[i].equals("--verify")) {
+                verify = true;
+            }
+            else if (args[i].equals("--checksum")) {
+                checksum = true;
+            }
+            else if (args[i].equals("--index")) {
+                index = true;
+            }
+            else if (args[i].startsWith("--shards=")) {
+                options.setShardCount(Integer.parseInt(args[i].substring(9)));
+            }
+            else if (args[i].startsWith("--shard-keys=")) {
+                shardKeys = args[i].substring(13);
+            }
+            else if (args[i].startsWith("--spill=")) {
+                String[] dirs = options.getSpillDirs();
+                dirs = dirs == null
+                    ? new String[1]
+                    : Arrays.copyOf(dirs, dirs.length + 1);
+                dirs[dirs.length - 1] = args[i].substring(8);
+                options.setSpillDirs(dirs);
+            }
+            else if (args[i].startsWith("--order=")) {
+                options.setSortOrder(parseOrder(args[i].substring(8)));
+            }
+            else {
+                throw new IllegalArgumentException("Unknown option: "
+                    + args[i]);
+            }
+        }
+        if (shardKeys != null) {
+            // read once the order is known, since it decides what a key is
+            options.setShardBounds(parseBounds(shardKeys, options
+                .getSortOrder()));
+        }
+        options.check();
+        // also made once the order is known
+        if (verify) {
+            options.addSink(new OrderVerifier(options.getSortOrder()));
+        }
+        if (checksum) {
+            options.addSink(new OutputChecksum());
+        }
+        if (index) {
+            options.addSink(new BlockIndex(options.getSortOrder()));
+        }
+        return options;
+    }
+
+
+    /**
+     * @param keys
+     *            shard boundaries given on the command line, comma
+     *            separated: keys, or IDs when sorting by ID
+     * @param order
+     *            order being sorted in
+     * @return their sort keys, ascending
+     */
+    private static long[] parseBounds(String keys, SortOrder order) {
+        String[] fields = keys.split(",");
+        long[] bounds = new long[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            bounds[i] = order == SortOrder.ID
+                ? order.sortKey(Long.parseLong(fields[i]), 0)
+                : order.sortKey(0, Double.parseDouble(fields[i]));
+        }
+        Arrays.sort(bounds);
+        return bounds;
+    }
+
+
+    /**
+     * @param name
+     *            order given on the command line
+     * @return the matching SortOrder
+     */
+    private static SortOrder parseOrder(String name) {
+        switch (name) {
+            case "ascending":
+                return SortOrder.ASCENDING;
+            case "descending":
+                return SortOrder.DESCENDING;
+            case "key-id":
+                return SortOrder.KEY_THEN_ID;
+            case "id":
+                return SortOrder.ID;
+            default:
+                throw new IllegalArgumentException("Unknown order: " + name);
+        }
+    }
+
 }
@@ -1,4 +1,9 @@
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
 import student.TestCase;
 
 /**
@@ -24,4 +29,577 @@ public class ExternalsortTest extends TestCase {
         Externalsort.main(args);
     }
 
+
+    /**
+     * Stable mode keeps equal keys in input order through several runs and
+     * merge passes
+     * @throws IOException
+     */
+    public void testStable() throws IOException {
+        writeFewKeys("stableInput.bin", 20);
+        SortOptions options = new SortOptions();
+        options.setTieBreak(TieBreak.ORDINAL);
+        options.setHeapBlocks(1);
+        options.setFanIn(2);
+        try {
+            ReplacementSelection selection = new ReplacementSelection(
+                "stableInput.bin", "stableRuns.bin", options);
+            assertTrue(selection.getRuns().size() > 2);
+            MultiwayMerge merge = new MultiwayMerge(selection.getRuns(),
+                "stableRuns.bin", "stableOutput.bin", options);
+            assertTrue(merge.getPasses() > 1);
+            assertEquals(20 * ByteFile.RECORDS_PER_BLOCK, merge
+                .getRecordCount());
+
+            ByteBuffer bb = ByteBuffer.wrap(ByteFile.readAll(
+                "stableOutput.bin"));
+            double prevKey = Double.NEGATIVE_INFINITY;
+            long prevID = -1;
+            while (bb.hasRemaining()) {
+                long id = bb.getLong();
+                double key = bb.getDouble();
+                assertTrue(key > prevKey || (key == prevKey && id > prevID));
+                prevKey = key;
+                prevID = id;
+            }
+        }
+        finally {
+            new File("stableInput.bin").delete();
+            new File("stableRuns.bin").delete();
+            new File("stableOutput.bin").delete();
+        }
+    }
+
+
+    /**
+     * A single run is moved to the output file rather than merged: renamed
+     * when it fills the runs file, copied when the runs file has to stay
+     * @throws IOException
+     */
+    public void testSingleRun() throws IOException {
+        new ByteFile("singleInput.bin", 4).writeRandomRecords();
+        SortOptions options = new SortOptions();
+        try {
+            ReplacementSelection selection = new ReplacementSelection(
+                "singleInput.bin", "singleRuns.bin", options);
+            assertEquals(1, selection.getRuns().size());
+            byte[] run = ByteFile.readAll("singleRuns.bin");
+            MultiwayMerge merge = new MultiwayMerge(selection.getRuns(),
+                "singleRuns.bin", "singleOutput.bin", options);
+            assertEquals(0, merge.getPasses());
+            assertEquals(4 * ByteFile.RECORDS_PER_BLOCK, merge
+                .getRecordCount());
+            assertFalse(new File("singleRuns.bin").exists());
+            assertTrue(Arrays.equals(run, ByteFile.readAll(
+                "singleOutput.bin")));
+
+            RandomAccessFile padded = new RandomAccessFile("singleRuns.bin",
+                "rw");
+            padded.write(new byte[Record.BYTES]);
+            padded.write(run);
+            padded.close();
+            MultiwayMerge.moveRun("singleRuns.bin", Record.BYTES, run.length,
+                "singleOutput.bin", true, false);
+            assertTrue(new File("singleRuns.bin").exists());
+            assertTrue(Arrays.equals(run, ByteFile.readAll(
+                "singleOutput.bin")));
+        }
+        finally {
+            new File("singleInput.bin").delete();
+            new File("singleRuns.bin").delete();
+            new File("singleOutput.bin").delete();
+        }
+    }
+
+
+    /**
+     * Runs striped across several spill directories merge to the same
+     * output as runs kept in one file
+     * @throws IOException
+     */
+    public void testSpillDirs() throws IOException {
+        new ByteFile("spillInput.bin", 30).writeRandomRecords();
+        String[] dirs = { "spill0", "spill1", "spill2" };
+        SortOptions options = new SortOptions();
+        options.setTieBreak(TieBreak.ORDINAL);
+        options.setHeapBlocks(1);
+        options.setFanIn(3);
+        try {
+            Externalsort.sort("spillInput.bin", "spillRuns.bin",
+                "spillOutput.bin", options);
+            byte[] expected = ByteFile.readAll("spillOutput.bin");
+
+            for (String dir : dirs) {
+                new File(dir).mkdir();
+            }
+            options.setSpillDirs(dirs);
+            ReplacementSelection selection = new ReplacementSelection(
+                "spillInput.bin", "spillRuns.bin", options);
+            RunTable runs = selection.getRuns();
+            for (int i = 0; i < runs.size(); i++) {
+                assertEquals(i % dirs.length, runs.getStripe(i));
+            }
+            for (String dir : dirs) {
+                assertTrue(new File(dir, "spillRuns.bin").length() > 0);
+            }
+            MultiwayMerge merge = new MultiwayMerge(selection.getRuns(),
+                "spillRuns.bin", "spillOutput.bin", options);
+            assertTrue(merge.getPasses() > 1);
+            assertTrue(Arrays.equals(expected, ByteFile.readAll(
+                "spillOutput.bin")));
+        }
+        finally {
+            new File("spillInput.bin").delete();
+            new File("spillRuns.bin").delete();
+            new File("spillOutput.bin").delete();
+            for (String dir : dirs) {
+                new File(dir, "spillRuns.bin").delete();
+                new File(dir).delete();
+            }
+        }
+    }
+
+
+    /**
+     * Reads scheduled ahead of the merge give the same output as reading
+     * each block when its run runs dry, and most of them are ready before
+     * they are needed
+     * @throws IOException
+     */
+    public void testPrefetch() throws IOException {
+        new ByteFile("prefetchInput.bin", 60).writeRandomRecords();
+        SortOptions options = new SortOptions();
+        options.setTieBreak(TieBreak.ORDINAL);
+        options.setHeapBlocks(1);
+        options.setFanIn(8);
+        options.setPrefetchBlocks(0);
+        try {
+            Externalsort.sort("prefetchInput.bin", "prefetchRuns.bin",
+                "prefetchOutput.bin", options);
+            byte[] expected = ByteFile.readAll("prefetchOutput.bin");
+
+            options.setPrefetchBlocks(16);
+            ReplacementSelection selection = new ReplacementSelection(
+                "prefetchInput.bin", "prefetchRuns.bin", options);
+            MultiwayMerge merge = new MultiwayMerge(selection.getRuns(),
+                "prefetchRuns.bin", "prefetchOutput.bin", options);
+            assertTrue(Arrays.equals(expected, ByteFile.readAll(
+                "prefetchOutput.bin")));
+            assertTrue(merge.getReads() > 0);
+            assertTrue(merge.getDemandReads() < merge.getReads());
+        }
+        finally {
+            new File("prefetchInput.bin").delete();
+            new File("prefetchRuns.bin").delete();
+            new File("prefetchOutput.bin").delete();
+        }
+    }
+
+
+    /**
+     * A runs file cut short of what its runs hold fails the merge, read
+     * ahead or not, instead of losing the records that are missing
+     * @throws IOException
+     */
+    public void testTruncatedRuns() throws IOException {
+        new ByteFile("truncInput.bin", 20).writeRandomRecords();
+        SortOptions options = new SortOptions();
+        options.setHeapBlocks(1);
+        try {
+            for (int prefetch : new int[] { 0, 16 }) {
+                options.setPrefetchBlocks(prefetch);
+                RunTable runs = new ReplacementSelection("truncInput.bin",
+                    "truncRuns.bin", options).getRuns();
+                RandomAccessFile raf = new RandomAccessFile("truncRuns.bin",
+                    "rw");
+                raf.setLength(raf.length() - 5 * Record.BYTES);
+                raf.close();
+                try {
+                    new MultiwayMerge(runs, "truncRuns.bin",
+                        "truncOutput.bin", options);
+                    fail("merged a truncated runs file");
+                }
+                catch (IOException e) {
+                    assertTrue(e.getMessage().contains("truncRuns.bin"));
+                }
+                assertFalse(new File("truncRuns.bin"
+                    + MultiwayMerge.PASS_SUFFIX).exists());
+            }
+        }
+        finally {
+            new File("truncInput.bin").delete();
+            new File("truncRuns.bin").delete();
+            new File("truncOutput.bin").delete();
+        }
+    }
+
+
+    /**
+     * Sorting around the page cache, with runs in several passes and
+     * striped, gives the same output as sorting through it
+     * @throws IOException
+     */
+    public void testDirectIo() throws IOException {
+        new ByteFile("directInput.bin", 60).writeRandomRecords();
+        SortOptions options = new SortOptions();
+        options.setTieBreak(TieBreak.ORDINAL);
+        options.setHeapBlocks(1);
+        options.setFanIn(4);
+        try {
+            Externalsort.sort("directInput.bin", "directRuns.bin",
+                "directOutput.bin", options);
+            byte[] expected = ByteFile.readAll("directOutput.bin");
+
+            options.setDirectIo(true);
+            options.setSpillDirs(new String[] { ".", "directSpill" });
+            new File("directSpill").mkdir();
+            Externalsort.sort("directInput.bin", "directRuns.bin",
+                "directOutput.bin", options);
+            assertTrue(Arrays.equals(expected, ByteFile.readAll(
+                "directOutput.bin")));
+        }
+        finally {
+            new File("directInput.bin").delete();
+            new File("directOutput.bin").delete();
+            SpillFiles.delete("directRuns.bin", options);
+            new File("directSpill").delete();
+        }
+    }
+
+
+    /**
+     * Every sort order is honored by run generation and merging
+     * @throws IOException
+     */
+    public void testSortOrders() throws IOException {
+        ByteFile input = new ByteFile("orderInput.bin", 12);
+        input.writeRandomRecords();
+        try {
+            for (SortOrder order : SortOrder.values()) {
+                SortOptions options = new SortOptions();
+                options.setSortOrder(order);
+                options.setHeapBlocks(1);
+                options.setFanIn(3);
+                ReplacementSelection selection = new ReplacementSelection(
+                    "orderInput.bin", "orderRuns.bin", options);
+                MultiwayMerge merge = new MultiwayMerge(selection.getRuns(),
+                    "orderRuns.bin", "orderOutput.bin", options);
+                assertEquals(12 * ByteFile.RECORDS_PER_BLOCK, merge
+                    .getRecordCount());
+                ByteFile output = new ByteFile("orderOutput.bin", 12);
+                assertTrue(order.name(), output.isSorted(order));
+            }
+            assertFalse(new ByteFile("orderOutput.bin", 12).isSorted(
+                SortOrder.ASCENDING));
+        }
+        finally {
+            new File("orderInput.bin").delete();
+            new File("orderRuns.bin").delete();
+            new File("orderOutput.bin").delete();
+        }
+    }
+
+
+    /**
+     * Reductions collapse equal records in runs and across merges
+     * @throws IOException
+     */
+    public void testReductions() throws IOException {
+        int total = 20 * ByteFile.RECORDS_PER_BLOCK;
+        ByteBuffer bb = ByteBuffer.allocate(total * Record.BYTES);
+        for (int i = 0; i < total; i++) {
+            bb.putLong(i % 700);
+            bb.putDouble(i % 700 % 10);
+        }
+        RandomAccessFile raf = new RandomAccessFile("reduceInput.bin", "rw");
+        raf.setLength(0);
+        raf.write(bb.array());
+        raf.close();
+        try {
+            ByteBuffer out = reduce(Reduction.DISTINCT);
+            assertEquals(700 * Record.BYTES, out.capacity());
+
+            out = reduce(Reduction.FIRST_PER_KEY);
+            assertEquals(10 * Record.BYTES, out.capacity());
+            for (int key = 0; key < 10; key++) {
+                assertEquals(key, out.getLong());
+                assertEquals(key, out.getDouble(), 0.0);
+            }
+
+            out = reduce(Reduction.COUNT_PER_KEY);
+            assertEquals(10 * Record.BYTES, out.capacity());
+            long sum = 0;
+            while (out.hasRemaining()) {
+                sum += out.getLong();
+                out.getDouble();
+            }
+            assertEquals(total, sum);
+        }
+        finally {
+            new File("reduceInput.bin").delete();
+            new File("reduceRuns.bin").delete();
+            new File("reduceOutput.bin").delete();
+        }
+    }
+
+
+    /**
+     * Polyphase tapes start with Fibonacci numbers of runs, enough for all
+     * of them
+     */
+    public void testPolyphaseCounts() {
+        assertTrue(Arrays.equals(new int[] { 1, 0 }, MultiwayMerge
+            .polyphaseCounts(1, 2)));
+        assertTrue(Arrays.equals(new int[] { 8, 5 }, MultiwayMerge
+            .polyphaseCounts(13, 2)));
+        assertTrue(Arrays.equals(new int[] { 13, 8 }, MultiwayMerge
+            .polyphaseCounts(14, 2)));
+        // 3 inputs: 1 0 0, 1 1 1, 2 2 1, 4 3 2, 7 6 4
+        assertTrue(Arrays.equals(new int[] { 7, 6, 4 }, MultiwayMerge
+            .polyphaseCounts(10, 3)));
+    }
+
+
+    /**
+     * Counting records per ID is refused up front, before any runs are
+     * written, on the command line and in a sort of many runs alike
+     * @throws IOException
+     */
+    public void testCountPerId() throws IOException {
+        new ByteFile("countIdInput.bin", 40).writeRandomRecords(new Random(
+            3114));
+        SortOptions options = new SortOptions();
+        options.setHeapBlocks(1);
+        options.setFanIn(2);
+        options.setSortOrder(SortOrder.ID);
+        options.setReduction(Reduction.COUNT_PER_KEY);
+        try {
+            Externalsort.sort("countIdInput.bin", "countIdRuns.bin",
+                "countIdOutput.bin", options);
+            fail("counted records per ID");
+        }
+        catch (IllegalArgumentException e) {
+            assertFalse(new File("countIdRuns.bin").exists());
+            assertFalse(new File("countIdRuns.bin"
+                + MultiwayMerge.PASS_SUFFIX).exists());
+        }
+        finally {
+            new File("countIdInput.bin").delete();
+            new File("countIdRuns.bin").delete();
+        }
+        try {
+            Externalsort.parseOptions(new String[] { "--count-per-key",
+                "--order=id" }, 0, new SortOptions());
+            fail("parsed counts per ID");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // the same sort by key makes many runs and counts every record
+        writeFewKeys("countIdInput.bin", 40);
+        options.setSortOrder(SortOrder.ASCENDING);
+        try {
+            ReplacementSelection selection = new ReplacementSelection(
+                "countIdInput.bin", "countIdRuns.bin", options);
+            assertTrue(selection.getRuns().size() > 2);
+            Externalsort.sort("countIdInput.bin", "countIdRuns.bin",
+                "countIdOutput.bin", options);
+            ByteBuffer output = ByteBuffer.wrap(ByteFile.readAll(
+                "countIdOutput.bin"));
+            long total = 0;
+            while (output.hasRemaining()) {
+                total += output.getLong();
+                output.getDouble();
+            }
+            assertEquals(40 * ByteFile.RECORDS_PER_BLOCK, total);
+        }
+        finally {
+            new File("countIdInput.bin").delete();
+            new File("countIdRuns.bin").delete();
+            new File("countIdOutput.bin").delete();
+        }
+    }
+
+
+    /**
+     * A polyphase merge gives the same output as a balanced one, striped
+     * or not and with reductions, and leaves no tapes behind
+     * @throws IOException
+     */
+    public void testPolyphase() throws IOException {
+        writeFewKeys("polyInput.bin", 40);
+        SortOptions options = new SortOptions();
+        options.setTieBreak(TieBreak.ID);
+        options.setHeapBlocks(1);
+        options.setFanIn(3);
+        String[] dirs = { "polySpill0", "polySpill1" };
+        try {
+            for (Reduction reduction : Reduction.values()) {
+                options.setReduction(reduction);
+                options.setMergeStrategy(MergeStrategy.BALANCED);
+                options.setSpillDirs(null);
+                Externalsort.sort("polyInput.bin", "polyRuns.bin",
+                    "polyOutput.bin", options);
+                byte[] expected = ByteFile.readAll("polyOutput.bin");
+
+                options.setMergeStrategy(MergeStrategy.POLYPHASE);
+                ReplacementSelection selection = new ReplacementSelection(
+                    "polyInput.bin", "polyRuns.bin", options);
+                assertTrue(selection.getRuns().size() > 10);
+                MultiwayMerge merge = new MultiwayMerge(selection.getRuns(),
+                    "polyRuns.bin", "polyOutput.bin", options);
+                assertTrue(merge.getPasses() > 2);
+                assertTrue(Arrays.equals(expected, ByteFile.readAll(
+                    "polyOutput.bin")));
+                assertEquals(0, new File("polyRuns.bin").length());
+                for (int t = 0; t <= options.getFanIn(); t++) {
+                    assertFalse(new File("polyRuns.bin"
+                        + MultiwayMerge.TAPE_SUFFIX + t).exists());
+                }
+
+                for (String dir : dirs) {
+                    new File(dir).mkdir();
+                }
+                options.setSpillDirs(dirs);
+                Externalsort.sort("polyInput.bin", "polyRuns.bin",
+                    "polyOutput.bin", options);
+                assertTrue(Arrays.equals(expected, ByteFile.readAll(
+                    "polyOutput.bin")));
+                SpillFiles.delete("polyRuns.bin", options);
+            }
+
+            // stable sorts merge runs in input order, so stay balanced
+            options.setTieBreak(TieBreak.ORDINAL);
+            assertEquals(MergeStrategy.BALANCED, options
+                .effectiveMergeStrategy());
+            assertEquals(MergeStrategy.POLYPHASE, Externalsort.parseOptions(
+                new String[] { "--merge=polyphase" }, 0, new SortOptions())
+                .effectiveMergeStrategy());
+        }
+        finally {
+            new File("polyInput.bin").delete();
+            new File("polyRuns.bin").delete();
+            new File("polyOutput.bin").delete();
+            for (String dir : dirs) {
+                new File(dir, "polyRuns.bin").delete();
+                new File(dir).delete();
+            }
+        }
+    }
+
+
+    /**
+     * Sorted files merge straight into the output, in several passes when
+     * there are more than the fan-in, the same as sorting them all, and a
+     * file out of order is caught
+     * @throws IOException
+     */
+    public void testMergeFiles() throws IOException {
+        String[] parts = new String[7];
+        SortOptions options = new SortOptions();
+        options.setTieBreak(TieBreak.ID);
+        options.setHeapBlocks(1);
+        RandomAccessFile all = new RandomAccessFile("mergeAll.bin", "rw");
+        try {
+            all.setLength(0);
+            for (int i = 0; i < parts.length; i++) {
+                parts[i] = "mergePart" + i + ".bin";
+                new ByteFile("mergeInput.bin", 4).writeRandomRecords(
+                    new Random(i));
+                all.write(ByteFile.readAll("mergeInput.bin"));
+                Externalsort.sort("mergeInput.bin", "mergeRuns.bin",
+                    parts[i], options);
+            }
+            all.close();
+            Externalsort.sort("mergeAll.bin", "mergeRuns.bin",
+                "mergeOutput.bin", options);
+            byte[] expected = ByteFile.readAll("mergeOutput.bin");
+
+            for (int fanIn : new int[] { 2, 3, 8 }) {
+                options.setFanIn(fanIn);
+                MultiwayMerge merge = MultiwayMerge.mergeFiles(parts,
+                    "mergeRuns.bin", "mergeOutput.bin", options);
+                assertTrue(Arrays.equals(expected, ByteFile.readAll(
+                    "mergeOutput.bin")));
+                assertEquals(IoCostModel.passes(parts.length, fanIn), merge
+                    .getPasses());
+                assertFalse(new File("mergeRuns.bin").exists());
+                assertFalse(new File("mergeRuns.bin"
+                    + MultiwayMerge.PASS_SUFFIX).exists());
+            }
+            String[] args = new String[parts.length + 4];
+            args[0] = "--merge";
+            args[1] = "mergeOutput.bin";
+            System.arraycopy(parts, 0, args, 2, parts.length);
+            args[args.length - 2] = "--stable-id";
+            args[args.length - 1] = "--verify";
+            Externalsort.main(args);
+            assertTrue(Arrays.equals(expected, ByteFile.readAll(
+                "mergeOutput.bin")));
+
+            parts[3] = "mergeInput.bin";
+            try {
+                Externalsort.merge(parts, "mergeOutput.bin", options);
+                fail("merged a file that is not sorted");
+            }
+            catch (IOException e) {
+                assertTrue(e.getMessage().contains("mergeInput.bin"));
+            }
+            assertFalse(new File("mergeRuns.bin").exists());
+
+            options.setSortOrder(SortOrder.ID);
+            options.setReduction(Reduction.COUNT_PER_KEY);
+            try {
+                Externalsort.merge(parts, "mergeOutput.bin", options);
+                fail("merged counts per key by ID");
+            }
+            catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains("sorted by ID"));
+            }
+        }
+        finally {
+            all.close();
+            for (int i = 0; i < parts.length; i++) {
+                new File("mergePart" + i + ".bin").delete();
+            }
+            new File("mergeAll.bin").delete();
+            new File("mergeInput.bin").delete();
+            new File("mergeRuns.bin").delete();
+            new File("mergeOutput.bin").delete();
+            new File("mergeOutput.bin.runs").delete();
+        }
+    }
+
+
+    private ByteBuffer reduce(Reduction reduction) throws IOException {
+        SortOptions options = new SortOptions();
+        options.setReduction(reduction);
+        options.setTieBreak(TieBreak.ORDINAL);
+        options.setHeapBlocks(1);
+        options.setFanIn(2);
+        ReplacementSelection selection = new ReplacementSelection(
+            "reduceInput.bin", "reduceRuns.bin", options);
+        new MultiwayMerge(selection.getRuns(), "reduceRuns.bin",
+            "reduceOutput.bin", options);
+        return ByteBuffer.wrap(ByteFile.readAll("reduceOutput.bin"));
+    }
+
+
+    /**
+     * Write blocks of records whose IDs are their input position and whose
+     * keys repeat a lot
+     */
+    private void writeFewKeys(String name, int blocks) throws IOException {
+        Random rng = new Random(3114);
+        ByteBuffer bb = ByteBuffer.allocate(blocks * ByteFile.BYTES_PER_BLOCK);
+        for (long id = 0; bb.hasRemaining(); id++) {
+            bb.putLong(id);
+            bb.putDouble(rng.nextInt(10));
+        }
+        RandomAccessFile raf = new RandomAccessFile(name, "rw");
+        raf.setLength(0);
+        raf.write(bb.array());
+        raf.close();
+    }
 }
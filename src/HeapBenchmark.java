@@ -0,0 +1,145 @@
+import java.util.Random;
+
+/**
+ * Compares MinHeap against DaryHeap on the replacement selection workload:
+ * a heap of HEAP_BLOCKS blocks of records, one replace-or-defer step per
+ * input record. Run with
+ *
+ * <pre>
+ * java HeapBenchmark [records] [heapBlocks]
+ * </pre>
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class HeapBenchmark {
+    private static final int ROUNDS = 5;
+    private static final int[] ARITIES = { 2, 4, 8 };
+
+    /**
+     * @param args
+     *            optional record count and heap size in blocks
+     */
+    public static void main(String[] args) {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 22;
+        int heapBlocks = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int heapSize = ByteFile.RECORDS_PER_BLOCK * heapBlocks;
+
+        Random rng = new Random(3114);
+        long[] ids = new long[records];
+        double[] keys = new double[records];
+        for (int i = 0; i < records; i++) {
+            ids[i] = rng.nextLong();
+            keys[i] = rng.nextDouble();
+        }
+
+        System.out.println("records=" + records + " heap=" + heapSize);
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            long runs = minHeapRuns(ids, keys, heapSize);
+            report("MinHeap", round, runs, System.nanoTime() - start,
+                records);
+            for (int arity : ARITIES) {
+                start = System.nanoTime();
+                runs = daryHeapRuns(ids, keys, heapSize, arity);
+                report(arity + "-ary", round, runs, System.nanoTime() - start,
+                    records);
+            }
+        }
+    }
+
+
+    private static void report(
+        String name,
+        int round,
+        long runs,
+        long nanos,
+        int records) {
+        System.out.printf("round %d %-8s runs=%d %.1f ns/record%n", round,
+            name, runs, (double)nanos / records);
+    }
+
+
+    /**
+     * Replacement selection over MinHeap, the way ReplacementSelection
+     * drives it, returning the number of runs produced.
+     */
+    private static long minHeapRuns(long[] ids, double[] keys, int heapSize) {
+        Record[] array = new Record[heapSize];
+        int next = Math.min(heapSize, keys.length);
+        for (int i = 0; i < next; i++) {
+            array[i] = new Record(ids[i], keys[i]);
+        }
+        MinHeap<Record> heap = new MinHeap<Record>(array, next, heapSize);
+        int end = next;
+        int parked = 0;
+        long runs = 1;
+        while (heap.heapSize() > 0) {
+            Record min = heap.removeMin();
+            if (next < keys.length) {
+                Record in = new Record(ids[next], keys[next]);
+                next++;
+                if (in.getSortKey() >= min.getSortKey()) {
+                    heap.insert(in);
+                }
+                else {
+                    array[heap.heapSize()] = in;
+                    parked++;
+                }
+            }
+            if (heap.heapSize() == 0 && parked > 0) {
+                System.arraycopy(array, end - parked, array, 0, parked);
+                heap = new MinHeap<Record>(array, parked, heapSize);
+                end = parked;
+                parked = 0;
+                runs++;
+            }
+        }
+        return runs;
+    }
+
+
+    /**
+     * Replacement selection over DaryHeap, returning the number of runs.
+     */
+    private static long daryHeapRuns(
+        long[] ids,
+        double[] keys,
+        int heapSize,
+        int arity) {
+        DaryHeap heap = new DaryHeap(heapSize, arity);
+        int next = 0;
+        while (next < keys.length && heap.heapSize() < heapSize) {
+            heap.append(SortOrder.sortable(keys[next]), 0, ids[next]);
+            next++;
+        }
+        heap.buildHeap();
+        int end = next;
+        int parked = 0;
+        long runs = 1;
+        while (heap.heapSize() > 0) {
+            long minKey = heap.minKey();
+            if (next < keys.length) {
+                long key = SortOrder.sortable(keys[next]);
+                if (key >= minKey) {
+                    heap.replaceMin(key, 0, ids[next]);
+                }
+                else {
+                    heap.deferMin(key, 0, ids[next]);
+                    parked++;
+                }
+                next++;
+            }
+            else {
+                heap.removeMin();
+            }
+            if (heap.heapSize() == 0 && parked > 0) {
+                heap.restoreParked(end, parked);
+                end = parked;
+                parked = 0;
+                runs++;
+            }
+        }
+        return runs;
+    }
+}
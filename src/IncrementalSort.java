@@ -0,0 +1,355 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+
+/**
+ * Keeps a file that grows by appends sorted without sorting all of it again
+ * on every append. The sorted data is a list of segments, oldest first: the
+ * data file itself and then segment files next to it, as in a log
+ * structured merge tree. append() sorts only the new records, into a new
+ * segment. Segments are merged lazily: once the newest segments together
+ * hold as many records as the segment before them, they are merged into
+ * one, so each record is rewritten about log(n) times, not once per
+ * append. compact() merges everything, and optionally one more input, back
+ * into the data file in a single merge.
+ *
+ * The list is kept in a manifest next to the data file:
+ *
+ * <pre>
+ * externalsort-segments 1
+ * settings ORDER TIEBREAK REDUCTION
+ * segment RECORDS PATH                oldest first
+ * </pre>
+ *
+ * The manifest is written to a temporary file and renamed over the old one,
+ * and a segment is only deleted once a manifest without it is in place, so
+ * a crash leaves either the old list or the new one.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class IncrementalSort {
+    /**
+     * suffix added to the data file name to name the manifest
+     */
+    public static final String SUFFIX = ".segments";
+
+    private static final String HEADER = "externalsort-segments 1";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String RUNS_SUFFIX = ".runs";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private String dataFile;
+    private SortOptions options;
+    private ArrayList<String> paths;
+    private ArrayList<Long> lengths; // records in each segment
+
+    // ----------------------------------------------------------
+    /**
+     * Open the segments of a data file. Without a manifest the data file,
+     * if there is one, is the only segment and must already be sorted under
+     * options.
+     *
+     * @param dataFile
+     *            sorted file being maintained
+     * @param options
+     *            how it is sorted
+     * @throws IOException
+     *             if the manifest was written for other options or names a
+     *             segment that is missing or the wrong size
+     * @throws IllegalArgumentException
+     *             if options count records per key, shard the output or
+     *             ask for statistics or output sinks
+     */
+    public IncrementalSort(String dataFile, SortOptions options)
+        throws IOException {
+        if (options.getReduction() == Reduction.COUNT_PER_KEY) {
+            throw new IllegalArgumentException(
+                "Counts per key cannot be merged again");
+        }
+        if (options.isSharded() || options.isKeyStats()
+            || options.getSinks().length > 0) {
+            throw new IllegalArgumentException(
+                "Segments are single files without statistics or sinks");
+        }
+        this.dataFile = dataFile;
+        this.options = options;
+        this.paths = new ArrayList<String>();
+        this.lengths = new ArrayList<Long>();
+        if (new File(manifest()).exists()) {
+            readManifest();
+        }
+        else if (new File(dataFile).length() > 0) {
+            paths.add(dataFile);
+            lengths.add(new File(dataFile).length() / Record.BYTES);
+        }
+    }
+
+
+    /**
+     * @return the number of segments
+     */
+    public int segments() {
+        return paths.size();
+    }
+
+
+    /**
+     * @return the number of records in all segments
+     */
+    public long getRecordCount() {
+        long total = 0;
+        for (long length : lengths) {
+            total += length;
+        }
+        return total;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Sort new records into a segment of their own, then merge the newest
+     * segments if they have grown as big as the one before them. The data
+     * file itself is only rewritten by compact().
+     *
+     * @param deltaFile
+     *            unsorted records to add
+     * @throws IOException
+     */
+    public void append(String deltaFile) throws IOException {
+        if (new File(deltaFile).length() < Record.BYTES) {
+            return;
+        }
+        String runsFile = dataFile + RUNS_SUFFIX;
+        String segment = newSegment();
+        try {
+            ReplacementSelection selection = new ReplacementSelection(
+                deltaFile, runsFile, options);
+            MultiwayMerge merge = new MultiwayMerge(selection.getRuns(),
+                runsFile, segment, options);
+            paths.add(segment);
+            lengths.add(merge.getRecordCount());
+        }
+        finally {
+            SpillFiles.delete(runsFile, options);
+        }
+        writeManifest();
+        settle();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Merge every segment, and the records of deltaFile if given, into the
+     * data file in one merge. Only deltaFile is sorted; the segments are
+     * merged as they are.
+     *
+     * @param deltaFile
+     *            unsorted records to add, or null
+     * @return the first record of each block of the data file
+     * @throws IOException
+     */
+    public BlockSample compact(String deltaFile) throws IOException {
+        boolean delta = deltaFile != null && new File(deltaFile)
+            .length() >= Record.BYTES;
+        if (!delta && paths.size() == 1 && paths.get(0).equals(dataFile)) {
+            return BlockSample.read(dataFile);
+        }
+        String runsFile = dataFile + RUNS_SUFFIX;
+        String merged = dataFile + TEMP_SUFFIX;
+        RunTable runs = new RunTable();
+        MultiwayMerge merge;
+        try {
+            if (delta) {
+                runs = new ReplacementSelection(deltaFile, runsFile, options)
+                    .getRuns();
+            }
+            merge = new MultiwayMerge(paths.toArray(new String[0]), runs,
+                runsFile, merged, options);
+        }
+        finally {
+            SpillFiles.delete(runsFile, options);
+        }
+        ArrayList<String> old = paths;
+        paths = new ArrayList<String>();
+        lengths = new ArrayList<Long>();
+        paths.add(merged);
+        lengths.add(merge.getRecordCount());
+        writeManifest();
+        deleteSegments(old);
+        replace(merged, dataFile);
+        paths.set(0, dataFile);
+        writeManifest();
+        return merge.getSample();
+    }
+
+
+    /**
+     * Merge the newest segments while together they hold at least as many
+     * records as the segment before them, or while there are more segments
+     * than one merge takes. The oldest segment is left to compact().
+     */
+    private void settle() throws IOException {
+        int fanIn = Math.max(2, options.getFanIn());
+        while (true) {
+            int last = paths.size() - 1;
+            int first = last;
+            long newer = lengths.get(last);
+            while (first > 1 && newer >= lengths.get(first - 1)) {
+                first--;
+                newer += lengths.get(first);
+            }
+            if (first == last && paths.size() > fanIn) {
+                first = Math.max(1, paths.size() - fanIn);
+            }
+            if (first == last) {
+                return;
+            }
+            mergeSegments(first);
+        }
+    }
+
+
+    /**
+     * Merge the segments from first on into one new segment.
+     */
+    private void mergeSegments(int first) throws IOException {
+        String runsFile = dataFile + RUNS_SUFFIX;
+        String segment = newSegment();
+        ArrayList<String> old = new ArrayList<String>(paths.subList(first,
+            paths.size()));
+        MultiwayMerge merge = new MultiwayMerge(old.toArray(new String[0]),
+            new RunTable(), runsFile, segment, options);
+        paths.subList(first, paths.size()).clear();
+        lengths.subList(first, lengths.size()).clear();
+        paths.add(segment);
+        lengths.add(merge.getRecordCount());
+        writeManifest();
+        deleteSegments(old);
+    }
+
+
+    private void deleteSegments(ArrayList<String> old) {
+        for (String path : old) {
+            if (!path.equals(dataFile)) {
+                new File(path).delete();
+            }
+        }
+    }
+
+
+    /**
+     * @return an unused segment file name
+     */
+    private String newSegment() {
+        for (int n = 0;; n++) {
+            String path = dataFile + SEGMENT_SUFFIX + n;
+            if (!paths.contains(path) && !new File(path).exists()) {
+                return path;
+            }
+        }
+    }
+
+
+    private String manifest() {
+        return dataFile + SUFFIX;
+    }
+
+
+    private void writeManifest() throws IOException {
+        StringBuilder text = new StringBuilder();
+        text.append(HEADER).append('\n').append(settingsLine()).append('\n');
+        for (int i = 0; i < paths.size(); i++) {
+            text.append("segment ").append(lengths.get(i)).append(' ').append(
+                paths.get(i)).append('\n');
+        }
+        String temp = manifest() + TEMP_SUFFIX;
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        finally {
+            out.close();
+        }
+        replace(temp, manifest());
+    }
+
+
+    /**
+     * Read the manifest back. A compaction interrupted once its output was
+     * listed leaves the manifest naming the temporary file; the rename over
+     * the data file is finished here if it had not happened yet.
+     */
+    private void readManifest() throws IOException {
+        boolean renamed = false;
+        BufferedReader reader = new BufferedReader(new FileReader(manifest(),
+            StandardCharsets.UTF_8));
+        try {
+            if (!HEADER.equals(reader.readLine()) || !settingsLine().equals(
+                reader.readLine())) {
+                throw new IOException(manifest()
+                    + " was written for other sort options");
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ", 3);
+                if (fields.length != 3 || !fields[0].equals("segment")) {
+                    throw new IOException("Bad line in " + manifest() + ": "
+                        + line);
+                }
+                long length = Long.parseLong(fields[1]);
+                String path = fields[2];
+                if (path.equals(dataFile + TEMP_SUFFIX)) {
+                    if (new File(path).exists()) {
+                        replace(path, dataFile);
+                    }
+                    path = dataFile;
+                    renamed = true;
+                }
+                if (new File(path).length() != length * Record.BYTES) {
+                    throw new IOException("Segment " + path + " should hold "
+                        + length + " records");
+                }
+                paths.add(path);
+                lengths.add(length);
+            }
+        }
+        finally {
+            reader.close();
+        }
+        if (renamed) {
+            writeManifest();
+        }
+    }
+
+
+    private String settingsLine() {
+        return "settings " + options.getSortOrder() + " " + options
+            .effectiveTieBreak() + " " + options.getReduction();
+    }
+
+
+    /**
+     * Rename source over target, atomically if the file system can.
+     */
+    private static void replace(String source, String target)
+        throws IOException {
+        try {
+            Files.move(Paths.get(source), Paths.get(target),
+                StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(Paths.get(source), Paths.get(target),
+                StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Random;
+import student.TestCase;
+
+/**
+ * Tests for IncrementalSort
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class IncrementalSortTest extends TestCase {
+    private static final String DATA = "incData.bin";
+    private static final String DELTA = "incDelta.bin";
+    private static final String ALL = "incAll.bin";
+
+    private SortOptions options;
+    private Random rng;
+    private long nextID;
+
+    /**
+     * set up for tests
+     */
+    public void setUp() {
+        options = new SortOptions();
+        options.setTieBreak(TieBreak.ORDINAL);
+        options.setHeapBlocks(1);
+        options.setFanIn(4);
+        rng = new Random(3114);
+        nextID = 0;
+        clean();
+    }
+
+
+    /**
+     * remove the files of a test
+     */
+    public void tearDown() {
+        clean();
+    }
+
+
+    /**
+     * Appends merged lazily and then compacted give what sorting everything
+     * at once gives, with equal keys still in the order they arrived
+     * @throws IOException
+     */
+    public void testAppendThenCompact() throws IOException {
+        writeRecords(DATA, 3000);
+        Externalsort.sort(DATA, "incRuns.bin", DATA + ".sorted", options);
+        Files.move(Paths.get(DATA + ".sorted"), Paths.get(DATA),
+            StandardCopyOption.REPLACE_EXISTING);
+
+        IncrementalSort sorted = new IncrementalSort(DATA, options);
+        int[] sizes = { 700, 90, 90, 400, 10, 10, 10, 10, 10, 2000, 5 };
+        for (int size : sizes) {
+            writeRecords(DELTA, size);
+            sorted.append(DELTA);
+            assertTrue(sorted.segments() <= options.getFanIn());
+        }
+        // a reopened manifest picks up where the last append left off
+        sorted = new IncrementalSort(DATA, options);
+        assertEquals(nextID, sorted.getRecordCount());
+        writeRecords(DELTA, 300);
+        sorted.append(DELTA);
+
+        BlockSample sample = sorted.compact(null);
+        assertEquals(1, sorted.segments());
+        assertEquals(sample.toString(), expected().toString());
+        assertTrue(Arrays.equals(ByteFile.readAll(ALL + ".sorted"), ByteFile
+            .readAll(DATA)));
+        String[] left = new File(".").list((dir, name) -> name.startsWith(
+            DATA));
+        Arrays.sort(left);
+        assertEquals("[incData.bin, incData.bin.segments]", Arrays.toString(
+            left));
+    }
+
+
+    /**
+     * compact() with new records sorts them and merges them into the data
+     * file in one merge
+     * @throws IOException
+     */
+    public void testCompactWithDelta() throws IOException {
+        writeRecords(DELTA, 2500);
+        IncrementalSort sorted = new IncrementalSort(DATA, options);
+        sorted.append(DELTA);
+        writeRecords(DELTA, 4000);
+        sorted.compact(DELTA);
+        expected();
+        assertTrue(Arrays.equals(ByteFile.readAll(ALL + ".sorted"), ByteFile
+            .readAll(DATA)));
+        assertFalse(new File(DATA + ".seg0").exists());
+    }
+
+
+    /**
+     * Segments written under one order are not mixed with another
+     * @throws IOException
+     */
+    public void testOtherOptions() throws IOException {
+        writeRecords(DELTA, 100);
+        new IncrementalSort(DATA, options).append(DELTA);
+        options.setSortOrder(SortOrder.DESCENDING);
+        try {
+            new IncrementalSort(DATA, options);
+            fail("expected IOException");
+        }
+        catch (IOException e) {
+            assertTrue(e.getMessage().contains("other sort options"));
+        }
+        options.setReduction(Reduction.COUNT_PER_KEY);
+        try {
+            new IncrementalSort(DATA, options);
+            fail("expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("Counts"));
+        }
+    }
+
+
+    /**
+     * Sort every record written so far in one go.
+     */
+    private BlockSample expected() throws IOException {
+        return Externalsort.sort(ALL, "incRuns.bin", ALL + ".sorted",
+            options);
+    }
+
+
+    /**
+     * Write count records with few distinct keys to name, and append them
+     * to the file of every record written.
+     */
+    private void writeRecords(String name, int count) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(count * Record.BYTES);
+        while (bb.hasRemaining()) {
+            bb.putLong(nextID++);
+            bb.putDouble(rng.nextInt(50));
+        }
+        Files.write(Paths.get(name), bb.array());
+        FileOutputStream all = new FileOutputStream(ALL, true);
+        all.write(bb.array());
+        all.close();
+    }
+
+
+    private void clean() {
+        for (String name : new File(".").list()) {
+            if (name.startsWith("inc")) {
+                new File(name).delete();
+            }
+        }
+    }
+}
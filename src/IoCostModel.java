@@ -0,0 +1,354 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * What a read costs on the device under a spill directory, measured once
+ * and kept, and the merge plan it leads to. A merge pass reads every run
+ * piecewise, a read per run every so many blocks, and writes the merged
+ * runs back out in order. So a pass over D bytes read r bytes at a time
+ * costs about
+ *
+ * <pre>
+ * D / r * latency + 2 * D / bandwidth
+ * </pre>
+ *
+ * and a merge of R runs fanIn ways takes log_fanIn(R) passes, rounded up.
+ * Wider merges make fewer passes but, with memory fixed, smaller reads, so
+ * a disk that seeks for milliseconds wants few runs read in big pieces and
+ * a solid state drive wants as many runs as memory holds.
+ *
+ * The latency and bandwidth are measured by writing a scratch file in the
+ * directory and timing random reads of a block and of READ_MAX bytes
+ * around the page cache, and reading it through in order. They are kept in
+ * the directory's .externalsort-io file:
+ *
+ * <pre>
+ * externalsort-io 1
+ * latency SECONDS bandwidth BYTES_PER_SECOND
+ * </pre>
+ *
+ * so only the first sort there pays for measuring. Deleting the file
+ * measures again.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class IoCostModel {
+    /**
+     * name of the file a directory's measurements are kept in
+     */
+    public static final String CACHE = ".externalsort-io";
+    /**
+     * largest read a plan asks for, in blocks
+     */
+    public static final int READ_MAX = 32;
+
+    private static final String HEADER = "externalsort-io 1";
+    private static final String PROBE = ".externalsort-io.probe";
+    private static final int PROBE_BYTES = 32 << 20;
+    private static final int SAMPLES = 48;
+
+    private double latency;
+    private double bandwidth;
+
+    /**
+     * Create a model of a device.
+     *
+     * @param latency
+     *            seconds a read waits before its first byte arrives
+     * @param bandwidth
+     *            bytes per second read or written in order
+     */
+    public IoCostModel(double latency, double bandwidth) {
+        this.latency = latency;
+        this.bandwidth = bandwidth;
+    }
+
+
+    /**
+     * @return seconds a read waits before its first byte arrives
+     */
+    public double getLatency() {
+        return latency;
+    }
+
+
+    /**
+     * @return bytes per second read or written in order
+     */
+    public double getBandwidth() {
+        return bandwidth;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Model the device under a directory, from its cache file if there is
+     * one and by measuring it, then writing the cache file, if not.
+     *
+     * @param dir
+     *            directory to model
+     * @return the model
+     * @throws IOException
+     */
+    public static IoCostModel of(String dir) throws IOException {
+        File cache = new File(dir, CACHE);
+        if (cache.exists()) {
+            BufferedReader reader = new BufferedReader(new FileReader(cache,
+                StandardCharsets.UTF_8));
+            try {
+                String[] fields = HEADER.equals(reader.readLine())
+                    ? String.valueOf(reader.readLine()).split(" ")
+                    : new String[0];
+                if (fields.length == 4 && fields[0].equals("latency")
+                    && fields[2].equals("bandwidth")) {
+                    return new IoCostModel(Double.parseDouble(fields[1]),
+                        Double.parseDouble(fields[3]));
+                }
+            }
+            catch (NumberFormatException e) {
+                // measure again
+            }
+            finally {
+                reader.close();
+            }
+        }
+        IoCostModel model = measure(dir);
+        model.save(cache);
+        return model;
+    }
+
+
+    /**
+     * Model the slowest of the devices a sort spills to: its spill
+     * directories, or the directory of its runs file when it has none.
+     *
+     * @param runsFile
+     *            name of the runs file
+     * @param options
+     *            options naming the spill directories
+     * @return the highest latency and lowest bandwidth among them
+     * @throws IOException
+     */
+    public static IoCostModel of(String runsFile, SortOptions options)
+        throws IOException {
+        IoCostModel slowest = null;
+        for (String path : SpillFiles.paths(runsFile, options)) {
+            String dir = new File(path).getAbsoluteFile().getParent();
+            IoCostModel model = of(dir);
+            slowest = slowest == null
+                ? model
+                : new IoCostModel(Math.max(slowest.latency, model.latency),
+                    Math.min(slowest.bandwidth, model.bandwidth));
+        }
+        return slowest;
+    }
+
+
+    /**
+     * Measure the device under a directory with a scratch file read around
+     * the page cache. Where the file system does not take O_DIRECT the
+     * reads come out of the cache, and so does the model.
+     *
+     * @param dir
+     *            directory to measure
+     * @return the model
+     * @throws IOException
+     */
+    static IoCostModel measure(String dir) throws IOException {
+        String probe = new File(dir, PROBE).getPath();
+        Random rng = new Random(3114);
+        DirectFile file = new DirectFile(probe, "rw");
+        try {
+            file.setLength(0);
+            ByteBuffer chunk = ByteBuffer.allocateDirect(1 << 20);
+            byte[] bytes = new byte[chunk.capacity()];
+            for (long at = 0; at < PROBE_BYTES; at += bytes.length) {
+                rng.nextBytes(bytes);
+                chunk.clear();
+                chunk.put(bytes).flip();
+                file.write(chunk, at);
+            }
+            DirectFile.sync(file);
+
+            int small = ByteFile.BYTES_PER_BLOCK;
+            int large = READ_MAX * ByteFile.BYTES_PER_BLOCK;
+            double smallTime = readTime(file, small, rng);
+            double largeTime = readTime(file, large, rng);
+
+            long start = System.nanoTime();
+            for (long at = 0; at < PROBE_BYTES; at += chunk.capacity()) {
+                chunk.clear();
+                file.read(chunk, at);
+            }
+            double bandwidth = PROBE_BYTES / Math.max(1e-9, (System
+                .nanoTime() - start) / 1e9);
+
+            // a read of r bytes takes latency + r / (random transfer rate)
+            double perByte = Math.max(0, (largeTime - smallTime) / (large
+                - small));
+            double latency = Math.max(0, smallTime - small * perByte);
+            return new IoCostModel(latency, bandwidth);
+        }
+        finally {
+            file.close();
+            new File(probe).delete();
+        }
+    }
+
+
+    /**
+     * @return the median seconds of reads of length bytes at random block
+     *         boundaries in the file
+     */
+    private static double readTime(DirectFile file, int length, Random rng)
+        throws IOException {
+        ByteBuffer into = ByteBuffer.allocateDirect(length);
+        int slots = (PROBE_BYTES - length) / ByteFile.BYTES_PER_BLOCK;
+        double[] times = new double[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            long at = (long)rng.nextInt(slots) * ByteFile.BYTES_PER_BLOCK;
+            into.clear();
+            long start = System.nanoTime();
+            file.read(into, at);
+            times[i] = (System.nanoTime() - start) / 1e9;
+        }
+        Arrays.sort(times);
+        return times[SAMPLES / 2];
+    }
+
+
+    /**
+     * Keep the model in a cache file, written whole or not at all.
+     */
+    private void save(File cache) throws IOException {
+        String temp = cache.getPath() + ".tmp";
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write((HEADER + "\nlatency " + latency + " bandwidth "
+                + bandwidth + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        finally {
+            out.close();
+        }
+        try {
+            Files.move(Paths.get(temp), cache.toPath(),
+                StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(Paths.get(temp), cache.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Estimate the seconds a merge of runs takes.
+     *
+     * @param runs
+     *            runs to merge
+     * @param bytes
+     *            bytes they hold
+     * @param fanIn
+     *            runs merged at once
+     * @param readBlocks
+     *            blocks of a run read at once
+     * @return seconds for every pass, the last one included
+     */
+    public double mergeCost(int runs, long bytes, int fanIn, int readBlocks) {
+        double reads = (double)bytes / ((long)readBlocks
+            * ByteFile.BYTES_PER_BLOCK);
+        return passes(runs, fanIn) * (reads * latency + 2 * bytes
+            / bandwidth);
+    }
+
+
+    /**
+     * @param runs
+     *            runs to merge
+     * @param fanIn
+     *            runs merged at once
+     * @return the passes a balanced merge makes, the last one included
+     */
+    public static int passes(int runs, int fanIn) {
+        int passes = 0;
+        for (long left = runs; left > 1; left = (left + fanIn - 1) / fanIn) {
+            passes++;
+        }
+        return passes;
+    }
+
+
+    /**
+     * Pick the fan-in and read size that merge runs cheapest in the memory
+     * options allow, and read ahead enough for every run to have a read
+     * waiting. A merge holds per run a block, its read ahead and the
+     * decoded records of its current read, and must leave a pooled block
+     * for the output of every stripe.
+     *
+     * @param runs
+     *            runs about to be merged
+     * @param options
+     *            options to plan for
+     * @return a copy of options with fan-in, read size and read ahead set
+     */
+    public SortOptions plan(RunTable runs, SortOptions options) {
+        long bytes = 0;
+        for (int i = 0; i < runs.size(); i++) {
+            bytes += runs.getLength(i) * Record.BYTES;
+        }
+        long perBlock = ByteFile.BYTES_PER_BLOCK;
+        long most = Math.max(2, runs.size());
+        if (options.getBufferPool() != null) {
+            int stripes = options.getSpillDirs() == null
+                ? 1
+                : Math.max(1, options.getSpillDirs().length);
+            most = Math.min(most, options.getBufferPool().capacity()
+                - stripes);
+        }
+        int bestFanIn = 2;
+        int bestRead = 1;
+        double best = Double.MAX_VALUE;
+        for (int read = 1; read <= READ_MAX; read *= 2) {
+            long perRun = (1 + 2L * read) * perBlock;
+            long fit = Math.min(most, options.getMemoryBytes() / perRun);
+            for (int fanIn = 2; fanIn <= fit; fanIn++) {
+                double cost = mergeCost(runs.size(), bytes, fanIn, read);
+                if (cost < best) {
+                    best = cost;
+                    bestFanIn = fanIn;
+                    bestRead = read;
+                }
+            }
+        }
+        SortOptions planned = new SortOptions(options);
+        planned.setFanIn(bestFanIn);
+        planned.setReadBlocks(bestRead);
+        if (options.getPrefetchBlocks() > 0) {
+            planned.setPrefetchBlocks(bestFanIn * bestRead);
+        }
+        return planned;
+    }
+
+
+    /**
+     * @return the model as "latency L s, bandwidth B MB/s"
+     */
+    @Override
+    public String toString() {
+        return "latency " + latency + " s, bandwidth " + bandwidth / (1 << 20)
+            + " MB/s";
+    }
+}
@@ -0,0 +1,132 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import student.TestCase;
+
+/**
+ * Tests for IoCostModel and the merges it plans.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class IoCostModelTest extends TestCase {
+    private static final String INPUT = "costInput.bin";
+    private static final String RUNS = "costRuns.bin";
+    private static final String OUTPUT = "costOutput.bin";
+    private static final String DIR = "costDir";
+
+    /**
+     * set up for tests
+     */
+    public void setUp() {
+        new File(DIR).mkdir();
+    }
+
+
+    /**
+     * remove the files of a test
+     */
+    public void tearDown() {
+        new File(INPUT).delete();
+        new File(RUNS).delete();
+        new File(OUTPUT).delete();
+        new File(IoCostModel.CACHE).delete();
+        new File(DIR, IoCostModel.CACHE).delete();
+        new File(DIR).delete();
+    }
+
+
+    /**
+     * A balanced merge makes a pass per power of the fan-in
+     */
+    public void testPasses() {
+        assertEquals(0, IoCostModel.passes(1, 8));
+        assertEquals(1, IoCostModel.passes(8, 8));
+        assertEquals(2, IoCostModel.passes(9, 8));
+        assertEquals(2, IoCostModel.passes(64, 8));
+        assertEquals(3, IoCostModel.passes(65, 8));
+    }
+
+
+    /**
+     * A seeking disk gets big reads and a narrow merge, a fast drive small
+     * reads and one wide pass, both in the memory given
+     */
+    public void testPlanFitsDevice() {
+        RunTable runs = new RunTable();
+        for (int i = 0; i < 1000; i++) {
+            runs.add(0, 128 * ByteFile.RECORDS_PER_BLOCK);
+        }
+        SortOptions options = new SortOptions();
+        SortOptions disk = new IoCostModel(8e-3, 150e6).plan(runs, options);
+        SortOptions flash = new IoCostModel(5e-6, 3e9).plan(runs, options);
+        assertEquals(IoCostModel.READ_MAX, disk.getReadBlocks());
+        assertEquals(2, IoCostModel.passes(1000, disk.getFanIn()));
+        assertEquals(1000, flash.getFanIn());
+        assertTrue(flash.getReadBlocks() < disk.getReadBlocks());
+        for (SortOptions plan : new SortOptions[] { disk, flash }) {
+            assertTrue((long)plan.getFanIn() * (1 + 2 * plan.getReadBlocks())
+                * ByteFile.BYTES_PER_BLOCK <= options.getMemoryBytes());
+            assertEquals(plan.getFanIn() * plan.getReadBlocks(), plan
+                .getPrefetchBlocks());
+        }
+        assertEquals(SortOptions.DEFAULT_FAN_IN, options.getFanIn());
+    }
+
+
+    /**
+     * A directory is measured once and its cache file read after that
+     * @throws IOException
+     */
+    public void testCache() throws IOException {
+        IoCostModel measured = IoCostModel.of(DIR);
+        assertTrue(measured.getBandwidth() > 0);
+        assertTrue(measured.getLatency() >= 0);
+        assertTrue(new File(DIR, IoCostModel.CACHE).exists());
+        assertEquals(1, new File(DIR).list().length);
+
+        writeCache(DIR, "latency 0.005 bandwidth 1.0E8");
+        IoCostModel cached = IoCostModel.of(DIR);
+        assertEquals(0.005, cached.getLatency(), 0);
+        assertEquals(1e8, cached.getBandwidth(), 0);
+
+        writeCache(DIR, "latency soon bandwidth lots");
+        assertTrue(IoCostModel.of(DIR).getBandwidth() > 0);
+    }
+
+
+    /**
+     * A planned merge, reading several blocks of a run at a time, sorts
+     * the same as the default one
+     * @throws IOException
+     */
+    public void testCalibratedSort() throws IOException {
+        new ByteFile(INPUT, 60).writeRandomRecords(new Random(3114));
+        SortOptions options = new SortOptions();
+        options.setTieBreak(TieBreak.ID);
+        options.setHeapBlocks(1);
+        options.setFanIn(3);
+        Externalsort.sort(INPUT, RUNS, OUTPUT, options);
+        byte[] expected = ByteFile.readAll(OUTPUT);
+
+        options.setReadBlocks(4);
+        Externalsort.sort(INPUT, RUNS, OUTPUT, options);
+        assertTrue(Arrays.equals(expected, ByteFile.readAll(OUTPUT)));
+
+        writeCache(".", "latency 0.008 bandwidth 1.5E8");
+        Externalsort.parseOptions(new String[] { "--calibrate" }, 0,
+            options);
+        options.setMemoryBytes(1 << 20);
+        Externalsort.sort(INPUT, RUNS, OUTPUT, options);
+        assertTrue(Arrays.equals(expected, ByteFile.readAll(OUTPUT)));
+    }
+
+
+    private void writeCache(String dir, String line) throws IOException {
+        FileWriter out = new FileWriter(new File(dir, IoCostModel.CACHE));
+        out.write("externalsort-io 1\n" + line + "\n");
+        out.close();
+    }
+}
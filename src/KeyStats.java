@@ -0,0 +1,495 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Statistics on the keys of a sorted file, gathered while the final merge
+ * writes it and kept in a sidecar next to it, so a query engine can prune
+ * blocks and plan parallel scans without reading the data:
+ * <ul>
+ * <li>a zone map: the smallest and largest key of every block</li>
+ * <li>the record count</li>
+ * <li>a histogram counting keys exactly, in buckets of a sixteenth of a
+ * power of two, so each bucket is as fine relative to its keys as any
+ * other</li>
+ * <li>a quantile sketch: a hierarchy of compactors, as in the KLL sketch,
+ * that answers rank queries within about 1% while holding a few thousand
+ * keys however long the file</li>
+ * </ul>
+ *
+ * Keys are compared as SortOrder.sortable() compares them, so -0.0 and NaN
+ * have a place. The sidecar, F.stats for file F, streams the zone map out
+ * as blocks are finished and ends with a footer, like a columnar file:
+ *
+ * <pre>
+ * zone map        blocks x (min key, max key), doubles
+ * histogram       entries x (first key of bucket, count)
+ * sketch          keys x (key, weight)
+ * footer          records, blocks, smallest and largest key,
+ *                 histogram entries, sketch keys, magic
+ * </pre>
+ *
+ * ByteFile has the readers.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class KeyStats {
+    /**
+     * suffix added to a sorted file's name to name its sidecar
+     */
+    public static final String SUFFIX = ".stats";
+
+    private static final long MAGIC = 0x4b45595354415431L; // "KEYSTAT1"
+    private static final int FOOTER_BYTES = 7 * Long.BYTES;
+    private static final int ZONE_BYTES = 2 * Double.BYTES;
+    private static final int BUCKET_SHIFT = 48; // sign, exponent, 4 bits
+    private static final int BUCKETS = 1 << (Long.SIZE - BUCKET_SHIFT);
+    private static final int COMPACTOR = 256; // keys a level holds
+
+    private long records;
+    private long blocks;
+    private long min = SortOrder.sortable(Double.NaN); // sortable keys
+    private long max = SortOrder.sortable(Double.NaN);
+    private long[] histogramLows; // first sortable key of each bucket
+    private long[] histogramCounts;
+    private long[] sketchKeys; // sortable keys, ascending
+    private long[] sketchWeights;
+
+    // while writing
+    private String path;
+    private DataOutputStream zones;
+    private long[] buckets;
+    private long[][] levels;
+    private int[] levelSizes;
+    private int inBlock;
+    private long blockMin;
+    private long blockMax;
+    private int flips; // alternates which half a compaction keeps
+
+    // ----------------------------------------------------------
+    /**
+     * Start gathering statistics for a file about to be written.
+     *
+     * @param sortedFile
+     *            file the records are written to
+     * @throws IOException
+     */
+    public KeyStats(String sortedFile) throws IOException {
+        this.path = sortedFile + SUFFIX;
+        this.zones = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(path + ".tmp"), 1 << 16));
+        this.buckets = new long[BUCKETS];
+        this.levels = new long[1][COMPACTOR];
+        this.levelSizes = new int[1];
+    }
+
+
+    private KeyStats() {
+        // filled in by read()
+    }
+
+
+    /**
+     * Count the next record's key. Called once per record, in file order.
+     *
+     * @param key
+     *            record key
+     * @throws IOException
+     */
+    public void add(double key) throws IOException {
+        long sortable = SortOrder.sortable(key);
+        if (inBlock == 0 || sortable < blockMin) {
+            blockMin = sortable;
+            if (records == 0 || sortable < min) {
+                min = sortable;
+            }
+        }
+        if (inBlock == 0 || sortable > blockMax) {
+            blockMax = sortable;
+            if (records == 0 || sortable > max) {
+                max = sortable;
+            }
+        }
+        buckets[bucket(sortable)]++;
+        long[] level = levels[0];
+        level[levelSizes[0]++] = sortable;
+        if (levelSizes[0] == COMPACTOR) {
+            compact(0);
+        }
+        records++;
+        if (++inBlock == ByteFile.RECORDS_PER_BLOCK) {
+            endBlock();
+        }
+    }
+
+
+    private void endBlock() throws IOException {
+        writeKey(blockMin);
+        writeKey(blockMax);
+        blocks++;
+        inBlock = 0;
+    }
+
+
+    /**
+     * Halve a full level: sort it and promote every other key, at twice
+     * the weight, to the level above.
+     */
+    private void compact(int h) {
+        if (h + 1 == levels.length) {
+            levels = Arrays.copyOf(levels, h + 2);
+            levels[h + 1] = new long[COMPACTOR];
+            levelSizes = Arrays.copyOf(levelSizes, h + 2);
+        }
+        long[] level = levels[h];
+        Arrays.sort(level, 0, levelSizes[h]);
+        long[] up = levels[h + 1];
+        for (int i = (flips++) & 1; i < levelSizes[h]; i += 2) {
+            up[levelSizes[h + 1]++] = level[i];
+        }
+        levelSizes[h] = 0;
+        if (levelSizes[h + 1] == COMPACTOR) {
+            compact(h + 1);
+        }
+    }
+
+
+    /**
+     * Write the rest of the sidecar: the last block's zone, the histogram,
+     * the sketch and the footer. Until this is done the sidecar is only a
+     * temporary file.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        if (inBlock > 0) {
+            endBlock();
+        }
+        summarize();
+        for (int i = 0; i < histogramLows.length; i++) {
+            writeKey(histogramLows[i]);
+            zones.writeLong(histogramCounts[i]);
+        }
+        for (int i = 0; i < sketchKeys.length; i++) {
+            writeKey(sketchKeys[i]);
+            zones.writeLong(sketchWeights[i]);
+        }
+        zones.writeLong(records);
+        zones.writeLong(blocks);
+        writeKey(min);
+        writeKey(max);
+        zones.writeLong(histogramLows.length);
+        zones.writeLong(sketchKeys.length);
+        zones.writeLong(MAGIC);
+        zones.close();
+        zones = null;
+        try {
+            Files.move(Paths.get(path + ".tmp"), Paths.get(path),
+                StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(Paths.get(path + ".tmp"), Paths.get(path),
+                StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+
+    /**
+     * Give up on a sidecar that was not finished, removing its temporary
+     * file.
+     *
+     * @throws IOException
+     */
+    public void abandon() throws IOException {
+        if (zones != null) {
+            zones.close();
+            zones = null;
+            new File(path + ".tmp").delete();
+        }
+    }
+
+
+    /**
+     * Turn the histogram into its non-empty buckets and the compactors
+     * into one list of keys and weights.
+     */
+    private void summarize() {
+        int used = 0;
+        for (long count : buckets) {
+            used += count > 0 ? 1 : 0;
+        }
+        histogramLows = new long[used];
+        histogramCounts = new long[used];
+        for (int b = 0, i = 0; b < BUCKETS; b++) {
+            if (buckets[b] > 0) {
+                histogramLows[i] = (long)(b - BUCKETS / 2) << BUCKET_SHIFT;
+                histogramCounts[i++] = buckets[b];
+            }
+        }
+
+        int held = 0;
+        for (int size : levelSizes) {
+            held += size;
+        }
+        Integer[] order = new Integer[held];
+        long[] keys = new long[held];
+        long[] weights = new long[held];
+        for (int h = 0, i = 0; h < levels.length; h++) {
+            for (int j = 0; j < levelSizes[h]; j++, i++) {
+                keys[i] = levels[h][j];
+                weights[i] = 1L << h;
+                order[i] = i;
+            }
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(keys[a], keys[b]));
+        sketchKeys = new long[held];
+        sketchWeights = new long[held];
+        for (int i = 0; i < held; i++) {
+            sketchKeys[i] = keys[order[i]];
+            sketchWeights[i] = weights[order[i]];
+        }
+    }
+
+
+    /**
+     * Write a key given as its sortable form, keeping the bits of a NaN.
+     */
+    private void writeKey(long sortable) throws IOException {
+        zones.writeLong(Double.doubleToRawLongBits(SortOrder.unsortable(
+            sortable)));
+    }
+
+
+    private static int bucket(long sortable) {
+        return (int)((sortable >> BUCKET_SHIFT) + BUCKETS / 2);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Read the summary of a sidecar: everything but the zone map, which
+     * readZones() reads a piece at a time.
+     *
+     * @param sortedFile
+     *            file the statistics describe
+     * @return its statistics
+     * @throws IOException
+     *             if there is no finished sidecar
+     */
+    static KeyStats read(String sortedFile) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(sortedFile + SUFFIX),
+            StandardOpenOption.READ);
+        try {
+            ByteBuffer footer = footer(channel, sortedFile);
+            KeyStats stats = new KeyStats();
+            stats.records = footer.getLong();
+            stats.blocks = footer.getLong();
+            stats.min = SortOrder.sortable(footer.getDouble());
+            stats.max = SortOrder.sortable(footer.getDouble());
+            int buckets = (int)footer.getLong();
+            int keys = (int)footer.getLong();
+            ByteBuffer tables = readFully(channel, stats.blocks * ZONE_BYTES,
+                (buckets + keys) * 2 * Long.BYTES);
+            stats.histogramLows = new long[buckets];
+            stats.histogramCounts = new long[buckets];
+            for (int i = 0; i < buckets; i++) {
+                stats.histogramLows[i] = SortOrder.sortable(tables
+                    .getDouble());
+                stats.histogramCounts[i] = tables.getLong();
+            }
+            stats.sketchKeys = new long[keys];
+            stats.sketchWeights = new long[keys];
+            for (int i = 0; i < keys; i++) {
+                stats.sketchKeys[i] = SortOrder.sortable(tables.getDouble());
+                stats.sketchWeights[i] = tables.getLong();
+            }
+            return stats;
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+
+    /**
+     * Read part of a sidecar's zone map.
+     *
+     * @param sortedFile
+     *            file the statistics describe
+     * @param first
+     *            first block wanted
+     * @param count
+     *            blocks wanted
+     * @return the smallest and largest key of each block, interleaved;
+     *         shorter if the file has fewer blocks
+     * @throws IOException
+     */
+    static double[] readZones(String sortedFile, long first, int count)
+        throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(sortedFile + SUFFIX),
+            StandardOpenOption.READ);
+        try {
+            long blocks = footer(channel, sortedFile).getLong(Long.BYTES);
+            int wanted = (int)Math.max(0, Math.min(count, blocks - first));
+            ByteBuffer zones = readFully(channel, first * ZONE_BYTES, wanted
+                * ZONE_BYTES);
+            double[] minMax = new double[2 * wanted];
+            zones.asDoubleBuffer().get(minMax);
+            return minMax;
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+
+    /**
+     * @return the sidecar's footer, checked
+     */
+    private static ByteBuffer footer(FileChannel channel, String sortedFile)
+        throws IOException {
+        long size = channel.size();
+        if (size < FOOTER_BYTES) {
+            throw new IOException("No statistics for " + sortedFile);
+        }
+        ByteBuffer footer = readFully(channel, size - FOOTER_BYTES,
+            FOOTER_BYTES);
+        if (footer.getLong(FOOTER_BYTES - Long.BYTES) != MAGIC) {
+            throw new IOException("No statistics for " + sortedFile);
+        }
+        return footer;
+    }
+
+
+    private static ByteBuffer readFully(
+        FileChannel channel,
+        long position,
+        int bytes)
+        throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(0, bytes));
+        while (buffer.hasRemaining() && channel.read(buffer, position
+            + buffer.position()) > 0) {
+            // keep reading until it is all in
+        }
+        if (buffer.hasRemaining()) {
+            throw new IOException("Statistics file is cut short");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * @return the number of records in the file
+     */
+    public long getRecords() {
+        return records;
+    }
+
+
+    /**
+     * @return the number of blocks in the zone map
+     */
+    public long getBlocks() {
+        return blocks;
+    }
+
+
+    /**
+     * @return the smallest key, NaN if there are none
+     */
+    public double getMin() {
+        return SortOrder.unsortable(min);
+    }
+
+
+    /**
+     * @return the largest key, NaN if there are none
+     */
+    public double getMax() {
+        return SortOrder.unsortable(max);
+    }
+
+
+    /**
+     * @return the smallest key in each non-empty histogram bucket's range,
+     *         ascending
+     */
+    public double[] getHistogramLows() {
+        double[] lows = new double[histogramLows.length];
+        for (int i = 0; i < lows.length; i++) {
+            lows[i] = SortOrder.unsortable(histogramLows[i]);
+        }
+        return lows;
+    }
+
+
+    /**
+     * @return the number of keys in each non-empty histogram bucket, in
+     *         the order of getHistogramLows()
+     */
+    public long[] getHistogramCounts() {
+        return histogramCounts.clone();
+    }
+
+
+    /**
+     * Estimate the key at a fraction of the way through the keys in
+     * ascending order.
+     *
+     * @param fraction
+     *            0 for the smallest key, 1 for the largest
+     * @return the key, or NaN if there are none
+     */
+    public double quantile(double fraction) {
+        if (fraction <= 0) {
+            return getMin();
+        }
+        if (fraction >= 1) {
+            return getMax();
+        }
+        long total = 0;
+        for (long weight : sketchWeights) {
+            total += weight;
+        }
+        long rank = (long)Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < sketchKeys.length; i++) {
+            seen += sketchWeights[i];
+            if (seen >= rank) {
+                return SortOrder.unsortable(sketchKeys[i]);
+            }
+        }
+        return Double.NaN;
+    }
+
+
+    /**
+     * Estimate how many keys are below a key.
+     *
+     * @param key
+     *            key to rank
+     * @return the estimated number of smaller keys
+     */
+    public long rank(double key) {
+        long sortable = SortOrder.sortable(key);
+        long rank = 0;
+        for (int i = 0; i < sketchKeys.length && sketchKeys[i] < sortable;
+            i++) {
+            rank += sketchWeights[i];
+        }
+        return rank;
+    }
+}
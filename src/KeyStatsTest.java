@@ -0,0 +1,232 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import student.TestCase;
+
+/**
+ * Tests for KeyStats and the ByteFile readers of its sidecar.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class KeyStatsTest extends TestCase {
+    private static final String INPUT = "statsInput.bin";
+    private static final String RUNS = "statsRuns.bin";
+    private static final String OUTPUT = "statsOutput.bin";
+
+    private SortOptions options;
+
+    /**
+     * set up for tests
+     * @throws IOException
+     */
+    public void setUp() throws IOException {
+        new ByteFile(INPUT, 40).writeRandomRecords(new Random(3114));
+        options = new SortOptions();
+        options.setHeapBlocks(2);
+        options.setKeyStats(true);
+    }
+
+
+    /**
+     * remove the files of a test
+     */
+    public void tearDown() {
+        new File(INPUT).delete();
+        new File(RUNS).delete();
+        new File(OUTPUT).delete();
+        new File(OUTPUT + KeyStats.SUFFIX).delete();
+        new File(OUTPUT + ShardedOutput.SUFFIX).delete();
+        for (int n = 0; new File(OUTPUT + ".shard" + n).delete(); n++) {
+            new File(OUTPUT + ".shard" + n + KeyStats.SUFFIX).delete();
+        }
+    }
+
+
+    /**
+     * The zone map, histogram and sketch of a sorted file agree with its
+     * records
+     * @throws IOException
+     */
+    public void testSortedOutput() throws IOException {
+        Externalsort.sort(INPUT, RUNS, OUTPUT, options);
+        double[] keys = keys(OUTPUT);
+        KeyStats stats = ByteFile.readKeyStats(OUTPUT);
+        assertEquals(keys.length, stats.getRecords());
+        assertEquals(40, stats.getBlocks());
+        checkZones(keys);
+        checkHistogram(stats, keys);
+        checkSketch(stats, keys);
+        assertFalse(new File(OUTPUT + KeyStats.SUFFIX + ".tmp").exists());
+    }
+
+
+    /**
+     * Sorted by ID, blocks' keys are not in order, and the zone map still
+     * bounds them
+     * @throws IOException
+     */
+    public void testUnorderedKeys() throws IOException {
+        options.setSortOrder(SortOrder.ID);
+        Externalsort.sort(INPUT, RUNS, OUTPUT, options);
+        double[] keys = keys(OUTPUT);
+        checkZones(keys);
+        KeyStats stats = ByteFile.readKeyStats(OUTPUT);
+        checkHistogram(stats, keys);
+        checkSketch(stats, keys);
+    }
+
+
+    /**
+     * A sort that ends with a single run, which would otherwise be moved
+     * into place untouched, and the sample engine both write statistics
+     * @throws IOException
+     */
+    public void testEveryPath() throws IOException {
+        new ByteFile(INPUT, 1).writeRandomRecords(new Random(5));
+        Externalsort.sort(INPUT, RUNS, OUTPUT, options);
+        assertEquals(ByteFile.RECORDS_PER_BLOCK, ByteFile.readKeyStats(OUTPUT)
+            .getRecords());
+        checkZones(keys(OUTPUT));
+
+        new ByteFile(INPUT, 40).writeRandomRecords(new Random(6));
+        options.setEngine(SortEngine.SAMPLE);
+        Externalsort.sort(INPUT, RUNS, OUTPUT, options);
+        double[] keys = keys(OUTPUT);
+        checkZones(keys);
+        checkSketch(ByteFile.readKeyStats(OUTPUT), keys);
+    }
+
+
+    /**
+     * Each shard of a sharded output gets statistics of its own
+     * @throws IOException
+     */
+    public void testShards() throws IOException {
+        options.setShardCount(3);
+        Externalsort.sort(INPUT, RUNS, OUTPUT, options);
+        ArrayList<ShardedOutput.Shard> shards = ShardedOutput.read(OUTPUT,
+            options);
+        assertEquals(3, shards.size());
+        for (ShardedOutput.Shard shard : shards) {
+            KeyStats stats = ByteFile.readKeyStats(shard.getPath());
+            assertEquals(shard.getRecords(), stats.getRecords());
+            double[] zones = ByteFile.readZoneMap(shard.getPath(), 0, 1);
+            assertEquals(shard.getFirstKey(), zones[0], 0);
+        }
+    }
+
+
+    /**
+     * The sketch stays small and close over many unsorted keys
+     * @throws IOException
+     */
+    public void testSketchAccuracy() throws IOException {
+        Random rng = new Random(7);
+        double[] keys = new double[1 << 20];
+        KeyStats stats = new KeyStats(OUTPUT);
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = rng.nextGaussian();
+            stats.add(keys[i]);
+        }
+        stats.finish();
+        stats = ByteFile.readKeyStats(OUTPUT);
+        assertEquals(keys.length, stats.getRecords());
+        assertTrue(new File(OUTPUT + KeyStats.SUFFIX).length() < keys.length
+            / ByteFile.RECORDS_PER_BLOCK * 16 + 64 * 1024);
+        checkHistogram(stats, keys);
+        checkSketch(stats, keys);
+    }
+
+
+    /**
+     * A file without statistics is reported as such
+     */
+    public void testMissing() {
+        try {
+            ByteFile.readKeyStats(INPUT);
+            fail("read statistics that were never written");
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+
+
+    private void checkZones(double[] keys) throws IOException {
+        int blocks = (keys.length + ByteFile.RECORDS_PER_BLOCK - 1)
+            / ByteFile.RECORDS_PER_BLOCK;
+        double[] zones = ByteFile.readZoneMap(OUTPUT, 0, blocks + 5);
+        assertEquals(2 * blocks, zones.length);
+        for (int b = 0; b < blocks; b++) {
+            int from = b * ByteFile.RECORDS_PER_BLOCK;
+            double[] block = Arrays.copyOfRange(keys, from, Math.min(
+                keys.length, from + ByteFile.RECORDS_PER_BLOCK));
+            Arrays.sort(block);
+            assertEquals(block[0], zones[2 * b], 0);
+            assertEquals(block[block.length - 1], zones[2 * b + 1], 0);
+        }
+        double[] last = ByteFile.readZoneMap(OUTPUT, blocks - 1, 3);
+        assertEquals(2, last.length);
+    }
+
+
+    private void checkHistogram(KeyStats stats, double[] keys) {
+        double[] lows = stats.getHistogramLows();
+        long[] counts = stats.getHistogramCounts();
+        long total = 0;
+        for (int i = 0; i < lows.length; i++) {
+            double high = i + 1 < lows.length
+                ? lows[i + 1]
+                : Double.POSITIVE_INFINITY;
+            long inside = 0;
+            for (double key : keys) {
+                if (key >= lows[i] && key < high) {
+                    inside++;
+                }
+            }
+            assertEquals(inside, counts[i]);
+            total += counts[i];
+        }
+        assertEquals(keys.length, total);
+    }
+
+
+    /**
+     * Every decile, and the rank of each, within 2% of the truth.
+     */
+    private void checkSketch(KeyStats stats, double[] keys) {
+        double[] sorted = keys.clone();
+        Arrays.sort(sorted);
+        for (int d = 1; d < 10; d++) {
+            double key = stats.quantile(d / 10.0);
+            int rank = Arrays.binarySearch(sorted, key);
+            assertTrue(Math.abs(rank - d * sorted.length / 10) < sorted.length
+                / 50);
+            double truth = sorted[d * sorted.length / 10];
+            assertTrue(Math.abs(stats.rank(truth) - d * sorted.length / 10)
+                < sorted.length / 50);
+        }
+        assertEquals(sorted[0], stats.quantile(0), 0);
+        assertEquals(sorted[0], stats.getMin(), 0);
+        assertEquals(sorted[sorted.length - 1], stats.quantile(1), 0);
+    }
+
+
+    private double[] keys(String file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        byte[] bytes = new byte[(int)raf.length()];
+        raf.readFully(bytes);
+        raf.close();
+        ByteBuffer records = ByteBuffer.wrap(bytes);
+        double[] keys = new double[bytes.length / Record.BYTES];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = records.getDouble(i * Record.BYTES + Long.BYTES);
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,272 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.Future;
+
+/**
+ * Schedules the block reads of a k-way merge. Instead of each run blocking
+ * on its next block the moment it runs dry, spare buffers are filled ahead
+ * of time for the runs forecast to run dry first: as in Knuth's
+ * forecasting, the run whose latest block ends with the smallest key will
+ * need its next block soonest. Reads go out in batches sorted by stripe
+ * and offset, each stripe's on its own reader thread, so the disks see
+ * fewer, more sequential requests and merging overlaps reading.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+class MergeScheduler {
+    private static final int BATCHES = 4; // a batch is this part of spares
+
+    private SpillFiles input;
+    private SortOrder order;
+    private int count;
+    private int[] stripes;
+    private long[] nextPositions;
+    private long[] remaining;
+    private long[] forecasts; // last sort key of each run's newest block
+    private boolean[] pending; // newest block of each run still reading
+    private ArrayDeque<Read>[] queues; // blocks read or reading, in order
+    private ArrayDeque<Buffer> spares;
+    private int batchSize;
+    private long reads;
+    private long demandReads;
+
+    /**
+     * A block read of one run.
+     */
+    private static class Read {
+        private Buffer buffer;
+        private long position;
+        private int want;
+        private Future<Integer> done;
+    }
+
+
+    /**
+     * Start reading count consecutive runs.
+     *
+     * @param input
+     *            stripes holding the runs
+     * @param runs
+     *            the runs in input
+     * @param first
+     *            index of the first run merged
+     * @param count
+     *            runs merged
+     * @param blocks
+     *            a block per run to read into, or null to allocate them
+     * @param prefetch
+     *            spare blocks to read ahead into
+     * @param readBlocks
+     *            blocks of a run read in one I/O; spares are this many
+     *            blocks long
+     * @param order
+     *            order the runs are sorted in
+     * @throws IOException
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    MergeScheduler(
+        SpillFiles input,
+        RunTable runs,
+        int first,
+        int count,
+        ByteBuffer[] blocks,
+        int prefetch,
+        int readBlocks,
+        SortOrder order)
+        throws IOException {
+        this.input = input;
+        this.order = order;
+        this.count = count;
+        this.stripes = new int[count];
+        this.nextPositions = new long[count];
+        this.remaining = new long[count];
+        this.forecasts = new long[count];
+        this.pending = new boolean[count];
+        this.queues = new ArrayDeque[count];
+        this.spares = new ArrayDeque<Buffer>();
+        int read = Math.max(1, readBlocks);
+        int spareCount = (prefetch + read - 1) / read;
+        this.batchSize = Math.max(1, spareCount / BATCHES);
+
+        for (int i = 0; i < count; i++) {
+            stripes[i] = runs.getStripe(first + i);
+            nextPositions[i] = runs.getStart(first + i);
+            remaining[i] = runs.getLength(first + i);
+            queues[i] = new ArrayDeque<Read>();
+            spares.add(new Buffer(input.file(stripes[i]), 0, DirectBufferPool
+                .block(blocks, i)));
+        }
+        for (int i = 0; i < spareCount; i++) {
+            spares.add(new Buffer(input.file(0), 0, read
+                * ByteFile.BYTES_PER_BLOCK));
+        }
+        // every run needs its first block right away
+        for (int i = 0; i < count; i++) {
+            if (remaining[i] > 0) {
+                request(i);
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Take run i's next block, waiting for it if it is not read yet. Pass
+     * the block to recycle() once it has been decoded.
+     *
+     * @param i
+     *            which run
+     * @return the block, or null once the run is exhausted
+     * @throws IOException
+     *             also if the file ends before the run does
+     */
+    public Buffer take(int i) throws IOException {
+        if (queues[i].isEmpty()) {
+            if (remaining[i] == 0) {
+                return null;
+            }
+            demandReads++;
+            request(i);
+        }
+        Read read = queues[i].poll();
+        int got = SpillFiles.await(read.done);
+        if (got < read.want) {
+            throw new IOException("Run ends at byte " + (read.position + got)
+                + " of " + input.path(stripes[i]) + ", short of its length");
+        }
+        if (queues[i].isEmpty()) {
+            noteForecast(i, read.buffer);
+        }
+        schedule();
+        return read.buffer;
+    }
+
+
+    /**
+     * Hand back a block from take() for reuse.
+     *
+     * @param block
+     *            the block
+     */
+    public void recycle(Buffer block) {
+        spares.push(block);
+    }
+
+
+    /**
+     * @return the number of block reads issued
+     */
+    public long getReads() {
+        return reads;
+    }
+
+
+    /**
+     * @return how many of those a run had to wait for because nothing was
+     *         read ahead for it
+     */
+    public long getDemandReads() {
+        return demandReads;
+    }
+
+
+    /**
+     * Fill spare blocks for the runs forecast to need them first, keeping
+     * a spare back for every run that has nothing read ahead.
+     */
+    private void schedule() throws IOException {
+        int unread = 0;
+        for (int i = 0; i < count; i++) {
+            if (pending[i] && queues[i].peekLast().done.isDone()) {
+                SpillFiles.await(queues[i].peekLast().done);
+                pending[i] = false;
+                noteForecast(i, queues[i].peekLast().buffer);
+            }
+            if (queues[i].isEmpty() && remaining[i] > 0) {
+                unread++;
+            }
+        }
+        int budget = spares.size() - unread;
+        if (budget < batchSize) {
+            return; // wait until a whole batch can go out
+        }
+        int[] batch = new int[Math.min(budget, count)];
+        int size = 0;
+        while (size < batch.length) {
+            int next = -1;
+            for (int i = 0; i < count; i++) {
+                if (!pending[i] && remaining[i] > 0 && !picked(batch, size,
+                    i) && (next < 0 || forecasts[i] < forecasts[next])) {
+                    next = i;
+                }
+            }
+            if (next < 0) {
+                break;
+            }
+            batch[size++] = next;
+        }
+        // issue in file order so each reader sweeps its device once
+        for (int a = 1; a < size; a++) {
+            int run = batch[a];
+            int b = a - 1;
+            while (b >= 0 && (stripes[batch[b]] > stripes[run]
+                || (stripes[batch[b]] == stripes[run]
+                    && nextPositions[batch[b]] > nextPositions[run]))) {
+                batch[b + 1] = batch[b];
+                b--;
+            }
+            batch[b + 1] = run;
+        }
+        for (int a = 0; a < size; a++) {
+            request(batch[a]);
+        }
+    }
+
+
+    private static boolean picked(int[] batch, int size, int run) {
+        for (int a = 0; a < size; a++) {
+            if (batch[a] == run) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Queue the read of run i's next block, or blocks when the spare
+     * taken holds several, on its stripe's reader.
+     */
+    private void request(int i) throws IOException {
+        Read read = new Read();
+        read.buffer = spares.pop();
+        int want = (int)Math.min(read.buffer.recordCapacity(), remaining[i])
+            * Record.BYTES;
+        read.buffer.setFile(input.file(stripes[i]));
+        read.want = want;
+        read.position = nextPositions[i];
+        long position = nextPositions[i];
+        Buffer target = read.buffer;
+        read.done = input.submit(stripes[i], () -> target.load(position,
+            want));
+        nextPositions[i] += want;
+        remaining[i] -= want / Record.BYTES;
+        queues[i].add(read);
+        pending[i] = true;
+        reads++;
+    }
+
+
+    /**
+     * Remember the last sort key of a block just read for run i.
+     */
+    private void noteForecast(int i, Buffer block) {
+        pending[i] = false;
+        int last = block.loadedRecords() - 1;
+        forecasts[i] = last < 0
+            ? Long.MAX_VALUE
+            : order.sortKey(block.idAt(last), block.keyAt(last));
+    }
+}
@@ -0,0 +1,21 @@
+/**
+ * How the runs are merged down to the last merge into the output, see
+ * MultiwayMerge.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public enum MergeStrategy {
+    /**
+     * every pass merges each group of fanIn consecutive runs, ping-ponging
+     * between the runs file and one scratch file
+     */
+    BALANCED,
+    /**
+     * runs are dealt out over fanIn tapes in a Fibonacci distribution and
+     * merged onto one more, so each phase empties exactly one tape, which
+     * takes the next phase's output; fanIn + 1 scratch files in all, never
+     * copied just to redistribute runs
+     */
+    POLYPHASE
+}
@@ -0,0 +1,299 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A k-way merge of runs read one record at a time, in order. MultiwayMerge
+ * drains one into a RunWriter for each merge it makes; MultiwayMerge.stream()
+ * hands out its last merge as one, so a consumer can take the sorted
+ * records without them ever being written to an output file.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class MergeStream implements Closeable {
+    private Buffer[] runBuffers;
+    private long[] nextPositions;
+    private long[] remaining;
+    private long[][] blockIDs; // each run's current block, decoded
+    private double[][] blockKeys;
+    private int[] heads; // index of each run's next record in its block
+    private int[] loaded;
+    private MergeScheduler scheduler; // null when reading on demand
+    private DaryHeap heap;
+    private SortOrder order;
+    private TieBreak tieBreak;
+    private int current = -1; // run of the current record
+    private SpillFiles files;
+    private RunTable runs;
+    private int first;
+    private Closeable input; // closed with the stream, or null
+    private Runnable cleanup;
+
+    /**
+     * Start merging count consecutive runs starting at first. Run i is
+     * read into blocks[i], or a new block when blocks is null. With
+     * prefetch spare blocks, reads are left to a MergeScheduler,
+     * readBlocks blocks at a time; with none, each block is read when its
+     * run needs it.
+     *
+     * @param input
+     *            stripes holding the runs
+     * @param runs
+     *            the runs in input
+     * @param first
+     *            index of the first run merged
+     * @param count
+     *            runs merged
+     * @param blocks
+     *            a block per run to read into, or null to allocate them
+     * @param prefetch
+     *            spare blocks to read ahead into
+     * @param readBlocks
+     *            blocks of a run read ahead in one I/O
+     * @param order
+     *            order the runs are sorted in
+     * @param tieBreak
+     *            how records with equal sort keys are ordered
+     * @throws IOException
+     */
+    MergeStream(
+        SpillFiles input,
+        RunTable runs,
+        int first,
+        int count,
+        ByteBuffer[] blocks,
+        int prefetch,
+        int readBlocks,
+        SortOrder order,
+        TieBreak tieBreak)
+        throws IOException {
+        this.order = order;
+        this.tieBreak = tieBreak;
+        this.files = input;
+        this.runs = runs;
+        this.first = first;
+        int records = ByteFile.RECORDS_PER_BLOCK * (prefetch > 0
+            ? Math.max(1, readBlocks)
+            : 1);
+        blockIDs = new long[count][records];
+        blockKeys = new double[count][records];
+        heads = new int[count];
+        loaded = new int[count];
+        if (prefetch > 0) {
+            scheduler = new MergeScheduler(input, runs, first, count, blocks,
+                prefetch, readBlocks, order);
+        }
+        else {
+            runBuffers = new Buffer[count];
+            nextPositions = new long[count];
+            remaining = new long[count];
+            for (int i = 0; i < count; i++) {
+                nextPositions[i] = runs.getStart(first + i);
+                remaining[i] = runs.getLength(first + i);
+                runBuffers[i] = new Buffer(input.file(runs.getStripe(first
+                    + i)), nextPositions[i], DirectBufferPool.block(blocks, i));
+            }
+        }
+        heap = new DaryHeap(Math.max(1, count));
+        for (int i = 0; i < count; i++) {
+            if (loadNext(i)) {
+                long id = blockIDs[i][0];
+                double key = blockKeys[i][0];
+                heap.append(order.sortKey(id, key), tieBreak.tie(i, id, key),
+                    i);
+            }
+        }
+        heap.buildHeap();
+    }
+
+
+    /**
+     * Stream a file already sorted under options, as a merge of one run.
+     *
+     * @param sortedFile
+     *            the file
+     * @param options
+     *            order it is sorted in and how to read it
+     * @return its records in order; closing it closes the file
+     * @throws IOException
+     */
+    public static MergeStream of(String sortedFile, SortOptions options)
+        throws IOException {
+        SpillFiles input = new SpillFiles(new String[] { sortedFile }, "r",
+            options.isDirectIo());
+        try {
+            RunTable runs = new RunTable();
+            runs.add(0, ByteFile.recordCount(sortedFile));
+            MergeStream stream = new MergeStream(input, runs, 0, 1, null,
+                options.getPrefetchBlocks(), options.getReadBlocks(), options
+                    .getSortOrder(), options.effectiveTieBreak());
+            stream.closeWith(input, null);
+            return stream;
+        }
+        catch (IOException e) {
+            input.close();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Move to the next record in order. Each run's records are checked to
+     * be in order on the way, at the cost of a comparison each.
+     *
+     * @return false once every run is exhausted
+     * @throws IOException
+     *             also if a run is not sorted
+     */
+    public boolean next() throws IOException {
+        if (current >= 0) {
+            int i = current;
+            if (refill(i)) {
+                long id = blockIDs[i][heads[i]];
+                double key = blockKeys[i][heads[i]];
+                long sortKey = order.sortKey(id, key);
+                if (sortKey < heap.minKey()) {
+                    throw new IOException("Run at byte " + runs.getStart(first
+                        + i) + " of " + files.path(runs.getStripe(first + i))
+                        + " is not sorted");
+                }
+                heap.replaceMin(sortKey, tieBreak.tie(i, id, key), i);
+            }
+            else {
+                heap.removeMin();
+            }
+        }
+        if (heap.heapSize() == 0) {
+            current = -1;
+            return false;
+        }
+        current = (int)heap.minPayload();
+        return true;
+    }
+
+
+    /**
+     * @return the current record's ID
+     */
+    public long id() {
+        return blockIDs[current][heads[current]];
+    }
+
+
+    /**
+     * @return the current record's key
+     */
+    public double key() {
+        return blockKeys[current][heads[current]];
+    }
+
+
+    /**
+     * @return the current record's SortOrder sort key
+     */
+    public long sortKey() {
+        return heap.minKey();
+    }
+
+
+    /**
+     * @return the number of reads issued ahead of the merge
+     */
+    public long getReads() {
+        return scheduler == null ? 0 : scheduler.getReads();
+    }
+
+
+    /**
+     * @return how many of those reads a run had to wait on because nothing
+     *         was read ahead for it
+     */
+    public long getDemandReads() {
+        return scheduler == null ? 0 : scheduler.getDemandReads();
+    }
+
+
+    /**
+     * Close input, then run cleanup, when the stream is closed.
+     *
+     * @param files
+     *            files the stream reads, or null
+     * @param after
+     *            what to do once they are closed, or null
+     */
+    void closeWith(Closeable files, Runnable after) {
+        this.input = files;
+        this.cleanup = after;
+    }
+
+
+    /**
+     * Stop merging, closing what the stream was handed to close.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (input != null) {
+                input.close();
+                input = null;
+            }
+        }
+        finally {
+            if (cleanup != null) {
+                cleanup.run();
+                cleanup = null;
+            }
+        }
+    }
+
+
+    /**
+     * Move past run i's head record, reading its next block if needed.
+     *
+     * @return false once the run is exhausted
+     */
+    private boolean refill(int i) throws IOException {
+        heads[i]++;
+        return heads[i] < loaded[i] || loadNext(i);
+    }
+
+
+    /**
+     * Read run i's next block and decode it.
+     *
+     * @return false once the run is exhausted
+     */
+    private boolean loadNext(int i) throws IOException {
+        if (scheduler != null) {
+            Buffer block = scheduler.take(i);
+            if (block == null) {
+                return false;
+            }
+            loaded[i] = block.getRecords(blockIDs[i], blockKeys[i], 0);
+            scheduler.recycle(block);
+        }
+        else {
+            if (remaining[i] == 0) {
+                return false;
+            }
+            int want = (int)Math.min(ByteFile.BYTES_PER_BLOCK, remaining[i]
+                * Record.BYTES);
+            int read = runBuffers[i].load(nextPositions[i], want);
+            nextPositions[i] += read;
+            remaining[i] -= read / Record.BYTES;
+            if (read < want) {
+                throw new IOException("Run at byte " + runs.getStart(first
+                    + i) + " of " + files.path(runs.getStripe(first + i))
+                    + " ends at byte " + nextPositions[i]
+                    + ", short of its length");
+            }
+            loaded[i] = runBuffers[i].getRecords(blockIDs[i], blockKeys[i],
+                0);
+        }
+        heads[i] = 0;
+        return loaded[i] > 0;
+    }
+}
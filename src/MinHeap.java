@@ -261,7 +261,9 @@ class MinHeap<T extends Comparable<T>> {
 
 
     /**
-     * does fundamental comparison used for checking heap validity
+     * does fundamental comparison used for checking heap validity. Every
+     * position below the heap size holds a value, so there is nothing to
+     * check for null; Record compares normalized long keys.
      * 
      * @param pos1
      *            one of the position need to compare in the MinHeap
@@ -270,10 +272,8 @@ class MinHeap<T extends Comparable<T>> {
      * @return boolean
      */
     private boolean isLessThan(int pos1, int pos2) {
-        if (heap[pos1] == null || heap[pos2] == null)
-        {
-            return false;
-        }
+        assert heap[pos1] != null && heap[pos2] != null : "Empty heap"
+            + " position";
         return heap[pos1].compareTo(heap[pos2]) < 0;
     }
 }
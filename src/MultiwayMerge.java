@@ -1,97 +1,924 @@
-import java.io.RandomAccessFile;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
 /**
  * This class does the merging for the file after the replacement selection is
- * done
- * 
+ * done. Runs are merged fanIn at a time, ping-ponging between the runs file
+ * and a scratch file, until one last merge can write the output file. With
+ * the POLYPHASE MergeStrategy they are merged down over fanIn + 1 tape files
+ * instead, see polyphase().
+ *
  * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
  * @version Nov 8, 2024
  */
 public class MultiwayMerge {
+    /**
+     * suffix of the scratch file used by intermediate passes
+     */
+    public static final String PASS_SUFFIX = ".pass";
+    /**
+     * suffix, followed by the tape's number, of the scratch files of a
+     * polyphase merge
+     */
+    public static final String TAPE_SUFFIX = ".tape";
+
+    private long reads;
+    private long demandReads;
+    private long recordCount;
+    private int passes;
+    private BlockSample sample;
+    private String[] runFiles; // files the runs left by mergeDown() are in
+    private String[] tapes = new String[0];
+
+    /**
+     * Merge the runs into the output file.
+     *
+     * @param runs
+     *            runs in the runs file, as byte offset and record count
+     * @param runsFile
+     *            file holding the runs
+     * @param outputFile
+     *            file the sorted records are written to
+     * @param options
+     *            sort order, fan-in, tie breaking and reduction
+     * @throws IOException
+     */
+    public MultiwayMerge(
+        RunTable runs,
+        String runsFile,
+        String outputFile,
+        SortOptions options)
+        throws IOException {
+        this(runs, runsFile, outputFile, options, null);
+    }
+
+
+    /**
+     * Merge the runs into the output file, checkpointing each completed pass
+     * to a manifest. If the manifest already records merge passes, merging
+     * resumes from the last one and runs is ignored.
+     *
+     * @param runs
+     *            runs in the runs file, as byte offset and record count
+     * @param runsFile
+     *            file holding the runs
+     * @param outputFile
+     *            file the sorted records are written to
+     * @param options
+     *            sort order, fan-in, tie breaking and reduction
+     * @param checkpoint
+     *            manifest to record progress in, or null
+     * @throws IOException
+     */
+    public MultiwayMerge(
+        RunTable runs,
+        String runsFile,
+        String outputFile,
+        SortOptions options,
+        SortManifest checkpoint)
+        throws IOException {
+        this(new String[0], runs, runsFile, outputFile, options, checkpoint);
+    }
+
+
+    /**
+     * Merge already sorted files together with the runs into the output
+     * file. The sorted files come first, so with tie breaking by input
+     * order their records go before equal records of the runs. The runs
+     * are merged down until they fit in one merge with the sorted files.
+     *
+     * @param sorted
+     *            files sorted under options, oldest first
+     * @param runs
+     *            runs in the runs file, as byte offset and record count
+     * @param runsFile
+     *            file holding the runs
+     * @param outputFile
+     *            file the sorted records are written to, none of sorted
+     * @param options
+     *            sort order, fan-in, tie breaking and reduction
+     * @throws IOException
+     */
+    public MultiwayMerge(
+        String[] sorted,
+        RunTable runs,
+        String runsFile,
+        String outputFile,
+        SortOptions options)
+        throws IOException {
+        this(sorted, runs, runsFile, outputFile, options, null);
+    }
+
+
+    private MultiwayMerge(
+        String[] sorted,
+        RunTable runs,
+        String runsFile,
+        String outputFile,
+        SortOptions options,
+        SortManifest checkpoint)
+        throws IOException {
+        try {
+            merge(sorted, runs, runsFile, outputFile, options, checkpoint);
+        }
+        catch (IOException | RuntimeException e) {
+            if (checkpoint == null) {
+                // nothing to resume from, so nothing worth keeping
+                deleteScratch(runsFile, options);
+            }
+            throw e;
+        }
+        deleteScratch(runsFile, options);
+    }
+
+
+    /**
+     * Merge the sorted files and runs down and into the output file.
+     */
+    private void merge(
+        String[] sorted,
+        RunTable runs,
+        String runsFile,
+        String outputFile,
+        SortOptions options,
+        SortManifest checkpoint)
+        throws IOException {
+        int fanIn = Math.max(2, options.getFanIn());
+        SortOrder order = options.getSortOrder();
+        TieBreak tieBreak = options.effectiveTieBreak();
+        Reduction reduction = options.getReduction();
+        DirectBufferPool pool = options.getBufferPool();
+        runs = mergeDown(runs, runsFile, Math.max(1, fanIn - sorted.length),
+            options, checkpoint);
+
+        if (runs.size() == 1 && sorted.length == 0 && !options.isSharded()
+            && !options.isKeyStats() && options.getSinks().length == 0) {
+            // already sorted and reduced, only its bytes have to move
+            recordCount = runs.getLength(0);
+            moveRun(runFiles[runs.getStripe(0)], runs.getStart(0), recordCount
+                * Record.BYTES, outputFile, checkpoint == null, options
+                    .isDirectIo());
+            sample = BlockSample.read(outputFile);
+        }
+        else {
+            // the sorted files are whole runs on stripes of their own
+            String[] stripes = runs.isEmpty() ? new String[0] : runFiles;
+            String[] paths = Arrays.copyOf(sorted, sorted.length
+                + stripes.length);
+            System.arraycopy(stripes, 0, paths, sorted.length,
+                stripes.length);
+            RunTable all = new RunTable();
+            for (int i = 0; i < sorted.length; i++) {
+                all.add(0, new File(sorted[i]).length() / Record.BYTES, i);
+            }
+            for (int i = 0; i < runs.size(); i++) {
+                all.add(runs.getStart(i), runs.getLength(i), sorted.length
+                    + runs.getStripe(i));
+            }
+            SortEvents.MergePassEvent event = new SortEvents.MergePassEvent();
+            event.begin();
+            SpillFiles input = new SpillFiles(paths, "r", options
+                .isDirectIo());
+            ShardedOutput shards = null;
+            RandomAccessFile output = null;
+            KeyStats stats = null;
+            OutputTee tee = null;
+            ByteBuffer[] blocks = DirectBufferPool.acquire(pool, all.size()
+                + 1);
+            try {
+                if (options.isSharded()) {
+                    long total = 0;
+                    for (int i = 0; i < all.size(); i++) {
+                        total += all.getLength(i);
+                    }
+                    shards = new ShardedOutput(outputFile, options, total);
+                }
+                else {
+                    output = DirectFile.open(outputFile, "rw", options
+                        .isDirectIo());
+                    output.setLength(0);
+                    if (options.isKeyStats()) {
+                        stats = new KeyStats(outputFile);
+                    }
+                }
+                RunWriter writer = new RunWriter(new Buffer(output, 0,
+                    DirectBufferPool.block(blocks, all.size())), reduction,
+                    true);
+                writer.setShards(shards);
+                writer.setStats(stats);
+                tee = OutputTee.of(options);
+                writer.setTee(tee);
+                sample = new BlockSample();
+                writer.setSample(sample);
+                recordCount = mergeRuns(input, all, 0, all.size(), writer,
+                    order, tieBreak, blocks, options.getPrefetchBlocks(),
+                    options.getReadBlocks());
+                writer.flush();
+                if (tee != null) {
+                    tee.finish();
+                }
+                if (shards != null) {
+                    shards.finish();
+                }
+                if (stats != null) {
+                    stats.finish();
+                }
+            }
+            finally {
+                input.close();
+                if (tee != null) {
+                    tee.close();
+                }
+                if (shards != null) {
+                    shards.close();
+                }
+                if (output != null) {
+                    output.close();
+                }
+                if (stats != null) {
+                    stats.abandon();
+                }
+                if (pool != null) {
+                    pool.release(blocks);
+                }
+            }
+            passes++;
+            event.pass = passes;
+            event.runsIn = all.size();
+            event.runsOut = 1;
+            event.last = true;
+            event.commit();
+        }
+    }
+
+
+    /**
+     * Merge files that are each already sorted into the output file,
+     * skipping run generation. Each file is one run. When there are more
+     * of them than the fan-in, a first pass merges them fanIn at a time
+     * into the runs file, and the runs it makes are merged down from there
+     * like any others. Every file is checked to be in order as it is read.
+     *
+     * @param sorted
+     *            files sorted under options, oldest first
+     * @param runsFile
+     *            scratch file for the runs of the first pass, deleted
+     *            afterwards
+     * @param outputFile
+     *            file the sorted records are written to, none of sorted
+     * @param options
+     *            sort order, fan-in, tie breaking and reduction
+     * @return the merge
+     * @throws IOException
+     *             also if a file is not sorted
+     */
+    public static MultiwayMerge mergeFiles(
+        String[] sorted,
+        String runsFile,
+        String outputFile,
+        SortOptions options)
+        throws IOException {
+        int fanIn = Math.max(2, options.getFanIn());
+        if (sorted.length <= fanIn) {
+            return new MultiwayMerge(sorted, new RunTable(), runsFile,
+                outputFile, options);
+        }
+        RunTable files = new RunTable();
+        for (int i = 0; i < sorted.length; i++) {
+            files.add(0, new File(sorted[i]).length() / Record.BYTES, i);
+        }
+        MultiwayMerge first = new MultiwayMerge();
+        try {
+            SortEvents.MergePassEvent event = new SortEvents.MergePassEvent();
+            event.begin();
+            RunTable runs = first.mergePass(files, sorted, runsFile, fanIn,
+                options, false);
+            event.pass = 1;
+            event.runsIn = files.size();
+            event.runsOut = runs.size();
+            event.commit();
+            MultiwayMerge merge = new MultiwayMerge(runs, runsFile,
+                outputFile, options);
+            merge.passes++;
+            merge.reads += first.reads;
+            merge.demandReads += first.demandReads;
+            return merge;
+        }
+        finally {
+            SpillFiles.delete(runsFile, options);
+        }
+    }
+
+
+    /**
+     * Create a merge whose last merge is left to a MergeStream.
+     */
+    private MultiwayMerge() {
+        // see stream()
+    }
+
+
+    /**
+     * Merge the runs down until one merge can take them all, and open that
+     * last merge as a stream of records in order instead of writing it to
+     * a file, for consumers such as SortMergeJoin that only read the
+     * output once. Reduction is applied to the passes before it, not to
+     * the stream.
+     *
+     * @param runs
+     *            runs in the runs file, as byte offset and record count
+     * @param runsFile
+     *            file holding the runs
+     * @param options
+     *            sort order, fan-in, tie breaking and reduction
+     * @return the last merge; closing it deletes the scratch files
+     * @throws IOException
+     */
+    public static MergeStream stream(
+        RunTable runs,
+        String runsFile,
+        SortOptions options)
+        throws IOException {
+        MultiwayMerge merge = new MultiwayMerge();
+        runs = merge.mergeDown(runs, runsFile, Math.max(2, options
+            .getFanIn()), options, null);
+        SpillFiles input = new SpillFiles(runs.isEmpty()
+            ? new String[0]
+            : merge.runFiles, "r", options.isDirectIo());
+        try {
+            MergeStream stream = new MergeStream(input, runs, 0, runs.size(),
+                null, options.getPrefetchBlocks(), options.getReadBlocks(),
+                options.getSortOrder(), options.effectiveTieBreak());
+            stream.closeWith(input, () -> merge.deleteScratch(runsFile,
+                options));
+            return stream;
+        }
+        catch (IOException e) {
+            input.close();
+            merge.deleteScratch(runsFile, options);
+            throw e;
+        }
+    }
+
+
+    /**
+     * Merge runs down, balanced or polyphase, until at most limit are
+     * left, resuming from checkpoint if it records merge passes. The files
+     * the runs left are in are put in runFiles, indexed by their stripes.
+     *
+     * @return the runs left
+     */
+    private RunTable mergeDown(
+        RunTable runs,
+        String runsFile,
+        int limit,
+        SortOptions options,
+        SortManifest checkpoint)
+        throws IOException {
+        int fanIn = Math.max(2, options.getFanIn());
+        String source = runsFile;
+        String scratch = runsFile + PASS_SUFFIX;
+        if (checkpoint != null && checkpoint.isMerging()) {
+            runs = checkpoint.getRuns();
+            passes = checkpoint.getPasses();
+            if (checkpoint.getSource().equals(scratch)) {
+                scratch = source;
+                source = checkpoint.getSource();
+            }
+        }
+
+        runFiles = SpillFiles.paths(source, options);
+        if (options.effectiveMergeStrategy() == MergeStrategy.POLYPHASE
+            && runs.size() > limit) {
+            tapes = new String[fanIn + 1];
+            for (int t = 0; t < tapes.length; t++) {
+                String[] paths = SpillFiles.paths(runsFile + TAPE_SUFFIX + t,
+                    options);
+                tapes[t] = paths[t % paths.length];
+            }
+            runs = polyphase(runs, runFiles, tapes, limit, options);
+            runFiles = Arrays.copyOf(runFiles, runFiles.length
+                + tapes.length);
+            System.arraycopy(tapes, 0, runFiles, runFiles.length
+                - tapes.length, tapes.length);
+        }
+        while (runs.size() > limit) {
+            SortEvents.MergePassEvent event = new SortEvents.MergePassEvent();
+            event.begin();
+            event.runsIn = runs.size();
+            runs = mergePass(runs, SpillFiles.paths(source, options), scratch,
+                fanIn, options, checkpoint != null);
+            event.pass = passes + 1;
+            event.runsOut = runs.size();
+            event.commit();
+            String merged = scratch;
+            scratch = source;
+            source = merged;
+            runFiles = SpillFiles.paths(source, options);
+            passes++;
+            if (checkpoint != null) {
+                checkpoint.passDone(passes, source, runs);
+            }
+        }
+        return runs;
+    }
+
+
+    /**
+     * Delete every scratch file a sort with runs in runsFile may have
+     * left: the runs file, the pass file and the tapes.
+     *
+     * @param runsFile
+     *            name of the runs file
+     * @param options
+     *            options naming the spill directories and fan-in
+     */
+    static void deleteAll(String runsFile, SortOptions options) {
+        SpillFiles.delete(runsFile, options);
+        SpillFiles.delete(runsFile + PASS_SUFFIX, options);
+        for (int t = 0; t <= Math.max(2, options.getFanIn()); t++) {
+            SpillFiles.delete(runsFile + TAPE_SUFFIX + t, options);
+        }
+    }
+
+
+    /**
+     * Delete the pass file and tapes the merge down may have written.
+     */
+    private void deleteScratch(String runsFile, SortOptions options) {
+        SpillFiles.delete(runsFile + PASS_SUFFIX, options);
+        for (String tape : tapes) {
+            new File(tape).delete();
+        }
+    }
+
+
+    /**
+     * @return the number of records written to the output file
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+
+    /**
+     * @return the first record of each block of the output file
+     */
+    public BlockSample getSample() {
+        return sample;
+    }
+
+
+    /**
+     * @return the number of blocks read ahead by merge schedulers
+     */
+    public long getReads() {
+        return reads;
+    }
+
+
+    /**
+     * @return how many of those reads a run had to wait on because nothing
+     *         was read ahead for it
+     */
+    public long getDemandReads() {
+        return demandReads;
+    }
+
+
+    /**
+     * @return the number of merge passes made, including the final one
+     */
+    public int getPasses() {
+        return passes;
+    }
+
+
+    /**
+     * Move the bytes [start, start + length) of source into target, which
+     * ends up holding exactly them. When they are the whole of source and
+     * renaming is allowed, source is renamed over target, atomically if the
+     * file system can; otherwise the bytes are copied channel to channel
+     * with transferTo, so they never pass through a heap buffer, or through
+     * DirectFiles when the page cache is to be left alone.
+     *
+     * @param source
+     *            file holding the run
+     * @param start
+     *            byte offset of the run
+     * @param length
+     *            bytes in the run
+     * @param target
+     *            file to hold the run
+     * @param rename
+     *            true if source may be renamed away
+     * @param direct
+     *            true to copy around the page cache
+     * @throws IOException
+     */
+    static void moveRun(
+        String source,
+        long start,
+        long length,
+        String target,
+        boolean rename,
+        boolean direct)
+        throws IOException {
+        Path from = Paths.get(source);
+        Path to = Paths.get(target);
+        if (rename && start == 0 && Files.size(from) == length) {
+            try {
+                Files.move(from, to, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return;
+        }
+        if (direct) {
+            copyDirect(source, start, length, target);
+            return;
+        }
+        FileChannel in = FileChannel.open(from, StandardOpenOption.READ);
+        FileChannel out = FileChannel.open(to, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            transfer(in, start, length, out);
+        }
+        finally {
+            in.close();
+            out.close();
+        }
+    }
+
+
+    /**
+     * Copy the bytes [start, start + length) of source into target through
+     * DirectFiles, a megabyte at a time.
+     */
+    private static void copyDirect(
+        String source,
+        long start,
+        long length,
+        String target)
+        throws IOException {
+        DirectFile in = new DirectFile(source, "r");
+        DirectFile out = new DirectFile(target, "rw");
+        try {
+            out.setLength(0);
+            ByteBuffer chunk = ByteBuffer.allocateDirect(1 << 20);
+            long done = 0;
+            while (done < length) {
+                chunk.clear();
+                chunk.limit((int)Math.min(chunk.capacity(), length - done));
+                if (in.read(chunk, start + done) == 0) {
+                    throw new IOException("Run ends before byte " + (start
+                        + length));
+                }
+                chunk.flip();
+                out.write(chunk, done);
+                done += chunk.limit();
+            }
+        }
+        finally {
+            in.close();
+            out.close();
+        }
+    }
+
+
+    /**
+     * Copy length bytes of in, starting at start, to the current position of
+     * out. transferTo may move fewer bytes than asked, so it is called until
+     * everything has gone across.
+     *
+     * @throws IOException
+     */
+    static void transfer(
+        FileChannel in,
+        long start,
+        long length,
+        FileChannel out)
+        throws IOException {
+        long done = 0;
+        while (done < length) {
+            long moved = in.transferTo(start + done, length - done, out);
+            if (moved <= 0) {
+                throw new IOException("Run ends before byte " + (start
+                    + length));
+            }
+            done += moved;
+        }
+    }
+
+
+    /**
+     * Count the runs each input tape of a polyphase merge starts with: the
+     * smallest perfect Fibonacci distribution of at least runs runs over
+     * inputs tapes. Merging inputs ways, every phase then empties exactly
+     * one tape, until one run is left. Tapes are padded to their counts
+     * with empty dummy runs.
+     *
+     * @param runs
+     *            runs to distribute
+     * @param inputs
+     *            tapes merged from at once, one fewer than there are
+     * @return runs on each input tape, most first
+     */
+    static int[] polyphaseCounts(int runs, int inputs) {
+        int[] counts = new int[inputs];
+        counts[0] = 1;
+        long total = 1;
+        while (total < runs) {
+            int first = counts[0];
+            for (int t = 0; t + 1 < inputs; t++) {
+                counts[t] = first + counts[t + 1];
+            }
+            counts[inputs - 1] = first;
+            total += (long)(inputs - 1) * first;
+        }
+        return counts;
+    }
+
+
+    /**
+     * Merge runs down polyphase until at most limit hold records. The runs
+     * are dealt out, without moving them, over all but the last of tapes
+     * in polyphaseCounts() numbers, dummies first and then the shortest
+     * runs at the fronts of the tapes. Each phase then merges
+     * the next run of every other tape onto the empty one until a tape
+     * runs out, and that tape takes the next phase's output. Once no run
+     * is left in the runs file its stripes are truncated, so at most the
+     * runs file and fanIn + 1 tapes are ever open and the data is on disk
+     * about twice at most.
+     *
+     * @return the runs left, with stripes indexing the runs file's stripes
+     *         followed by tapes
+     */
+    private RunTable polyphase(
+        RunTable runs,
+        String[] runStripes,
+        String[] tapes,
+        int limit,
+        SortOptions options)
+        throws IOException {
+        int inputs = tapes.length - 1;
+        String[] paths = Arrays.copyOf(runStripes, runStripes.length
+            + tapes.length);
+        System.arraycopy(tapes, 0, paths, runStripes.length, tapes.length);
+        int[] counts = polyphaseCounts(runs.size(), inputs);
+        int[] dummies = new int[inputs];
+        int spare = -runs.size();
+        for (int count : counts) {
+            spare += count;
+        }
+        for (int t = 0; spare > 0; t = (t + 1) % inputs) {
+            if (dummies[t] < counts[t]) {
+                dummies[t]++;
+                spare--;
+            }
+        }
+        RunTable[] queues = new RunTable[tapes.length];
+        int[] heads = new int[tapes.length];
+        for (int t = 0; t < tapes.length; t++) {
+            queues[t] = new RunTable();
+        }
+        // deal depth by depth, shortest run first: runs near the front of
+        // a tape are merged in the early phases and copied the most times
+        int[] shortest = runs.byLength();
+        int next = 0;
+        for (int d = 0; d < counts[0]; d++) {
+            for (int t = 0; t < inputs && d < counts[t]; t++) {
+                if (d < dummies[t]) {
+                    queues[t].add(0, 0);
+                }
+                else {
+                    int run = shortest[next++];
+                    queues[t].add(runs.getStart(run), runs.getLength(run),
+                        runs.getStripe(run));
+                }
+            }
+        }
+        SpillFiles created = new SpillFiles(tapes, "rw", options
+            .isDirectIo());
+        created.clear();
+        created.close();
+
+        int live = runs.size();
+        boolean inRunsFile = true;
+        int out = inputs;
+        while (live > limit) {
+            SortEvents.MergePassEvent event = new SortEvents.MergePassEvent();
+            event.begin();
+            event.runsIn = live;
+            int merges = Integer.MAX_VALUE;
+            for (int t = 0; t < tapes.length; t++) {
+                if (t != out) {
+                    merges = Math.min(merges, queues[t].size() - heads[t]);
+                }
+            }
+            live = phase(queues, heads, out, merges, live, paths, options);
+
+            if (inRunsFile) {
+                inRunsFile = false;
+                for (int t = 0; t < tapes.length; t++) {
+                    for (int i = heads[t]; i < queues[t].size(); i++) {
+                        inRunsFile |= queues[t].getLength(i) > 0 && queues[t]
+                            .getStripe(i) < runStripes.length;
+                    }
+                }
+                if (!inRunsFile) {
+                    SpillFiles old = new SpillFiles(runStripes, "rw", options
+                        .isDirectIo());
+                    old.clear();
+                    old.close();
+                }
+            }
+            for (int t = 0; t < tapes.length; t++) {
+                if (t != out && heads[t] == queues[t].size()) {
+                    out = t;
+                    break;
+                }
+            }
+            passes++;
+            event.pass = passes;
+            event.runsOut = live;
+            event.commit();
+        }
+
+        RunTable left = new RunTable();
+        for (int t = 0; t < tapes.length; t++) {
+            for (int i = heads[t]; i < queues[t].size(); i++) {
+                if (queues[t].getLength(i) > 0) {
+                    left.add(queues[t].getStart(i), queues[t].getLength(i),
+                        queues[t].getStripe(i));
+                }
+            }
+        }
+        return left;
+    }
+
+
+    /**
+     * Make one polyphase phase: merges times, merge the next run of every
+     * tape but out onto out, which is emptied first.
+     *
+     * @return the number of runs holding records afterwards, from live
+     *         before
+     */
+    private int phase(
+        RunTable[] queues,
+        int[] heads,
+        int out,
+        int merges,
+        int live,
+        String[] paths,
+        SortOptions options)
+        throws IOException {
+        int fanIn = queues.length - 1;
+        int tape = paths.length - queues.length + out;
+        DirectBufferPool pool = options.getBufferPool();
+        queues[out] = new RunTable();
+        heads[out] = 0;
+        SpillFiles input = new SpillFiles(paths, "r", options.isDirectIo());
+        RandomAccessFile output = DirectFile.open(paths[tape], "rw", options
+            .isDirectIo());
+        ByteBuffer[] blocks = DirectBufferPool.acquire(pool, fanIn + 1);
+        try {
+            output.setLength(0);
+            RunWriter writer = new RunWriter(new Buffer(output, 0,
+                DirectBufferPool.block(blocks, fanIn)), options
+                    .getReduction(), true);
+            long end = 0;
+            for (int m = 0; m < merges; m++) {
+                RunTable group = new RunTable();
+                for (int t = 0; t < queues.length; t++) {
+                    if (t != out) {
+                        int i = heads[t]++;
+                        if (queues[t].getLength(i) > 0) {
+                            group.add(queues[t].getStart(i), queues[t]
+                                .getLength(i), queues[t].getStripe(i));
+                        }
+                    }
+                }
+                long length = 0;
+                if (!group.isEmpty()) {
+                    length = mergeRuns(input, group, 0, group.size(), writer,
+                        options.getSortOrder(), options.effectiveTieBreak(),
+                        blocks, options.getPrefetchBlocks(), options
+                            .getReadBlocks());
+                    live -= group.size() - 1;
+                }
+                queues[out].add(end, length, tape);
+                end += length * Record.BYTES;
+            }
+            writer.flush();
+        }
+        finally {
+            input.close();
+            output.close();
+            if (pool != null) {
+                pool.release(blocks);
+            }
+        }
+        return live;
+    }
+
+
+    /**
+     * Merge every group of fanIn runs in the source files, indexed by their
+     * stripes, into one run in target, dealing the merged runs out
+     * round-robin over target's stripes and syncing target to disk at the
+     * end if asked to.
+     */
+    private RunTable mergePass(
+        RunTable runs,
+        String[] source,
+        String target,
+        int fanIn,
+        SortOptions options,
+        boolean sync)
+        throws IOException {
+        SortOrder order = options.getSortOrder();
+        TieBreak tieBreak = options.effectiveTieBreak();
+        DirectBufferPool pool = options.getBufferPool();
+        RunTable merged = new RunTable();
+        SpillFiles input = new SpillFiles(source, "r", options.isDirectIo());
+        SpillFiles output = new SpillFiles(target, options, "rw");
+        ByteBuffer[] blocks = DirectBufferPool.acquire(pool, fanIn + output
+            .stripes());
+        try {
+            output.clear();
+            RunWriter[] writers = new RunWriter[output.stripes()];
+            for (int s = 0; s < writers.length; s++) {
+                writers[s] = new RunWriter(new Buffer(output.file(s), 0,
+                    DirectBufferPool.block(blocks, fanIn + s)), options
+                        .getReduction(), true);
+            }
+            long[] ends = new long[writers.length];
+            int stripe = 0;
+            for (int first = 0; first < runs.size(); first += fanIn) {
+                int count = Math.min(fanIn, runs.size() - first);
+                long length = mergeRuns(input, runs, first, count,
+                    writers[stripe], order, tieBreak, blocks, options
+                        .getPrefetchBlocks(), options.getReadBlocks());
+                merged.add(ends[stripe], length, stripe);
+                ends[stripe] += length * Record.BYTES;
+                stripe = (stripe + 1) % writers.length;
+            }
+            for (RunWriter writer : writers) {
+                writer.flush();
+            }
+            if (sync) {
+                output.sync();
+            }
+        }
+        finally {
+            input.close();
+            output.close();
+            if (pool != null) {
+                pool.release(blocks);
+            }
+        }
+        return merged;
+    }
+
 
-    private BufferPool inputBuffers;
-    private BufferPool outputBuffer;
-    private Buffer[] runBuffers;
-    private int[] recordPositions;
-    private int[] bufferPositions;
-    private int[] heapIndexMap;
-    private Record[] records;
-    private long blocksPerRun;
-    private MinHeap<Record> minHeap;
-
-    @SuppressWarnings("resource")
-    public MultiwayMerge(int runCount, String runsFile, String outputFile)
-        throws FileNotFoundException,
-        IOException {
-        inputBuffers = new BufferPool(ByteFile.RECORDS_PER_BLOCK * 8, runsFile,
-            "rw");
-        outputBuffer = new BufferPool(ByteFile.RECORDS_PER_BLOCK, outputFile,
-            "rw");
-        runBuffers = new Buffer[runCount];
-        recordPositions = new int[runCount];
-        bufferPositions = new int[runCount];
-        heapIndexMap = new int[runCount];
-        records = new Record[runCount];
-        blocksPerRun = new RandomAccessFile(new File(runsFile), runsFile)
-            .length() / (runCount * ByteFile.BYTES_PER_BLOCK);
-
-        int size = 0;
-        for (int i = 0; i < runCount - 1; i++) {
-            bufferPositions[i] = i * (int)blocksPerRun;
-            runBuffers[i] = inputBuffers.getBuffer(bufferPositions[i]);
-
-            if (runBuffers[i] != null) {
-                records[size] = runBuffers[i].getNextRecord();
-                heapIndexMap[size] = i;
-                recordPositions[i] = 1;
-                size++;
-            }
-        }
-        minHeap = new MinHeap<Record>(records, size, runCount);
-
-        while (minHeap.heapSize() > 0) {
-            Record minRecord = minHeap.removeMin();
-            int currentRunIndex = heapIndexMap[minHeap.heapSize()];
-            outputBuffer.getBuffer().putRecord(minRecord);
-
-            if (outputBuffer.getBuffer().isFull()) {
-                outputBuffer.getBuffer().flush();
-                outputBuffer = new BufferPool(ByteFile.RECORDS_PER_BLOCK,
-                    runsFile, "rw");
-            } 
-
-            if (recordPositions[currentRunIndex] >= ByteFile.RECORDS_PER_BLOCK) {
-                runBuffers[currentRunIndex].close();
-                bufferPositions[currentRunIndex]++;
-
-                if (bufferPositions[currentRunIndex] < blocksPerRun) {
-                    //get next buffer
-                    runBuffers[currentRunIndex] = inputBuffers.getBuffer(bufferPositions[currentRunIndex]);
-                    recordPositions[currentRunIndex] = 0;
-                }
-                else
-                {
-                    //mark buffer as done
-                    runBuffers[currentRunIndex] = null;
-                }
-            }
-            
-            if (runBuffers[currentRunIndex] != null && runBuffers[currentRunIndex].hasRemaining())
-            {
-                Record nextRecord = runBuffers[currentRunIndex].getNextRecord();
-                minHeap.insert(nextRecord);
-                heapIndexMap[minHeap.heapSize() - 1] = currentRunIndex;
-                recordPositions[currentRunIndex]++;
-            }
-        }
-        inputBuffers.close();
-        outputBuffer.close();
-        for (int i = 0; i < runBuffers.length; i++)
-        {
-            runBuffers[i].close();
+    /**
+     * Merge count consecutive runs starting at first into one run written
+     * by writer, through a MergeStream.
+     *
+     * @return the number of records in the merged run
+     */
+    private long mergeRuns(
+        SpillFiles input,
+        RunTable runs,
+        int first,
+        int count,
+        RunWriter writer,
+        SortOrder order,
+        TieBreak tieBreak,
+        ByteBuffer[] blocks,
+        int prefetch,
+        int readBlocks)
+        throws IOException {
+        MergeStream stream = new MergeStream(input, runs, first, count,
+            blocks, prefetch, readBlocks, order, tieBreak);
+        while (stream.next()) {
+            writer.put(stream.id(), stream.key(), stream.sortKey());
         }
+        reads += stream.getReads();
+        demandReads += stream.getDemandReads();
+        return writer.endRun();
     }
 }
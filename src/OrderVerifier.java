@@ -0,0 +1,84 @@
+import java.nio.ByteBuffer;
+
+/**
+ * An OutputSink that checks the output comes out in order, record by
+ * record, as it is written, instead of reading the file back afterwards.
+ * Records are in order when no sort key is smaller than the one before it;
+ * ties are not checked, since any TieBreak leaves them in order.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class OrderVerifier implements OutputSink {
+    private SortOrder order;
+    private long records;
+    private long disorders;
+    private long firstDisorder = -1;
+    private long lastSortKey;
+
+    /**
+     * Create a verifier.
+     *
+     * @param order
+     *            order the output should be in
+     */
+    public OrderVerifier(SortOrder order) {
+        this.order = order;
+    }
+
+
+    @Override
+    public void accept(ByteBuffer records) {
+        for (int at = records.position(); at < records.limit(); at +=
+            Record.BYTES) {
+            long sortKey = order.sortKey(records.getLong(at), records
+                .getDouble(at + Long.BYTES));
+            if (this.records > 0 && sortKey < lastSortKey) {
+                if (disorders == 0) {
+                    firstDisorder = this.records;
+                }
+                disorders++;
+            }
+            lastSortKey = sortKey;
+            this.records++;
+        }
+    }
+
+
+    @Override
+    public void finish() {
+        // nothing to write
+    }
+
+
+    /**
+     * @return true if every record checked was in order
+     */
+    public boolean isSorted() {
+        return disorders == 0;
+    }
+
+
+    /**
+     * @return the records checked
+     */
+    public long getRecords() {
+        return records;
+    }
+
+
+    /**
+     * @return the records whose sort key was smaller than the one before
+     */
+    public long getDisorders() {
+        return disorders;
+    }
+
+
+    /**
+     * @return the index of the first of them in the output, or -1
+     */
+    public long getFirstDisorder() {
+        return firstDisorder;
+    }
+}
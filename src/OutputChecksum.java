@@ -0,0 +1,43 @@
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * An OutputSink taking a CRC-32C of the output's bytes as they are
+ * written, so a copy of the file can be checked against the sort that made
+ * it. With sharded output it covers the shards one after another.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class OutputChecksum implements OutputSink {
+    private CRC32C crc = new CRC32C();
+    private long bytes;
+
+    @Override
+    public void accept(ByteBuffer records) {
+        bytes += records.remaining();
+        crc.update(records);
+    }
+
+
+    @Override
+    public void finish() {
+        // nothing to write
+    }
+
+
+    /**
+     * @return the CRC-32C of the bytes taken
+     */
+    public long getValue() {
+        return crc.getValue();
+    }
+
+
+    /**
+     * @return the bytes taken
+     */
+    public long getBytes() {
+        return bytes;
+    }
+}
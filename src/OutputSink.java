@@ -0,0 +1,32 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A consumer of the sorted output's bytes, teed off the final merge as it
+ * writes them by an OutputTee, so checks and indexes of the output are
+ * built in the same pass instead of scanning the file again afterwards.
+ * Each sink runs on a thread of its own.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public interface OutputSink {
+    /**
+     * Take the next bytes of the output: whole records, at most a block of
+     * them, in output order. With sharded output the shards follow each
+     * other.
+     *
+     * @param records
+     *            the bytes, read only and only valid during the call
+     * @throws IOException
+     */
+    void accept(ByteBuffer records) throws IOException;
+
+
+    /**
+     * Called once after the last bytes, unless a sink failed.
+     *
+     * @throws IOException
+     */
+    void finish() throws IOException;
+}
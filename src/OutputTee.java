@@ -0,0 +1,211 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fans the blocks a RunWriter writes out to OutputSinks, each on a thread
+ * of its own. Every block is copied once into one of DEPTH shared buffers
+ * and handed to all sinks; the buffer is reused once the last of them is
+ * done with it. When all DEPTH are still in use the writer waits, so a
+ * slow sink holds the merge back by at most DEPTH blocks instead of
+ * letting copies pile up in memory.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+class OutputTee implements Closeable {
+    /**
+     * blocks in flight to the sinks before the writer waits
+     */
+    static final int DEPTH = 64;
+
+    private static final Shared END = new Shared(0);
+
+    private OutputSink[] sinks;
+    private ArrayBlockingQueue<Shared> free;
+    private LinkedBlockingQueue<Shared>[] queues;
+    private Thread[] threads;
+    private Throwable[] failures;
+    private boolean finished;
+
+    /**
+     * A block being read by the sinks.
+     */
+    private static class Shared {
+        private ByteBuffer bytes;
+        private AtomicInteger readers = new AtomicInteger();
+
+        Shared(int capacity) {
+            bytes = ByteBuffer.allocate(capacity);
+        }
+    }
+
+
+    /**
+     * Start a thread per sink.
+     *
+     * @param sinks
+     *            sinks to feed
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    OutputTee(OutputSink[] sinks) {
+        this.sinks = sinks;
+        this.free = new ArrayBlockingQueue<Shared>(DEPTH);
+        for (int i = 0; i < DEPTH; i++) {
+            free.add(new Shared(ByteFile.BYTES_PER_BLOCK));
+        }
+        this.queues = new LinkedBlockingQueue[sinks.length];
+        this.threads = new Thread[sinks.length];
+        this.failures = new Throwable[sinks.length];
+        for (int s = 0; s < sinks.length; s++) {
+            queues[s] = new LinkedBlockingQueue<Shared>();
+            final int sink = s;
+            threads[s] = new Thread(() -> drain(sink), "output-sink-" + s);
+            threads[s].setDaemon(true);
+            threads[s].start();
+        }
+    }
+
+
+    /**
+     * @param options
+     *            options of a sort
+     * @return a tee to its sinks, or null if it has none
+     */
+    static OutputTee of(SortOptions options) {
+        return options.getSinks().length == 0
+            ? null
+            : new OutputTee(options.getSinks());
+    }
+
+
+    /**
+     * Hand bytes to every sink, waiting for a free buffer if the sinks are
+     * DEPTH blocks behind.
+     *
+     * @param records
+     *            whole records, from its position to its limit
+     * @throws IOException
+     *             if interrupted while waiting
+     */
+    void offer(ByteBuffer records) throws IOException {
+        while (records.hasRemaining()) {
+            Shared block = free.poll();
+            if (block == null) {
+                SortEvents.IoWaitEvent event = new SortEvents.IoWaitEvent();
+                event.begin();
+                try {
+                    block = free.take();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(
+                        "Interrupted waiting for output sinks");
+                }
+                event.end();
+                if (event.shouldCommit()) {
+                    event.operation = "sink backpressure";
+                    event.bytes = ByteFile.BYTES_PER_BLOCK;
+                    event.commit();
+                }
+            }
+            ByteBuffer part = records.duplicate();
+            part.limit(part.position() + Math.min(part.remaining(), block.bytes
+                .capacity()));
+            block.bytes.clear();
+            block.bytes.put(part).flip();
+            records.position(part.position());
+            block.readers.set(sinks.length);
+            for (LinkedBlockingQueue<Shared> queue : queues) {
+                queue.add(block);
+            }
+        }
+    }
+
+
+    /**
+     * Wait for every sink to take the last bytes and finish.
+     *
+     * @throws IOException
+     *             if a sink failed
+     */
+    void finish() throws IOException {
+        finished = true;
+        for (LinkedBlockingQueue<Shared> queue : queues) {
+            queue.add(END);
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                "Interrupted waiting for output sinks");
+        }
+        for (Throwable failure : failures) {
+            if (failure instanceof IOException) {
+                throw (IOException)failure;
+            }
+            if (failure != null) {
+                throw new IOException("Output sink failed", failure);
+            }
+        }
+    }
+
+
+    /**
+     * Stop the sinks unless they were finished.
+     */
+    @Override
+    public void close() {
+        if (!finished) {
+            finished = true;
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+        }
+    }
+
+
+    /**
+     * Feed sink s until the end, releasing each block it is the last
+     * reader of. After a failure it keeps releasing blocks, so the writer
+     * never waits on a sink that has stopped.
+     */
+    private void drain(int s) {
+        try {
+            while (true) {
+                Shared block = queues[s].take();
+                if (block == END) {
+                    break;
+                }
+                if (failures[s] == null) {
+                    try {
+                        sinks[s].accept(block.bytes.asReadOnlyBuffer());
+                    }
+                    catch (IOException | RuntimeException e) {
+                        failures[s] = e;
+                    }
+                }
+                if (block.readers.decrementAndGet() == 0) {
+                    free.add(block);
+                }
+            }
+            if (failures[s] == null) {
+                sinks[s].finish();
+            }
+        }
+        catch (InterruptedException e) {
+            // closed before finishing
+        }
+        catch (IOException | RuntimeException e) {
+            failures[s] = e;
+        }
+    }
+}
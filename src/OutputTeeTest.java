@@ -0,0 +1,246 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32C;
+import student.TestCase;
+
+/**
+ * Tests for OutputTee and the sinks the final output is teed to.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class OutputTeeTest extends TestCase {
+    private static final String INPUT = "teeInput.bin";
+    private static final String RUNS = "teeRuns.bin";
+    private static final String OUTPUT = "teeOutput.bin";
+
+    private SortOptions options;
+
+    /**
+     * A sink keeping every byte it is handed.
+     */
+    private static class Copy implements OutputSink {
+        private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private int delayMillis;
+        private boolean finished;
+
+        Copy(int delayMillis) {
+            this.delayMillis = delayMillis;
+        }
+
+
+        @Override
+        public void accept(ByteBuffer records) throws IOException {
+            byte[] copy = new byte[records.remaining()];
+            records.get(copy);
+            bytes.write(copy);
+            if (delayMillis > 0) {
+                try {
+                    Thread.sleep(delayMillis);
+                }
+                catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+
+
+        @Override
+        public void finish() {
+            finished = true;
+        }
+    }
+
+
+    /**
+     * set up for tests
+     * @throws IOException
+     */
+    public void setUp() throws IOException {
+        new ByteFile(INPUT, 40).writeRandomRecords(new Random(3114));
+        options = new SortOptions();
+        options.setHeapBlocks(2);
+    }
+
+
+    /**
+     * remove the files of a test
+     */
+    public void tearDown() {
+        new File(INPUT).delete();
+        new File(RUNS).delete();
+        new File(OUTPUT).delete();
+        new File(OUTPUT + BlockIndex.SUFFIX).delete();
+        new File(OUTPUT + ShardedOutput.SUFFIX).delete();
+        for (int n = 0; new File(OUTPUT + ".shard" + n).delete(); n++) {
+            // removed
+        }
+    }
+
+
+    /**
+     * The sinks see exactly the bytes of the output, and the verifier,
+     * checksum and index agree with them
+     * @throws IOException
+     */
+    public void testSinksSeeOutput() throws IOException {
+        Copy copy = new Copy(0);
+        OrderVerifier verifier = new OrderVerifier(SortOrder.ASCENDING);
+        OutputChecksum checksum = new OutputChecksum();
+        BlockIndex index = new BlockIndex(SortOrder.ASCENDING);
+        options.addSink(copy);
+        options.addSink(verifier);
+        options.addSink(checksum);
+        options.addSink(index);
+        Externalsort.sort(INPUT, RUNS, OUTPUT, options);
+        byte[] output = ByteFile.readAll(OUTPUT);
+        assertTrue(copy.finished);
+        assertTrue(Arrays.equals(output, copy.bytes.toByteArray()));
+        assertTrue(verifier.isSorted());
+        assertEquals(40 * ByteFile.RECORDS_PER_BLOCK, verifier.getRecords());
+        CRC32C crc = new CRC32C();
+        crc.update(output);
+        assertEquals(crc.getValue(), checksum.getValue());
+        assertEquals(output.length, checksum.getBytes());
+        checkIndex(index, output);
+
+        index.write(OUTPUT);
+        BlockIndex read = BlockIndex.read(OUTPUT, SortOrder.ASCENDING);
+        checkIndex(read, output);
+    }
+
+
+    /**
+     * The sample engine tees its output, and sharded output is teed shard
+     * after shard
+     * @throws IOException
+     */
+    public void testSampleEngineAndShards() throws IOException {
+        Copy copy = new Copy(0);
+        BlockIndex index = new BlockIndex(SortOrder.ASCENDING);
+        options.addSink(copy);
+        options.addSink(index);
+        options.setEngine(SortEngine.SAMPLE);
+        options.setShardCount(3);
+        Externalsort.sort(INPUT, RUNS, OUTPUT, options);
+        ByteArrayOutputStream shards = new ByteArrayOutputStream();
+        for (ShardedOutput.Shard shard : ShardedOutput.read(OUTPUT,
+            options)) {
+            shards.write(ByteFile.readAll(shard.getPath()));
+        }
+        byte[] output = shards.toByteArray();
+        assertEquals(40 * ByteFile.BYTES_PER_BLOCK, output.length);
+        assertTrue(Arrays.equals(output, copy.bytes.toByteArray()));
+        checkIndex(index, output);
+    }
+
+
+    /**
+     * A sink far slower than the merge holds it back without losing or
+     * reordering anything, and a sort of a single run is teed too
+     * @throws IOException
+     */
+    public void testSlowSink() throws IOException {
+        new ByteFile(INPUT, OutputTee.DEPTH * 3).writeRandomRecords(
+            new Random(7));
+        Copy slow = new Copy(2);
+        Copy fast = new Copy(0);
+        options.addSink(slow);
+        options.addSink(fast);
+        Externalsort.sort(INPUT, RUNS, OUTPUT, options);
+        byte[] output = ByteFile.readAll(OUTPUT);
+        assertTrue(Arrays.equals(output, slow.bytes.toByteArray()));
+        assertTrue(Arrays.equals(output, fast.bytes.toByteArray()));
+
+        new ByteFile(INPUT, 1).writeRandomRecords(new Random(8));
+        OrderVerifier verifier = new OrderVerifier(SortOrder.ASCENDING);
+        options.setSinks(new OutputSink[] { verifier });
+        Externalsort.sort(INPUT, RUNS, OUTPUT, options);
+        assertEquals(ByteFile.RECORDS_PER_BLOCK, verifier.getRecords());
+    }
+
+
+    /**
+     * A failing sink fails the sort instead of stalling it
+     * @throws IOException
+     */
+    public void testFailingSink() throws IOException {
+        options.addSink(new Copy(0));
+        options.addSink(new OutputSink() {
+            @Override
+            public void accept(ByteBuffer records) throws IOException {
+                throw new IOException("sink full");
+            }
+
+
+            @Override
+            public void finish() {
+                fail("finished a failed sink");
+            }
+        });
+        try {
+            Externalsort.sort(INPUT, RUNS, OUTPUT, options);
+            fail("sort ignored a failed sink");
+        }
+        catch (IOException e) {
+            assertEquals("sink full", e.getMessage());
+        }
+    }
+
+
+    /**
+     * The verifier finds records out of order
+     */
+    public void testVerifier() {
+        OrderVerifier verifier = new OrderVerifier(SortOrder.DESCENDING);
+        ByteBuffer records = ByteBuffer.allocate(4 * Record.BYTES);
+        double[] keys = { 3, 2, 2.5, 1 };
+        for (int i = 0; i < keys.length; i++) {
+            records.putLong(i).putDouble(keys[i]);
+        }
+        records.flip();
+        verifier.accept(records);
+        assertFalse(verifier.isSorted());
+        assertEquals(1, verifier.getDisorders());
+        assertEquals(2, verifier.getFirstDisorder());
+    }
+
+
+    /**
+     * The command line adds a sink per flag, made for the order given
+     * after it
+     */
+    public void testParseSinks() {
+        SortOptions parsed = Externalsort.parseOptions(new String[] {
+            "--verify", "--checksum", "--index", "--order=descending" }, 0,
+            new SortOptions());
+        OutputSink[] sinks = parsed.getSinks();
+        assertEquals(3, sinks.length);
+        assertTrue(sinks[0] instanceof OrderVerifier);
+        assertTrue(sinks[1] instanceof OutputChecksum);
+        assertTrue(sinks[2] instanceof BlockIndex);
+        assertEquals(0, new SortOptions().getSinks().length);
+    }
+
+
+    private void checkIndex(BlockIndex index, byte[] output) {
+        ByteBuffer records = ByteBuffer.wrap(output);
+        int blocks = output.length / ByteFile.BYTES_PER_BLOCK;
+        assertEquals(blocks, index.getBlocks());
+        for (int b = 0; b < blocks; b++) {
+            int at = b * ByteFile.BYTES_PER_BLOCK;
+            long sortKey = SortOrder.ASCENDING.sortKey(records.getLong(at),
+                records.getDouble(at + Long.BYTES));
+            assertEquals(sortKey, index.firstKey(b));
+            int found = index.find(sortKey);
+            assertTrue(found <= b);
+            assertTrue(found == b || index.firstKey(found + 1) >= sortKey);
+        }
+        assertEquals(0, index.find(Long.MIN_VALUE));
+        assertEquals(blocks - 1, index.find(Long.MAX_VALUE));
+    }
+}
@@ -12,9 +12,12 @@ public class Record implements Comparable<Record> {
 
     private long recID;
     private double key;
+    private long sortKey; // the key as SortOrder.comparable() gives it
 
     /**
-     * The constructor for the Record class
+     * The constructor for the Record class. The key is normalized once,
+     * here, into a long that compares the way the key does, so comparisons
+     * need no floating point branches; the key itself is kept bit for bit.
      *
      * @param recID
      *            record ID
@@ -24,6 +27,8 @@ public class Record implements Comparable<Record> {
     public Record(long recID, double key) {
         this.recID = recID;
         this.key = key;
+        this.sortKey = SortOrder.comparable(key);
+        SortEvents.recordCreated();
     }
 
 
@@ -51,12 +56,23 @@ public class Record implements Comparable<Record> {
 
     // ----------------------------------------------------------
     /**
-     * Compare two records based on their keys
+     * Return the key normalized by SortOrder.comparable()
+     *
+     * @return order preserving long of the key
+     */
+    public long getSortKey() {
+        return sortKey;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Compare two records based on their keys, in Double.compare order
      *
      * @return int
      */
     @Override
     public int compareTo(Record toBeCompared) {
-        return Double.compare(this.key, toBeCompared.key);
+        return Long.compare(this.sortKey, toBeCompared.sortKey);
     }
 }
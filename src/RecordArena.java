@@ -0,0 +1,60 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * Off-heap memory for the records a sort holds in memory. Records are
+ * carved out of direct slabs by bumping a pointer and are never freed one
+ * at a time; a slab goes back to the system once nothing carved from it is
+ * reachable. Direct memory is bounded by -XX:MaxDirectMemorySize, not by
+ * -Xmx, so a large run generation heap no longer needs a large Java heap
+ * or adds to garbage collection work.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class RecordArena {
+    /**
+     * bytes taken by one record: its sort key, tie breaker and payload
+     */
+    public static final int RECORD_BYTES = 3 * Long.BYTES;
+
+    private static final int SLAB_BYTES = 16 << 20;
+
+    private ByteBuffer slab; // the slab being carved up
+    private long allocated;
+
+    // ----------------------------------------------------------
+    /**
+     * Carve room for records out of the arena. The space is one contiguous
+     * buffer of three longs per record, zeroed when its slab was new.
+     *
+     * @param records
+     *            records to make room for
+     * @return the space, in native byte order
+     */
+    public synchronized LongBuffer allocate(int records) {
+        long bytes = (long)records * RECORD_BYTES;
+        if (records < 0 || bytes > Integer.MAX_VALUE - Long.BYTES) {
+            throw new IllegalArgumentException("Cannot allocate " + records
+                + " records in one piece");
+        }
+        if (slab == null || slab.remaining() < bytes) {
+            slab = ByteBuffer.allocateDirect((int)Math.max(SLAB_BYTES,
+                bytes));
+        }
+        ByteBuffer piece = slab.slice();
+        piece.limit((int)bytes);
+        slab.position(slab.position() + (int)bytes);
+        allocated += bytes;
+        return piece.order(ByteOrder.nativeOrder()).asLongBuffer();
+    }
+
+
+    /**
+     * @return bytes handed out by allocate() so far
+     */
+    public synchronized long allocated() {
+        return allocated;
+    }
+}
@@ -0,0 +1,27 @@
+/**
+ * What to do with records that sort as equal. Groups are runs of records
+ * with the same sort key: the key, or the ID under SortOrder.ID. Reductions
+ * are applied while runs are written and again by every merge, so
+ * duplicates are dropped as early as possible.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public enum Reduction {
+    /**
+     * write every record
+     */
+    NONE,
+    /**
+     * write one copy of records with the same ID and key
+     */
+    DISTINCT,
+    /**
+     * write only the first record of each group
+     */
+    FIRST_PER_KEY,
+    /**
+     * write one record per group whose ID is the size of the group
+     */
+    COUNT_PER_KEY
+}
@@ -4,75 +4,230 @@ import java.nio.ByteBuffer;
 
 /**
  * This class does the replacement selection for the file
- * 
+ *
  * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
  * @version Nov 8, 2024
  */
 public class ReplacementSelection {
 
-    private BufferPool inputBuffer;
-    private BufferPool outputBuffer;
-    private int heapSize;
-    private Record[] heap;
-    private MinHeap<Record> minHeap;
-    private int heapLastIndex;
-    private double currentRecordKey;
+    private RunTable runs;
+    private long recordCount;
 
-    public ReplacementSelection(String inputFile, String runsFile, int runCount)
+    /**
+     * Split the input file into sorted runs written back to back in the runs
+     * file.
+     *
+     * @param inputFile
+     *            file to sort
+     * @param runsFile
+     *            file the runs are written to
+     * @param options
+     *            sort order, heap size, tie breaking and reduction
+     * @throws IOException
+     */
+    public ReplacementSelection(
+        String inputFile,
+        String runsFile,
+        SortOptions options)
         throws IOException {
-        this.inputBuffer = new BufferPool(ByteFile.RECORDS_PER_BLOCK, inputFile,
-            "rw");
-        this.outputBuffer = new BufferPool(ByteFile.RECORDS_PER_BLOCK, runsFile,
-            "rw");
-        this.heapSize = ByteFile.RECORDS_PER_BLOCK * 8;
-        this.heap = new Record[heapSize];
-        this.heapLastIndex = ByteFile.RECORDS_PER_BLOCK * 8 - 1;
-        this.minHeap = new MinHeap<Record>(this.heap, 0, heap.length);
-
-        this.currentRecordKey = Double.NEGATIVE_INFINITY;
-
-        int i = 0;
-        while (i < heap.length && inputBuffer.getBuffer().hasRemaining()) {
-            Record newRecord = inputBuffer.getBuffer().getNextRecord();
-            heap[i] = newRecord;
-            i++;
+        this(inputFile, runsFile, options, null);
+    }
+
+
+    /**
+     * Split the input file into sorted runs, checkpointing each completed run
+     * to a manifest. If the manifest already holds runs, generation resumes
+     * after them.
+     *
+     * @param inputFile
+     *            file to sort
+     * @param runsFile
+     *            file the runs are written to
+     * @param options
+     *            sort order, heap size, tie breaking and reduction
+     * @param checkpoint
+     *            manifest to record progress in, or null
+     * @throws IOException
+     */
+    public ReplacementSelection(
+        String inputFile,
+        String runsFile,
+        SortOptions options,
+        SortManifest checkpoint)
+        throws IOException {
+        options.check();
+        RandomAccessFile input = DirectFile.open(inputFile, "r", options
+            .isDirectIo());
+        SpillFiles output = new SpillFiles(runsFile, options, "rw");
+        DirectBufferPool pool = options.getBufferPool();
+        ByteBuffer[] blocks = DirectBufferPool.acquire(pool, 1 + output
+            .stripes());
+        try {
+            generateRuns(input, output, options, checkpoint, blocks);
+            if (checkpoint != null) {
+                output.sync();
+                checkpoint.passDone(0, runsFile, runs);
+            }
+        }
+        finally {
+            input.close();
+            output.close();
+            if (pool != null) {
+                pool.release(blocks);
+            }
         }
+    }
+
+
+    /**
+     * @return the runs written, as byte offset and record count
+     */
+    public RunTable getRuns() {
+        return runs;
+    }
+
+
+    /**
+     * @return the number of records read
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
 
-        this.minHeap = new MinHeap<Record>(this.heap, i, heap.length);
-        System.out.println(minHeap.heapSize());
 
-        while (minHeap.heapSize() > 0) {
-            Record minRecord = minHeap.removeMin();
-            outputBuffer.getBuffer().putRecord(minRecord);
-            currentRecordKey = minRecord.getKey();
+    /**
+     * Generate the runs, dealing them out round-robin over the stripes of
+     * output. blocks holds the input's block and then one per stripe.
+     */
+    private void generateRuns(
+        RandomAccessFile input,
+        SpillFiles output,
+        SortOptions options,
+        SortManifest checkpoint,
+        ByteBuffer[] blocks)
+        throws IOException {
+        SortOrder order = options.getSortOrder();
+        TieBreak tieBreak = options.effectiveTieBreak();
+        long total = input.length() / Record.BYTES;
+        int capacity = options.getHeapBlocks() * ByteFile.RECORDS_PER_BLOCK;
+        RecordArena arena = options.getRecordArena();
+        DaryHeap heap = arena == null
+            ? new DaryHeap(capacity, options.getHeapArity())
+            : new OffHeapDaryHeap(capacity, options.getHeapArity(), arena);
 
-            if (outputBuffer.getBuffer().isFull()) {
-                outputBuffer.getBuffer().flush();
-                outputBuffer = new BufferPool(ByteFile.RECORDS_PER_BLOCK,
-                    runsFile, "rw");
+        runs = new RunTable();
+        long ordinal = 0;
+        long[] ends = new long[output.stripes()]; // where each stripe ends
+        if (checkpoint != null) {
+            // pick up after the last checkpointed run, if any
+            RunTable done = checkpoint.getRuns();
+            for (int i = 0; i < done.size(); i++) {
+                runs.add(done.getStart(i), done.getLength(i), done.getStripe(
+                    i));
+                ends[done.getStripe(i)] = done.getStart(i) + done.getLength(i)
+                    * Record.BYTES;
             }
+            ordinal = checkpoint.getOrdinal();
+            checkpoint.readCarry(heap);
+        }
+
+        Buffer inputBuffer = new Buffer(input, 0, DirectBufferPool.block(
+            blocks, 0));
+        RunWriter[] writers = new RunWriter[output.stripes()];
+        for (int s = 0; s < writers.length; s++) {
+            output.file(s).setLength(ends[s]);
+            writers[s] = new RunWriter(new Buffer(output.file(s), ends[s],
+                DirectBufferPool.block(blocks, 1 + s)), options.getReduction(),
+                false);
+        }
+        int stripe = runs.size() % writers.length;
+        RunWriter writer = writers[stripe];
+        // the input is decoded a block at a time into these
+        long[] ids = new long[ByteFile.RECORDS_PER_BLOCK];
+        double[] keys = new double[ByteFile.RECORDS_PER_BLOCK];
+        int next = 0;
+        int loaded = 0;
+        while (ordinal < total && heap.heapSize() < heap.capacity()) {
+            if (next == loaded) {
+                inputBuffer.load(ordinal * Record.BYTES,
+                    ByteFile.BYTES_PER_BLOCK);
+                loaded = inputBuffer.getRecords(ids, keys, 0);
+                next = 0;
+            }
+            long id = ids[next];
+            double key = keys[next++];
+            heap.append(order.sortKey(id, key), tieBreak.tie(ordinal, id, key),
+                order.payload(id, key));
+            ordinal++;
+        }
+        heap.buildHeap();
 
-            if (inputBuffer.getBuffer().hasRemaining()) {
-                Record newRecord = inputBuffer.getBuffer().getNextRecord();
-                if (newRecord.getKey() < currentRecordKey) {
-                    heap[heapLastIndex] = newRecord;
-                    heapLastIndex--;
+        int end = heap.heapSize(); // parked records end here
+        int parked = 0;
+        SortEvents.RunEvent event = new SortEvents.RunEvent();
+        event.begin();
+        while (heap.heapSize() > 0) {
+            long minKey = heap.minKey();
+            long minTie = heap.minTie();
+            long minPayload = heap.minPayload();
+            writer.put(order.recordID(minKey, minPayload), order.recordKey(
+                minKey, minPayload), minKey);
+
+            if (ordinal < total) {
+                if (next == loaded) {
+                    inputBuffer.load(ordinal * Record.BYTES,
+                        ByteFile.BYTES_PER_BLOCK);
+                    loaded = inputBuffer.getRecords(ids, keys, 0);
+                    next = 0;
+                }
+                long id = ids[next];
+                double key = keys[next++];
+                long sortKey = order.sortKey(id, key);
+                long tie = tieBreak.tie(ordinal, id, key);
+                long payload = order.payload(id, key);
+                ordinal++;
+                if (sortKey > minKey || (sortKey == minKey && tie >= minTie)) {
+                    heap.replaceMin(sortKey, tie, payload);
                 }
                 else {
-                    minHeap.insert(newRecord);
+                    // sorts before the last record written, hold it for the
+                    // next run
+                    heap.deferMin(sortKey, tie, payload);
+                    parked++;
                 }
             }
+            else {
+                heap.removeMin();
+            }
 
-            if (minHeap.heapSize() == 0 && heapLastIndex < heapSize - 1) {
-                System.arraycopy(heap, heapLastIndex + 1, heap, 0, heap.length
-                    - heapLastIndex - 1);
-                this.minHeap = new MinHeap<Record>(this.heap, 0, heap.length);
-                this.currentRecordKey = Double.NEGATIVE_INFINITY;
-                this.heapLastIndex = ByteFile.RECORDS_PER_BLOCK * 8 - 1;
-                runCount++;
+            if (heap.heapSize() == 0) {
+                long runLength = writer.endRun();
+                if (parked > 0) {
+                    heap.restoreParked(end, parked);
+                    end = parked;
+                    parked = 0;
+                }
+                if (checkpoint != null) {
+                    writer.flush();
+                    output.sync(stripe);
+                    checkpoint.runDone(ends[stripe], runLength, stripe,
+                        ordinal, heap);
+                }
+                event.records = runLength;
+                event.bytes = runLength * Record.BYTES;
+                event.stripe = stripe;
+                event.commit();
+                event = new SortEvents.RunEvent();
+                event.begin();
+                runs.add(ends[stripe], runLength, stripe);
+                ends[stripe] += runLength * Record.BYTES;
+                stripe = (stripe + 1) % writers.length;
+                writer = writers[stripe];
             }
         }
-        inputBuffer.close();
-        outputBuffer.close();
+        for (RunWriter stripeWriter : writers) {
+            stripeWriter.flush();
+        }
+        recordCount = ordinal;
     }
 }
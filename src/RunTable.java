@@ -0,0 +1,164 @@
+import java.util.Arrays;
+
+/**
+ * The runs in a set of spill files: byte offset, record count and stripe of
+ * each, in the order they were written. The table is three parallel
+ * primitive arrays that double when full, so appending and reading a run by
+ * index are constant time and a million runs cost 20 bytes each instead of
+ * a linked list node apiece.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class RunTable {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] starts;
+    private long[] lengths;
+    private int[] stripes;
+    private int size;
+
+    /**
+     * Create an empty table.
+     */
+    public RunTable() {
+        starts = new long[INITIAL_CAPACITY];
+        lengths = new long[INITIAL_CAPACITY];
+        stripes = new int[INITIAL_CAPACITY];
+    }
+
+
+    /**
+     * @return the number of runs
+     */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+     * @return true if there are no runs
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+
+    /**
+     * Add a run in the first spill file to the end of the table.
+     *
+     * @param start
+     *            byte offset of the run
+     * @param length
+     *            records in the run
+     */
+    public void add(long start, long length) {
+        add(start, length, 0);
+    }
+
+
+    /**
+     * Add a run to the end of the table.
+     *
+     * @param start
+     *            byte offset of the run
+     * @param length
+     *            records in the run
+     * @param stripe
+     *            spill file holding the run
+     */
+    public void add(long start, long length, int stripe) {
+        if (size == starts.length) {
+            int capacity = 2 * size;
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            stripes = Arrays.copyOf(stripes, capacity);
+        }
+        starts[size] = start;
+        lengths[size] = length;
+        stripes[size] = stripe;
+        size++;
+    }
+
+
+    /**
+     * @param run
+     *            index of the run
+     * @return the byte offset of the run
+     */
+    public long getStart(int run) {
+        check(run);
+        return starts[run];
+    }
+
+
+    /**
+     * @param run
+     *            index of the run
+     * @return the number of records in the run
+     */
+    public long getLength(int run) {
+        check(run);
+        return lengths[run];
+    }
+
+
+    /**
+     * @param run
+     *            index of the run
+     * @return the spill file holding the run
+     */
+    public int getStripe(int run) {
+        check(run);
+        return stripes[run];
+    }
+
+
+    /**
+     * Order the runs shortest first, for planning which runs to merge
+     * together. Runs of equal length keep their table order.
+     *
+     * @return run indexes, shortest run first
+     */
+    public int[] byLength() {
+        DaryHeap heap = new DaryHeap(Math.max(1, size));
+        for (int i = 0; i < size; i++) {
+            heap.append(lengths[i], i, i);
+        }
+        heap.buildHeap();
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = (int)heap.minPayload();
+            heap.removeMin();
+        }
+        return order;
+    }
+
+
+    /**
+     * Return the table in the format "{(start1, length1), (start2,
+     * length2), ...}".
+     *
+     * @return a string representation of the table
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append("(").append(starts[i]).append(", ").append(
+                lengths[i]).append(")");
+        }
+        builder.append("}");
+        return builder.toString();
+    }
+
+
+    private void check(int run) {
+        if (run < 0 || run >= size) {
+            throw new IndexOutOfBoundsException("run " + run + " of " + size);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+import student.TestCase;
+
+/**
+ * Tests for RunTable
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class RunTableTest extends TestCase {
+
+    /**
+     * set up for tests
+     */
+    public void setUp() {
+        // nothing to set up.
+    }
+
+
+    /**
+     * Runs keep their fields and order as the table grows
+     */
+    public void testAddAndGet() {
+        RunTable table = new RunTable();
+        assertTrue(table.isEmpty());
+        for (int i = 0; i < 1000; i++) {
+            table.add(i * 100L, i + 1, i % 3);
+        }
+        assertEquals(1000, table.size());
+        assertEquals(99900, table.getStart(999));
+        assertEquals(1000, table.getLength(999));
+        assertEquals(0, table.getStripe(999));
+        assertEquals(2, table.getStripe(5));
+        try {
+            table.getLength(1000);
+            fail("expected IndexOutOfBoundsException");
+        }
+        catch (IndexOutOfBoundsException e) {
+            assertTrue(e.getMessage().contains("1000"));
+        }
+    }
+
+
+    /**
+     * byLength() puts short runs first and keeps equal runs in order
+     */
+    public void testByLength() {
+        RunTable table = new RunTable();
+        table.add(0, 30);
+        table.add(480, 10);
+        table.add(640, 20);
+        table.add(960, 10);
+        int[] order = table.byLength();
+        assertEquals(1, order[0]);
+        assertEquals(3, order[1]);
+        assertEquals(2, order[2]);
+        assertEquals(0, order[3]);
+        assertEquals("{(0, 30), (480, 10), (640, 20), (960, 10)}", table
+            .toString());
+        assertEquals(0, new RunTable().byLength().length);
+    }
+}
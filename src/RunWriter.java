@@ -0,0 +1,219 @@
+import java.io.IOException;
+
+/**
+ * Writes the records of sorted runs through a Buffer, applying a Reduction
+ * on the way and counting what each run ends up holding. The final output
+ * can be split over shards instead.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+class RunWriter {
+    private Buffer buffer;
+    private Reduction reduction;
+    private boolean weighted;
+    private boolean hasLast; // false at the start of each run
+    private long lastID;
+    private long lastKeyBits;
+    private long lastSortKey;
+    private long count;
+    private long written;
+    private BlockSample sample;
+    private ShardedOutput shards;
+    private KeyStats stats;
+    private OutputTee tee;
+    private long[] ids; // records waiting to be encoded into the buffer
+    private double[] keys;
+    private int staged;
+
+    /**
+     * Create a new RunWriter.
+     *
+     * @param buffer
+     *            buffer the records are put in
+     * @param reduction
+     *            reduction to apply
+     * @param weighted
+     *            true when the records are already counts from an earlier
+     *            COUNT_PER_KEY step, so their IDs are summed
+     */
+    RunWriter(Buffer buffer, Reduction reduction, boolean weighted) {
+        this.buffer = buffer;
+        this.reduction = reduction;
+        this.weighted = weighted;
+        this.ids = new long[buffer.recordCapacity()];
+        this.keys = new double[ids.length];
+    }
+
+
+    /**
+     * Write a record, or fold it into the previous one.
+     *
+     * @param id
+     *            record ID
+     * @param key
+     *            record key
+     * @param sortKey
+     *            the record's SortOrder sort key
+     */
+    public void put(long id, double key, long sortKey) throws IOException {
+        switch (reduction) {
+            case NONE:
+                write(id, key, sortKey);
+                return;
+            case DISTINCT:
+                long keyBits = Double.doubleToRawLongBits(key);
+                if (hasLast && id == lastID && keyBits == lastKeyBits) {
+                    return;
+                }
+                lastID = id;
+                lastKeyBits = keyBits;
+                write(id, key, sortKey);
+                break;
+            case FIRST_PER_KEY:
+                if (hasLast && sortKey == lastSortKey) {
+                    return;
+                }
+                write(id, key, sortKey);
+                break;
+            default:
+                long weight = weighted ? id : 1;
+                if (hasLast && sortKey == lastSortKey) {
+                    count += weight;
+                    return;
+                }
+                if (hasLast) {
+                    write(count, Double.longBitsToDouble(lastKeyBits),
+                        lastSortKey);
+                }
+                lastKeyBits = Double.doubleToRawLongBits(key);
+                count = weight;
+                break;
+        }
+        lastSortKey = sortKey;
+        hasLast = true;
+    }
+
+
+    /**
+     * Collect the first record of every block written from here on. Only
+     * meaningful when the writer produces a single run starting at a block
+     * boundary, as the final output does.
+     *
+     * @param blocks
+     *            sample to add to, or null to stop collecting
+     */
+    public void setSample(BlockSample blocks) {
+        this.sample = blocks;
+    }
+
+
+    /**
+     * Split what is written from here on over shard files, starting with
+     * the one open in shards, instead of writing it through the buffer's
+     * file. Only meaningful for the final output.
+     *
+     * @param shards
+     *            shards to write, or null
+     */
+    public void setShards(ShardedOutput shards) {
+        this.shards = shards;
+        if (shards != null) {
+            buffer.setFile(shards.file());
+        }
+    }
+
+
+    /**
+     * Gather statistics on the keys written from here on. Only meaningful
+     * for the final output.
+     *
+     * @param stats
+     *            statistics to add to, or null
+     */
+    public void setStats(KeyStats stats) {
+        this.stats = stats;
+    }
+
+
+    /**
+     * Hand every block written from here on to sinks as well. Only
+     * meaningful for the final output.
+     *
+     * @param tee
+     *            tee to the sinks, or null
+     */
+    public void setTee(OutputTee tee) {
+        this.tee = tee;
+    }
+
+
+    /**
+     * Finish the current run, writing any pending count.
+     *
+     * @return the number of records the run holds
+     */
+    public long endRun() throws IOException {
+        if (hasLast && reduction == Reduction.COUNT_PER_KEY) {
+            write(count, Double.longBitsToDouble(lastKeyBits), lastSortKey);
+        }
+        hasLast = false;
+        long length = written;
+        written = 0;
+        return length;
+    }
+
+
+    /**
+     * Write out whatever is waiting. Records put afterwards go right after
+     * it in the file.
+     */
+    public void flush() throws IOException {
+        buffer.putRecords(ids, keys, 0, staged);
+        staged = 0;
+        writeBlock();
+    }
+
+
+    private void write(long id, double key, long sortKey)
+        throws IOException {
+        long inFile = written;
+        if (shards != null) {
+            if (shards.cut(sortKey)) {
+                // the shard is done, start the next at its beginning
+                flush();
+                shards.next();
+                buffer.setFile(shards.file());
+                buffer.setPosition(0);
+            }
+            inFile = shards.add(id, key, sortKey);
+        }
+        else if (stats != null) {
+            stats.add(key);
+        }
+        if (sample != null && inFile % ByteFile.RECORDS_PER_BLOCK == 0) {
+            sample.add(id, key);
+        }
+        ids[staged] = id;
+        keys[staged] = key;
+        staged++;
+        written++;
+        if (staged == ids.length) {
+            // a block's worth is staged, encode it in one go
+            buffer.putRecords(ids, keys, 0, staged);
+            staged = 0;
+            writeBlock();
+        }
+    }
+
+
+    /**
+     * Write out the buffer, teeing it first.
+     */
+    private void writeBlock() throws IOException {
+        if (tee != null) {
+            tee.offer(buffer.contents());
+        }
+        buffer.flushAndAdvance();
+    }
+}
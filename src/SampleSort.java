@@ -0,0 +1,533 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A distribution sort: an alternative to replacement selection plus merging
+ * that reads and writes the data twice no matter how large the input is.
+ *
+ * A strided sample of the input picks bucketCount - 1 splitters. One pass
+ * over the input scatters every record into its bucket file, and the
+ * buckets are then sorted in memory in parallel and appended to the output
+ * in order. A bucket that sampling got badly wrong, too large for its share
+ * of memory, is sorted with ReplacementSelection and MultiwayMerge instead.
+ *
+ * Records are split on their sort key and tie breaker, and buckets keep
+ * input order, so the output is the same as the merge engine's whenever the
+ * tie breaking makes the order unique.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class SampleSort {
+    /**
+     * suffix of the bucket files, followed by the bucket number
+     */
+    public static final String BUCKET_SUFFIX = ".bucket";
+
+    private static final int OVERSAMPLE = 64; // samples per bucket
+    private static final int MAX_BUCKETS = 1024; // open files while scattering
+    private static final int BYTES_IN_MEMORY = 64; // per record while sorting
+    private static final long MAX_BUCKET = Integer.MAX_VALUE - 8; // array
+
+    private SortOrder order;
+    private TieBreak tieBreak;
+    private SortOptions options;
+    private String outputFile;
+    private long bucketCapacity;
+    private long[] splitKeys;
+    private long[] splitTies;
+    private long[] bucketSizes;
+    private long recordCount;
+    private BlockSample sample;
+
+    /**
+     * Sort the input file into the output file.
+     *
+     * @param inputFile
+     *            file to sort
+     * @param outputFile
+     *            file the sorted records are written to
+     * @param options
+     *            sort order, tie breaking, reduction, threads and memory
+     * @throws IOException
+     */
+    public SampleSort(String inputFile, String outputFile, SortOptions options)
+        throws IOException {
+        options.check();
+        this.order = options.getSortOrder();
+        this.tieBreak = options.effectiveTieBreak();
+        this.options = options;
+        this.outputFile = outputFile;
+        this.recordCount = ByteFile.recordCount(inputFile);
+
+        int threads = Math.max(1, options.getThreads());
+        bucketCapacity = Math.min(MAX_BUCKET, Math.max(
+            ByteFile.RECORDS_PER_BLOCK, options.getMemoryBytes() / threads
+                / BYTES_IN_MEMORY));
+        // aim for half full buckets, so sampling error rarely overflows one
+        long wanted = (2 * recordCount + bucketCapacity - 1) / bucketCapacity;
+        int bucketCount = (int)Math.max(1, Math.min(MAX_BUCKETS, Math.max(
+            wanted, Math.min(threads, recordCount
+                / ByteFile.RECORDS_PER_BLOCK))));
+
+        RandomAccessFile input = DirectFile.open(inputFile, "r", options
+            .isDirectIo());
+        try {
+            sample(input, bucketCount);
+            scatter(input);
+        }
+        finally {
+            input.close();
+        }
+        sortBuckets(threads);
+    }
+
+
+    /**
+     * @return the number of records read
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+
+    /**
+     * @return the first record of each block of the output file
+     */
+    public BlockSample getSample() {
+        return sample;
+    }
+
+
+    /**
+     * @return the number of buckets the input was split into
+     */
+    public int getBucketCount() {
+        return bucketSizes.length;
+    }
+
+
+    /**
+     * Read OVERSAMPLE evenly spaced records per bucket, one positional read
+     * each, sort them and keep every OVERSAMPLE-th as a splitter.
+     */
+    private void sample(RandomAccessFile input, int bucketCount)
+        throws IOException {
+        int samples = (int)Math.min(recordCount, (long)bucketCount
+            * OVERSAMPLE);
+        long[] keys = new long[samples];
+        long[] ties = new long[samples];
+        long[] scratchKeys = new long[samples];
+        long[] scratchTies = new long[samples];
+        Buffer probe = new Buffer(input, 0, Record.BYTES);
+        for (int i = 0; i < samples; i++) {
+            long ordinal = i * recordCount / samples;
+            probe.load(ordinal * Record.BYTES, Record.BYTES);
+            long id = probe.nextID();
+            double key = probe.nextKey();
+            keys[i] = order.sortKey(id, key);
+            ties[i] = splitTie(ordinal, id, key);
+        }
+        radixSort(ties, keys, null, null, scratchTies, scratchKeys, null,
+            null, samples);
+        radixSort(keys, ties, null, null, scratchKeys, scratchTies, null,
+            null, samples);
+
+        int splitters = samples == 0 ? 0 : bucketCount - 1;
+        splitKeys = new long[splitters];
+        splitTies = new long[splitters];
+        for (int j = 0; j < splitters; j++) {
+            int pick = (int)((long)(j + 1) * samples / bucketCount);
+            splitKeys[j] = keys[pick];
+            splitTies[j] = ties[pick];
+        }
+        bucketSizes = new long[splitters + 1];
+    }
+
+
+    /**
+     * Stream the input once, appending each record to its bucket file
+     * through that bucket's write buffer.
+     */
+    private void scatter(RandomAccessFile input) throws IOException {
+        int bucketCount = bucketSizes.length;
+        BufferPool[] pools = new BufferPool[bucketCount];
+        Buffer[] writers = new Buffer[bucketCount];
+        try {
+            for (int b = 0; b < bucketCount; b++) {
+                new File(bucketFile(b)).delete();
+                pools[b] = new BufferPool(1, bucketFile(b), "rw", options
+                    .isDirectIo());
+                writers[b] = pools[b].getWriteBuffer(0);
+            }
+            Buffer inputBuffer = new Buffer(input, 0,
+                ByteFile.BYTES_PER_BLOCK);
+            long[] ids = new long[ByteFile.RECORDS_PER_BLOCK];
+            double[] keys = new double[ByteFile.RECORDS_PER_BLOCK];
+            int next = 0;
+            int loaded = 0;
+            for (long ordinal = 0; ordinal < recordCount; ordinal++) {
+                if (next == loaded) {
+                    inputBuffer.load(ordinal * Record.BYTES,
+                        ByteFile.BYTES_PER_BLOCK);
+                    loaded = inputBuffer.getRecords(ids, keys, 0);
+                    next = 0;
+                }
+                long id = ids[next];
+                double key = keys[next++];
+                int b = bucketOf(order.sortKey(id, key), splitTie(ordinal, id,
+                    key));
+                writers[b].putRecord(id, key);
+                bucketSizes[b]++;
+                if (writers[b].isFull()) {
+                    writers[b].flushAndAdvance();
+                }
+            }
+        }
+        finally {
+            for (int b = 0; b < bucketCount; b++) {
+                if (pools[b] != null) {
+                    pools[b].close();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Sort the buckets on a pool of threads and append them to the output in
+     * bucket order. At most threads buckets are held in memory at a time
+     * beyond the one being written.
+     */
+    private void sortBuckets(int threads) throws IOException {
+        int bucketCount = bucketSizes.length;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        Future<SortedBucket>[] futures = new Future[bucketCount];
+        ShardedOutput shards = null;
+        RandomAccessFile output = null;
+        KeyStats stats = null;
+        OutputTee tee = null;
+        try {
+            if (options.isSharded()) {
+                shards = new ShardedOutput(outputFile, options, recordCount);
+            }
+            else {
+                output = DirectFile.open(outputFile, "rw", options
+                    .isDirectIo());
+                output.setLength(0);
+                if (options.isKeyStats()) {
+                    stats = new KeyStats(outputFile);
+                }
+            }
+            RunWriter writer = new RunWriter(new Buffer(output, 0,
+                ByteFile.BYTES_PER_BLOCK), options.getReduction(), false);
+            writer.setShards(shards);
+            writer.setStats(stats);
+            tee = OutputTee.of(options);
+            writer.setTee(tee);
+            sample = new BlockSample();
+            writer.setSample(sample);
+            int submitted = 0;
+            for (int b = 0; b < bucketCount; b++) {
+                while (submitted < bucketCount && submitted - b <= threads) {
+                    final int bucket = submitted;
+                    futures[bucket] = executor.submit(() -> sortBucket(
+                        bucket));
+                    submitted++;
+                }
+                futures[b].get().writeTo(writer, order);
+                futures[b] = null;
+                new File(bucketFile(b)).delete();
+            }
+            writer.endRun();
+            writer.flush();
+            if (tee != null) {
+                tee.finish();
+            }
+            if (shards != null) {
+                shards.finish();
+            }
+            if (stats != null) {
+                stats.finish();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sorting buckets", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            throw new IOException("Bucket sort failed", e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+            if (tee != null) {
+                tee.close();
+            }
+            if (shards != null) {
+                shards.close();
+            }
+            if (output != null) {
+                output.close();
+            }
+            if (stats != null) {
+                stats.abandon();
+            }
+            for (int b = 0; b < bucketCount; b++) {
+                new File(bucketFile(b)).delete();
+                new File(bucketFile(b) + ".sorted").delete();
+            }
+        }
+    }
+
+
+    /**
+     * Sort one bucket, in memory if it fits its share, otherwise on disk.
+     */
+    private SortedBucket sortBucket(int b) throws IOException {
+        if (bucketSizes[b] > bucketCapacity) {
+            // reduce only once, when the bucket is appended to the output
+            SortOptions unreduced = new SortOptions(options);
+            unreduced.setReduction(Reduction.NONE);
+            unreduced.setShardCount(0);
+            unreduced.setShardBounds(null);
+            unreduced.setKeyStats(false);
+            unreduced.setSinks(new OutputSink[0]);
+            String sorted = bucketFile(b) + ".sorted";
+            String runs = bucketFile(b) + ".runs";
+            ReplacementSelection selection = new ReplacementSelection(
+                bucketFile(b), runs, unreduced);
+            new MultiwayMerge(selection.getRuns(), runs, sorted, unreduced);
+            new File(runs).delete();
+            return new SortedBucket(sorted, options.isDirectIo());
+        }
+
+        int n = (int)bucketSizes[b];
+        long[] keys = new long[n];
+        long[] ties = new long[n];
+        long[] ids = new long[n];
+        long[] keyBits = new long[n];
+        RandomAccessFile bucket = DirectFile.open(bucketFile(b), "r", options
+            .isDirectIo());
+        try {
+            Buffer buffer = new Buffer(bucket, 0, ByteFile.BYTES_PER_BLOCK);
+            long[] blockIDs = new long[ByteFile.RECORDS_PER_BLOCK];
+            double[] blockKeys = new double[ByteFile.RECORDS_PER_BLOCK];
+            int i = 0;
+            while (i < n) {
+                buffer.load((long)i * Record.BYTES, ByteFile.BYTES_PER_BLOCK);
+                int decoded = buffer.getRecords(blockIDs, blockKeys, 0);
+                if (decoded == 0) {
+                    throw new IOException("Bucket " + b + " is cut short");
+                }
+                for (int j = 0; j < decoded && i < n; i++, j++) {
+                    ids[i] = blockIDs[j];
+                    double key = blockKeys[j];
+                    keyBits[i] = Double.doubleToRawLongBits(key);
+                    keys[i] = order.sortKey(ids[i], key);
+                    ties[i] = tieBreak.tie(i, ids[i], key);
+                }
+            }
+        }
+        finally {
+            bucket.close();
+        }
+
+        long[] scratchKeys = new long[n];
+        long[] scratchTies = new long[n];
+        long[] scratchIDs = new long[n];
+        long[] scratchBits = new long[n];
+        if (tieBreak == TieBreak.ID || tieBreak == TieBreak.KEY) {
+            radixSort(ties, keys, ids, keyBits, scratchTies, scratchKeys,
+                scratchIDs, scratchBits, n);
+        }
+        // the radix sort is stable, so equal keys stay in input order
+        radixSort(keys, ids, keyBits, null, scratchKeys, scratchIDs,
+            scratchBits, null, n);
+        return new SortedBucket(keys, ids, keyBits);
+    }
+
+
+    /**
+     * Return the bucket of a record: the number of splitters not after it.
+     */
+    private int bucketOf(long key, long tie) {
+        int low = 0;
+        int high = splitKeys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (splitKeys[mid] < key || (splitKeys[mid] == key
+                && splitTies[mid] <= tie)) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+
+    /**
+     * Return the tie breaker records are split on. Equal records are split
+     * by input position unless the order needs them kept together.
+     */
+    private long splitTie(long ordinal, long id, double key) {
+        if (tieBreak == TieBreak.NONE) {
+            return ordinal;
+        }
+        return tieBreak.tie(ordinal, id, key);
+    }
+
+
+    private String bucketFile(int b) {
+        return outputFile + BUCKET_SUFFIX + b;
+    }
+
+
+    /**
+     * Stable LSD radix sort of n elements by the signed value of sortBy,
+     * moving up to three companion arrays (which may be null) along with
+     * it. Byte positions all elements agree on are skipped. The scratch
+     * arrays must be as long as the arrays they shadow; results end up in
+     * the original arrays.
+     */
+    static void radixSort(
+        long[] sortBy,
+        long[] a,
+        long[] b,
+        long[] c,
+        long[] sortByScratch,
+        long[] aScratch,
+        long[] bScratch,
+        long[] cScratch,
+        int n) {
+        int[] counts = new int[257];
+        long[] src = sortBy;
+        long[] dst = sortByScratch;
+        long[] srcA = a;
+        long[] dstA = aScratch;
+        long[] srcB = b;
+        long[] dstB = bScratch;
+        long[] srcC = c;
+        long[] dstC = cScratch;
+        for (int shift = 0; shift < 64; shift += 8) {
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < n; i++) {
+                counts[digit(src[i], shift) + 1]++;
+            }
+            if (n == 0 || counts[digit(src[0], shift) + 1] == n) {
+                continue; // every element has the same digit here
+            }
+            for (int d = 0; d < 256; d++) {
+                counts[d + 1] += counts[d];
+            }
+            for (int i = 0; i < n; i++) {
+                int to = counts[digit(src[i], shift)]++;
+                dst[to] = src[i];
+                if (srcA != null) {
+                    dstA[to] = srcA[i];
+                }
+                if (srcB != null) {
+                    dstB[to] = srcB[i];
+                }
+                if (srcC != null) {
+                    dstC[to] = srcC[i];
+                }
+            }
+            long[] swap = src;
+            src = dst;
+            dst = swap;
+            swap = srcA;
+            srcA = dstA;
+            dstA = swap;
+            swap = srcB;
+            srcB = dstB;
+            dstB = swap;
+            swap = srcC;
+            srcC = dstC;
+            dstC = swap;
+        }
+        if (src != sortBy) {
+            System.arraycopy(src, 0, sortBy, 0, n);
+            if (a != null) {
+                System.arraycopy(srcA, 0, a, 0, n);
+            }
+            if (b != null) {
+                System.arraycopy(srcB, 0, b, 0, n);
+            }
+            if (c != null) {
+                System.arraycopy(srcC, 0, c, 0, n);
+            }
+        }
+    }
+
+
+    private static int digit(long value, int shift) {
+        return (int)(((value ^ Long.MIN_VALUE) >>> shift) & 0xFF);
+    }
+
+
+    /**
+     * A sorted bucket, either in memory or in a file.
+     */
+    private static class SortedBucket {
+        private long[] keys;
+        private long[] ids;
+        private long[] keyBits;
+        private String file;
+        private boolean direct;
+
+        SortedBucket(long[] keys, long[] ids, long[] keyBits) {
+            this.keys = keys;
+            this.ids = ids;
+            this.keyBits = keyBits;
+        }
+
+
+        SortedBucket(String file, boolean direct) {
+            this.file = file;
+            this.direct = direct;
+        }
+
+
+        void writeTo(RunWriter writer, SortOrder order) throws IOException {
+            if (file == null) {
+                for (int i = 0; i < ids.length; i++) {
+                    writer.put(ids[i], Double.longBitsToDouble(keyBits[i]),
+                        keys[i]);
+                }
+                return;
+            }
+            RandomAccessFile sorted = DirectFile.open(file, "r", direct);
+            try {
+                Buffer buffer = new Buffer(sorted, 0,
+                    ByteFile.BYTES_PER_BLOCK);
+                long position = 0;
+                long[] blockIDs = new long[ByteFile.RECORDS_PER_BLOCK];
+                double[] blockKeys = new double[ByteFile.RECORDS_PER_BLOCK];
+                while (buffer.load(position, ByteFile.BYTES_PER_BLOCK) > 0) {
+                    position += ByteFile.BYTES_PER_BLOCK;
+                    int decoded = buffer.getRecords(blockIDs, blockKeys, 0);
+                    for (int i = 0; i < decoded; i++) {
+                        writer.put(blockIDs[i], blockKeys[i], order.sortKey(
+                            blockIDs[i], blockKeys[i]));
+                    }
+                }
+            }
+            finally {
+                sorted.close();
+            }
+            new File(file).delete();
+        }
+    }
+}
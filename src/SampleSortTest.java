@@ -0,0 +1,110 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import student.TestCase;
+
+/**
+ * Tests for SampleSort
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class SampleSortTest extends TestCase {
+    private static final String INPUT = "sampleSortInput.bin";
+    private static final String OUTPUT = "sampleSortOutput.bin";
+    private static final String RUNS = "sampleSortRuns.bin";
+
+    /**
+     * set up for tests
+     * @throws IOException
+     */
+    public void setUp() throws IOException {
+        new ByteFile(INPUT, 40).writeRandomRecords();
+    }
+
+
+    /**
+     * clean up after tests
+     */
+    public void tearDown() {
+        new File(INPUT).delete();
+        new File(OUTPUT).delete();
+        new File(RUNS).delete();
+    }
+
+
+    /**
+     * Stable output is byte-identical to the merge engine's, whatever the
+     * number of threads or buckets
+     * @throws IOException
+     */
+    public void testMatchesMergeEngine() throws IOException {
+        SortOptions options = new SortOptions();
+        options.setTieBreak(TieBreak.ORDINAL);
+        ReplacementSelection selection = new ReplacementSelection(INPUT, RUNS,
+            options);
+        new MultiwayMerge(selection.getRuns(), RUNS, OUTPUT, options);
+        byte[] expected = ByteFile.readAll(OUTPUT);
+
+        for (int threads = 1; threads <= 4; threads *= 2) {
+            options.setThreads(threads);
+            options.setMemoryBytes(256 << 10);
+            SampleSort sort = new SampleSort(INPUT, OUTPUT, options);
+            assertTrue(sort.getBucketCount() > 1);
+            assertEquals(40 * ByteFile.RECORDS_PER_BLOCK, sort
+                .getRecordCount());
+            assertTrue(Arrays.equals(expected, ByteFile.readAll(OUTPUT)));
+        }
+    }
+
+
+    /**
+     * Orders, reductions and buckets too big for memory all work
+     * @throws IOException
+     */
+    public void testOrdersAndOverflow() throws IOException {
+        for (SortOrder order : SortOrder.values()) {
+            SortOptions options = new SortOptions();
+            options.setSortOrder(order);
+            options.setThreads(2);
+            options.setMemoryBytes(1); // every bucket overflows to disk
+            new SampleSort(INPUT, OUTPUT, options);
+            assertTrue(order.name(), new ByteFile(OUTPUT, 40).isSorted(
+                order));
+        }
+        SortOptions options = new SortOptions();
+        options.setReduction(Reduction.COUNT_PER_KEY);
+        options.setSortOrder(SortOrder.ID);
+        try {
+            new SampleSort(INPUT, OUTPUT, options);
+            fail("counted records per ID");
+        }
+        catch (IllegalArgumentException e) {
+            // counts would replace the IDs they group by
+        }
+    }
+
+
+    /**
+     * The radix sort is stable and handles negative values
+     */
+    public void testRadixSort() {
+        Random rng = new Random(1);
+        int n = 5000;
+        long[] keys = new long[n];
+        long[] order = new long[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = rng.nextInt(100) - 50L << (rng.nextInt(3) * 20);
+            order[i] = i;
+        }
+        SampleSort.radixSort(keys, order, null, null, new long[n],
+            new long[n], null, null, n);
+        for (int i = 1; i < n; i++) {
+            assertTrue(keys[i - 1] <= keys[i]);
+            if (keys[i - 1] == keys[i]) {
+                assertTrue(order[i - 1] < order[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,362 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+
+/**
+ * Sorted output split over several shard files instead of one, so readers
+ * can take shards in parallel and skip those whose keys they do not want.
+ * The output is cut either every so many records or where the sort key
+ * reaches given boundaries. Records with equal sort keys always land in
+ * the same shard, so the shards' key ranges never overlap.
+ *
+ * Shard n of output file F is F.shard&lt;n&gt;, with its own KeyStats sidecar
+ * if asked for, and a manifest F.shards lists them in order:
+ *
+ * <pre>
+ * externalsort-shards 1
+ * settings ORDER TIEBREAK REDUCTION
+ * shard RECORDS FIRST_ID FIRST_KEY LAST_ID LAST_KEY PATH
+ * </pre>
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class ShardedOutput implements Closeable {
+    /**
+     * suffix added to the output file name to name the manifest
+     */
+    public static final String SUFFIX = ".shards";
+
+    private static final String HEADER = "externalsort-shards 1";
+    private static final String SHARD_SUFFIX = ".shard";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private String outputFile;
+    private SortOptions options;
+    private long[] bounds; // sort keys that start a new shard
+    private int nextBound;
+    private long perShard; // records per shard when cutting by count
+    private RandomAccessFile file;
+    private ArrayList<Shard> shards;
+    private Shard current;
+    private long lastSortKey;
+    private KeyStats stats; // of the shard being written, or null
+
+    /**
+     * One shard file and the records it holds.
+     */
+    public static class Shard {
+        private String path;
+        private long records;
+        private long firstID;
+        private double firstKey;
+        private long lastID;
+        private double lastKey;
+
+        /**
+         * @return the shard's file
+         */
+        public String getPath() {
+            return path;
+        }
+
+
+        /**
+         * @return the number of records in it
+         */
+        public long getRecords() {
+            return records;
+        }
+
+
+        /**
+         * @return the ID of its first record
+         */
+        public long getFirstID() {
+            return firstID;
+        }
+
+
+        /**
+         * @return the key of its first record
+         */
+        public double getFirstKey() {
+            return firstKey;
+        }
+
+
+        /**
+         * @return the ID of its last record
+         */
+        public long getLastID() {
+            return lastID;
+        }
+
+
+        /**
+         * @return the key of its last record
+         */
+        public double getLastKey() {
+            return lastKey;
+        }
+
+
+        /**
+         * Say whether the shard can hold records whose sort keys fall in a
+         * range, so a reader can skip it otherwise.
+         *
+         * @param order
+         *            order the shards were sorted in
+         * @param from
+         *            smallest sort key wanted
+         * @param to
+         *            largest sort key wanted
+         * @return false if no record of the shard is in [from, to]
+         */
+        public boolean overlaps(SortOrder order, long from, long to) {
+            return records > 0 && order.sortKey(firstID, firstKey) <= to
+                && order.sortKey(lastID, lastKey) >= from;
+        }
+    }
+
+    // ----------------------------------------------------------
+    /**
+     * Start writing the shards of an output file, opening the first.
+     *
+     * @param outputFile
+     *            output file naming the shards and the manifest
+     * @param options
+     *            options giving the shard count or boundaries
+     * @param records
+     *            records about to be written, before any reduction; used
+     *            to size shards when cutting by count
+     * @throws IOException
+     */
+    public ShardedOutput(String outputFile, SortOptions options, long records)
+        throws IOException {
+        this.outputFile = outputFile;
+        this.options = options;
+        this.bounds = options.getShardBounds();
+        int count = Math.max(1, options.getShardCount());
+        this.perShard = Math.max(1, (records + count - 1) / count);
+        this.shards = new ArrayList<Shard>();
+        next();
+    }
+
+
+    /**
+     * @return the shard file being written
+     */
+    public RandomAccessFile file() {
+        return file;
+    }
+
+
+    /**
+     * Say whether a record with this sort key starts a new shard. Called
+     * for every record written, in order.
+     *
+     * @param sortKey
+     *            the record's SortOrder sort key
+     * @return true if the shard being written is done and next() must be
+     *         called before the record is added
+     */
+    public boolean cut(long sortKey) {
+        boolean cut = false;
+        if (bounds != null) {
+            while (nextBound < bounds.length && sortKey >= bounds[nextBound]) {
+                nextBound++;
+                cut = true;
+            }
+        }
+        else {
+            cut = current.records >= perShard && sortKey != lastSortKey;
+        }
+        return cut && current.records > 0;
+    }
+
+
+    /**
+     * Count a record into the shard being written.
+     *
+     * @param id
+     *            record ID
+     * @param key
+     *            record key
+     * @param sortKey
+     *            the record's SortOrder sort key
+     * @return the number of records in the shard before this one
+     * @throws IOException
+     */
+    public long add(long id, double key, long sortKey) throws IOException {
+        if (stats != null) {
+            stats.add(key);
+        }
+        if (current.records == 0) {
+            current.firstID = id;
+            current.firstKey = key;
+        }
+        current.lastID = id;
+        current.lastKey = key;
+        lastSortKey = sortKey;
+        return current.records++;
+    }
+
+
+    /**
+     * Close the shard being written and open the next. Its records must
+     * have been flushed to its file.
+     *
+     * @throws IOException
+     */
+    public void next() throws IOException {
+        finishShard();
+        current = new Shard();
+        current.path = outputFile + SHARD_SUFFIX + shards.size();
+        shards.add(current);
+        file = DirectFile.open(current.path, "rw", options.isDirectIo());
+        file.setLength(0);
+        if (options.isKeyStats()) {
+            stats = new KeyStats(current.path);
+        }
+    }
+
+
+    /**
+     * Close the last shard and write the manifest.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        finishShard();
+        StringBuilder text = new StringBuilder();
+        text.append(HEADER).append('\n').append(settingsLine(options)).append(
+            '\n');
+        for (Shard shard : shards) {
+            text.append("shard ").append(shard.records).append(' ').append(
+                shard.firstID).append(' ').append(shard.firstKey).append(' ')
+                .append(shard.lastID).append(' ').append(shard.lastKey)
+                .append(' ').append(shard.path).append('\n');
+        }
+        String temp = outputFile + SUFFIX + TEMP_SUFFIX;
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        finally {
+            out.close();
+        }
+        try {
+            Files.move(Paths.get(temp), Paths.get(outputFile + SUFFIX),
+                StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(Paths.get(temp), Paths.get(outputFile + SUFFIX),
+                StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+
+    /**
+     * Close the shard file being written, if any, and drop its statistics
+     * unless they were finished.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (file != null) {
+            file.close();
+            file = null;
+        }
+        if (stats != null) {
+            stats.abandon();
+            stats = null;
+        }
+    }
+
+
+    private void finishShard() throws IOException {
+        if (file != null) {
+            file.close();
+            file = null;
+        }
+        if (stats != null) {
+            stats.finish();
+            stats = null;
+        }
+    }
+
+
+    /**
+     * @return the shards written so far, in order
+     */
+    public ArrayList<Shard> getShards() {
+        return shards;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Read the manifest of a sharded output file.
+     *
+     * @param outputFile
+     *            output file the shards were written for
+     * @param options
+     *            options the output was sorted under
+     * @return its shards, in order
+     * @throws IOException
+     *             if the manifest is missing, was written for other
+     *             options or cannot be parsed
+     */
+    public static ArrayList<Shard> read(String outputFile, SortOptions options)
+        throws IOException {
+        String manifest = outputFile + SUFFIX;
+        ArrayList<Shard> shards = new ArrayList<Shard>();
+        BufferedReader reader = new BufferedReader(new FileReader(manifest,
+            StandardCharsets.UTF_8));
+        try {
+            if (!HEADER.equals(reader.readLine()) || !settingsLine(options)
+                .equals(reader.readLine())) {
+                throw new IOException(manifest
+                    + " was written for other sort options");
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ", 7);
+                if (fields.length != 7 || !fields[0].equals("shard")) {
+                    throw new IOException("Bad line in " + manifest + ": "
+                        + line);
+                }
+                Shard shard = new Shard();
+                shard.records = Long.parseLong(fields[1]);
+                shard.firstID = Long.parseLong(fields[2]);
+                shard.firstKey = Double.parseDouble(fields[3]);
+                shard.lastID = Long.parseLong(fields[4]);
+                shard.lastKey = Double.parseDouble(fields[5]);
+                shard.path = fields[6];
+                shards.add(shard);
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return shards;
+    }
+
+
+    private static String settingsLine(SortOptions options) {
+        return "settings " + options.getSortOrder() + " " + options
+            .effectiveTieBreak() + " " + options.getReduction();
+    }
+}
@@ -0,0 +1,200 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import student.TestCase;
+
+/**
+ * Tests for ShardedOutput, through whole sorts on both engines.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class ShardedOutputTest extends TestCase {
+    private static final String INPUT = "shardInput.bin";
+    private static final String RUNS = "shardRuns.bin";
+    private static final String OUTPUT = "shardOutput.bin";
+
+    private SortOptions options;
+    private byte[] expected;
+
+    /**
+     * set up for tests
+     * @throws IOException
+     */
+    public void setUp() throws IOException {
+        new ByteFile(INPUT, 40).writeRandomRecords(new Random(3114));
+        options = new SortOptions();
+        options.setTieBreak(TieBreak.ORDINAL);
+        options.setHeapBlocks(2);
+        Externalsort.sort(INPUT, RUNS, OUTPUT, options);
+        expected = ByteFile.readAll(OUTPUT);
+        new File(OUTPUT).delete();
+    }
+
+
+    /**
+     * remove the files of a test
+     */
+    public void tearDown() {
+        new File(INPUT).delete();
+        new File(RUNS).delete();
+        new File(OUTPUT).delete();
+        new File(OUTPUT + ShardedOutput.SUFFIX).delete();
+        for (int n = 0; new File(OUTPUT + ".shard" + n).delete(); n++) {
+            // deleted
+        }
+    }
+
+
+    /**
+     * Splitting by count gives that many shards of about equal size which,
+     * read in order, are the unsharded output
+     * @throws IOException
+     */
+    public void testShardCount() throws IOException {
+        options.setShardCount(4);
+        BlockSample sample = Externalsort.sort(INPUT, RUNS, OUTPUT, options);
+        assertFalse(new File(OUTPUT).exists());
+        ArrayList<ShardedOutput.Shard> shards = ShardedOutput.read(OUTPUT,
+            options);
+        assertEquals(4, shards.size());
+        for (ShardedOutput.Shard shard : shards) {
+            assertEquals(10 * ByteFile.RECORDS_PER_BLOCK, shard.getRecords());
+        }
+        assertTrue(Arrays.equals(expected, concat(shards)));
+        assertEquals(40, sample.size());
+    }
+
+
+    /**
+     * Splitting at keys puts every record in the shard of its key range
+     * and describes each shard's first and last record
+     * @throws IOException
+     */
+    public void testShardKeys() throws IOException {
+        SortOrder order = SortOrder.DESCENDING;
+        Externalsort.parseOptions(new String[] { "--shard-keys=0.25,0.5,0.9",
+            "--order=descending" }, 0, options);
+        Externalsort.sort(INPUT, RUNS, OUTPUT, options);
+        ArrayList<ShardedOutput.Shard> shards = ShardedOutput.read(OUTPUT,
+            options);
+        assertEquals(4, shards.size());
+        double[] lows = { 0.9, 0.5, 0.25, Double.NEGATIVE_INFINITY };
+        double[] highs = { Double.POSITIVE_INFINITY, 0.9, 0.5, 0.25 };
+        for (int s = 0; s < shards.size(); s++) {
+            ByteBuffer records = ByteBuffer.wrap(ByteFile.readAll(shards.get(s)
+                .getPath()));
+            assertEquals(shards.get(s).getRecords(), records.remaining()
+                / Record.BYTES);
+            assertEquals(shards.get(s).getFirstID(), records.getLong(0));
+            assertEquals(shards.get(s).getFirstKey(), records.getDouble(8),
+                0);
+            long id = 0;
+            while (records.hasRemaining()) {
+                id = records.getLong();
+                double key = records.getDouble();
+                assertTrue(key > lows[s] && key <= highs[s]);
+            }
+            assertEquals(shards.get(s).getLastID(), id);
+        }
+        assertTrue(Arrays.equals(sortedBy(order), concat(shards)));
+
+        // a reader after keys in [0.6, 0.7] only needs the second shard
+        long from = order.sortKey(0, 0.7);
+        long to = order.sortKey(0, 0.6);
+        assertFalse(shards.get(0).overlaps(order, from, to));
+        assertTrue(shards.get(1).overlaps(order, from, to));
+        assertFalse(shards.get(2).overlaps(order, from, to));
+    }
+
+
+    /**
+     * Equal keys are never split between shards, even past the count
+     * @throws IOException
+     */
+    public void testEqualKeysStayTogether() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(INPUT, "rw");
+        raf.setLength(0);
+        ByteBuffer records = ByteBuffer.allocate(1000 * Record.BYTES);
+        for (int i = 0; i < 1000; i++) {
+            records.putLong(i);
+            records.putDouble(i / 300);
+        }
+        raf.write(records.array());
+        raf.close();
+        options.setShardCount(5);
+        Externalsort.sort(INPUT, RUNS, OUTPUT, options);
+        ArrayList<ShardedOutput.Shard> shards = ShardedOutput.read(OUTPUT,
+            options);
+        assertEquals(4, shards.size());
+        long[] counts = { 300, 300, 300, 100 };
+        for (int s = 0; s < shards.size(); s++) {
+            assertEquals(counts[s], shards.get(s).getRecords());
+            assertEquals(s, shards.get(s).getFirstKey(), 0);
+            assertEquals(s, shards.get(s).getLastKey(), 0);
+        }
+    }
+
+
+    /**
+     * The sample sort engine shards its output the same way
+     * @throws IOException
+     */
+    public void testSampleEngine() throws IOException {
+        options.setEngine(SortEngine.SAMPLE);
+        options.setShardCount(3);
+        Externalsort.sort(INPUT, RUNS, OUTPUT, options);
+        ArrayList<ShardedOutput.Shard> shards = ShardedOutput.read(OUTPUT,
+            options);
+        assertEquals(3, shards.size());
+        assertTrue(Arrays.equals(expected, concat(shards)));
+    }
+
+
+    /**
+     * A manifest is only read back under the options it was written for
+     * @throws IOException
+     */
+    public void testOtherOptions() throws IOException {
+        options.setShardCount(2);
+        Externalsort.sort(INPUT, RUNS, OUTPUT, options);
+        options.setReduction(Reduction.DISTINCT);
+        try {
+            ShardedOutput.read(OUTPUT, options);
+            fail("read a manifest written for other options");
+        }
+        catch (IOException e) {
+            assertTrue(e.getMessage().contains("other sort options"));
+        }
+    }
+
+
+    /**
+     * @return the input sorted in order, unsharded
+     */
+    private byte[] sortedBy(SortOrder order) throws IOException {
+        SortOptions plain = new SortOptions(options);
+        plain.setShardBounds(null);
+        plain.setShardCount(0);
+        plain.setSortOrder(order);
+        Externalsort.sort(INPUT, RUNS, OUTPUT, plain);
+        byte[] bytes = ByteFile.readAll(OUTPUT);
+        new File(OUTPUT).delete();
+        return bytes;
+    }
+
+
+    private byte[] concat(ArrayList<ShardedOutput.Shard> shards)
+        throws IOException {
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        for (ShardedOutput.Shard shard : shards) {
+            all.write(ByteFile.readAll(shard.getPath()));
+        }
+        return all.toByteArray();
+    }
+}
@@ -0,0 +1,16 @@
+/**
+ * How the records are sorted.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public enum SortEngine {
+    /**
+     * replacement selection runs merged on disk, see MultiwayMerge
+     */
+    MERGE,
+    /**
+     * sampled buckets sorted in memory in parallel, see SampleSort
+     */
+    SAMPLE
+}
@@ -0,0 +1,212 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.Recording;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight Recorder events for the sort, so a production sort can be looked
+ * at in JDK Mission Control without attaching a profiler. The events cost
+ * next to nothing unless a recording is running: Externalsort --jfr starts
+ * one, and so does -XX:StartFlightRecording.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class SortEvents {
+    /**
+     * file written by --jfr when no file is named
+     */
+    public static final String DEFAULT_FILE = "externalsort.jfr";
+
+    private static final LongAdder RECORD_OBJECTS = new LongAdder();
+    private static final LongAdder RECORDS_DECODED = new LongAdder();
+    private static final LongAdder RECORDS_ENCODED = new LongAdder();
+    private static final Runnable COUNTERS = () -> {
+        CountersEvent event = new CountersEvent();
+        event.recordObjects = RECORD_OBJECTS.sum();
+        event.recordsDecoded = RECORDS_DECODED.sum();
+        event.recordsEncoded = RECORDS_ENCODED.sum();
+        event.commit();
+    };
+
+    private SortEvents() {
+        // only static members
+    }
+
+
+    /**
+     * A run written by replacement selection, from its first record to its
+     * last.
+     */
+    @Name("externalsort.Run")
+    @Label("Run")
+    @Category("Externalsort")
+    @Description("A run written by replacement selection")
+    static class RunEvent extends Event {
+        @Label("Records")
+        long records;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Stripe")
+        int stripe;
+    }
+
+
+    /**
+     * One merge pass, the final merge into the output included.
+     */
+    @Name("externalsort.MergePass")
+    @Label("Merge Pass")
+    @Category("Externalsort")
+    @Description("A pass merging runs into fewer, longer runs")
+    static class MergePassEvent extends Event {
+        @Label("Pass")
+        int pass;
+
+        @Label("Runs In")
+        int runsIn;
+
+        @Label("Runs Out")
+        int runsOut;
+
+        @Label("Final")
+        boolean last;
+    }
+
+
+    /**
+     * A wait for blocks from a DirectBufferPool that other sorts were
+     * holding.
+     */
+    @Name("externalsort.PoolWait")
+    @Label("Buffer Pool Wait")
+    @Category("Externalsort")
+    @Description("A sort waiting for blocks held by other sorts")
+    static class PoolWaitEvent extends Event {
+        @Label("Blocks")
+        int blocks;
+    }
+
+
+    /**
+     * A thread blocked on a read or write.
+     */
+    @Name("externalsort.IoWait")
+    @Label("I/O Wait")
+    @Category("Externalsort")
+    @Description("A sort blocked on a read or a write")
+    @Threshold("20 us")
+    static class IoWaitEvent extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+
+    /**
+     * Running totals of records handled.
+     */
+    @Name("externalsort.Counters")
+    @Label("Record Counters")
+    @Category("Externalsort")
+    @Description("Records decoded and encoded, and Record objects created")
+    @Period("1 s")
+    static class CountersEvent extends Event {
+        @Label("Record Objects")
+        long recordObjects;
+
+        @Label("Records Decoded")
+        long recordsDecoded;
+
+        @Label("Records Encoded")
+        long recordsEncoded;
+    }
+
+
+    /**
+     * Count a Record object being created.
+     */
+    static void recordCreated() {
+        RECORD_OBJECTS.increment();
+    }
+
+
+    /**
+     * @param count
+     *            records decoded from a block
+     */
+    static void decoded(int count) {
+        RECORDS_DECODED.add(count);
+    }
+
+
+    /**
+     * @param count
+     *            records encoded into a block
+     */
+    static void encoded(int count) {
+        RECORDS_ENCODED.add(count);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Start recording the sort's events, along with garbage collection and
+     * allocation, to a file.
+     *
+     * @param file
+     *            file the recording is written to, or null for none
+     * @return the recording, or null when file is null
+     * @throws IOException
+     */
+    public static Recording start(String file) throws IOException {
+        if (file == null) {
+            return null;
+        }
+        FlightRecorder.addPeriodicEvent(CountersEvent.class, COUNTERS);
+        Recording recording = new Recording();
+        recording.enable(RunEvent.class);
+        recording.enable(MergePassEvent.class);
+        recording.enable(PoolWaitEvent.class);
+        recording.enable(IoWaitEvent.class);
+        recording.enable(CountersEvent.class);
+        recording.enable("jdk.GarbageCollection");
+        recording.enable("jdk.GCHeapSummary");
+        recording.enable("jdk.ObjectAllocationSample");
+        recording.setDestination(Paths.get(file));
+        recording.start();
+        return recording;
+    }
+
+
+    /**
+     * Stop a recording, writing it to its file.
+     *
+     * @param recording
+     *            value of start(), may be null
+     */
+    public static void stop(Recording recording) {
+        if (recording == null) {
+            return;
+        }
+        COUNTERS.run(); // the totals at the very end
+        recording.stop();
+        recording.close();
+        FlightRecorder.removePeriodicEvent(COUNTERS);
+    }
+}
@@ -0,0 +1,72 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import student.TestCase;
+
+/**
+ * Tests for SortEvents
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class SortEventsTest extends TestCase {
+
+    /**
+     * set up for tests
+     */
+    public void setUp() {
+        // nothing to set up.
+    }
+
+
+    /**
+     * A recorded sort holds its runs, its merge passes and the record
+     * counters
+     * @throws IOException
+     */
+    public void testRecording() throws IOException {
+        new ByteFile("jfrInput.bin", 40).writeRandomRecords();
+        SortOptions options = Externalsort.parseOptions(new String[] {
+            "--jfr=jfrTest.jfr" }, 0, new SortOptions());
+        options.setHeapBlocks(1);
+        options.setFanIn(4);
+        try {
+            Recording recording = SortEvents.start(options
+                .getRecordingFile());
+            Externalsort.sort("jfrInput.bin", "jfrRuns.bin", "jfrOutput.bin",
+                options);
+            SortEvents.stop(recording);
+
+            Map<String, Integer> counts = new HashMap<String, Integer>();
+            long runRecords = 0;
+            long decoded = 0;
+            for (RecordedEvent event : RecordingFile.readAllEvents(Paths.get(
+                "jfrTest.jfr"))) {
+                String name = event.getEventType().getName();
+                counts.merge(name, 1, Integer::sum);
+                if (name.equals("externalsort.Run")) {
+                    runRecords += event.getLong("records");
+                }
+                if (name.equals("externalsort.Counters")) {
+                    decoded = Math.max(decoded, event.getLong(
+                        "recordsDecoded"));
+                }
+            }
+            assertEquals(40 * ByteFile.RECORDS_PER_BLOCK, runRecords);
+            assertTrue(counts.get("externalsort.Run") > 4);
+            assertTrue(counts.get("externalsort.MergePass") > 1);
+            assertTrue(decoded >= 2 * runRecords);
+        }
+        finally {
+            new File("jfrInput.bin").delete();
+            new File("jfrRuns.bin").delete();
+            new File("jfrOutput.bin").delete();
+            new File("jfrTest.jfr").delete();
+        }
+    }
+}
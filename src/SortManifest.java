@@ -0,0 +1,403 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A crash-safe journal of a sort's progress, so an interrupted sort can pick
+ * up from its last completed run or merge pass.
+ *
+ * The manifest is an append-only text file, fsynced after every entry:
+ *
+ * <pre>
+ * externalsort-manifest 1
+ * input LENGTH PATH
+ * settings ORDER TIEBREAK REDUCTION HEAPBLOCKS SPILLDIRS
+ * run START LENGTH STRIPE            a generated run...
+ * runs ORDINAL END CARRIED SLOT      ...committed here
+ * pass PASSES SOURCE                 a whole new run table...
+ * run START LENGTH STRIPE
+ * end                                ...committed here
+ * </pre>
+ *
+ * An entry only counts once the line that commits it is complete, so a torn
+ * write at the end is ignored. Records replacement selection had parked for
+ * the next run are saved in one of two carry files, alternating, so the
+ * carry file named by the last committed entry is never the one being
+ * rewritten.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+class SortManifest {
+    /**
+     * suffix added to the runs file name to name the manifest
+     */
+    public static final String SUFFIX = ".manifest";
+
+    private static final String HEADER = "externalsort-manifest 1";
+    private static final String CARRY_SUFFIX = ".carry";
+    private static final int CARRY_BYTES = 3 * Long.BYTES;
+
+    private String path;
+    private RandomAccessFile journal;
+    private RunTable runs;
+    private long ordinal;
+    private long runsEnd;
+    private int carried;
+    private int carrySlot;
+    private boolean merging;
+    private int passes;
+    private String source;
+
+    // ----------------------------------------------------------
+    /**
+     * Start a new manifest, replacing any old one.
+     *
+     * @param path
+     *            manifest file
+     * @param inputFile
+     *            file being sorted
+     * @param options
+     *            options of the sort
+     * @throws IOException
+     */
+    SortManifest(String path, String inputFile, SortOptions options)
+        throws IOException {
+        this.path = path;
+        this.runs = new RunTable();
+        this.journal = new RandomAccessFile(path, "rw");
+        journal.setLength(0);
+        append(HEADER + "\n" + inputLine(inputFile) + "\n" + settingsLine(
+            options) + "\n");
+    }
+
+
+    private SortManifest(String path) {
+        this.path = path;
+        this.runs = new RunTable();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Reopen the manifest of an interrupted sort.
+     *
+     * @param path
+     *            manifest file
+     * @param inputFile
+     *            file being sorted
+     * @param options
+     *            options of the sort
+     * @return the manifest, or null if there is none or it was written for
+     *         a different input or different options
+     * @throws IOException
+     */
+    public static SortManifest resume(
+        String path,
+        String inputFile,
+        SortOptions options)
+        throws IOException {
+        if (!new File(path).exists()) {
+            return null;
+        }
+        SortManifest manifest = new SortManifest(path);
+        long committed = manifest.replay(inputLine(inputFile), settingsLine(
+            options));
+        if (committed < 0) {
+            return null;
+        }
+        manifest.journal = new RandomAccessFile(path, "rw");
+        manifest.journal.setLength(committed); // drop a torn tail
+        manifest.journal.seek(committed);
+        return manifest;
+    }
+
+
+    /**
+     * @return the runs completed so far
+     */
+    public RunTable getRuns() {
+        return runs;
+    }
+
+
+    /**
+     * @return input records consumed by the completed runs and the carry
+     */
+    public long getOrdinal() {
+        return ordinal;
+    }
+
+
+    /**
+     * @return the byte offset in the runs file where the next run starts
+     */
+    public long getRunsEnd() {
+        return runsEnd;
+    }
+
+
+    /**
+     * @return true once run generation has finished
+     */
+    public boolean isMerging() {
+        return merging;
+    }
+
+
+    /**
+     * @return merge passes completed, not counting run generation
+     */
+    public int getPasses() {
+        return passes;
+    }
+
+
+    /**
+     * @return the file holding the runs once merging has started
+     */
+    public String getSource() {
+        return source;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Record a completed run. The runs file must already be synced.
+     *
+     * @param start
+     *            byte offset of the run
+     * @param length
+     *            records in the run
+     * @param stripe
+     *            spill file holding the run
+     * @param consumed
+     *            input records read so far
+     * @param carry
+     *            heap holding the records parked for the next run
+     * @throws IOException
+     */
+    public void runDone(
+        long start,
+        long length,
+        int stripe,
+        long consumed,
+        DaryHeap carry)
+        throws IOException {
+        int slot = 1 - carrySlot;
+        writeCarry(slot, carry);
+        append("run " + start + " " + length + " " + stripe + "\nruns "
+            + consumed + " " + (start + length * Record.BYTES) + " " + carry
+                .heapSize() + " " + slot + "\n");
+        runs.add(start, length, stripe);
+        ordinal = consumed;
+        runsEnd = start + length * Record.BYTES;
+        carried = carry.heapSize();
+        carrySlot = slot;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Record a completed pass, either run generation (passes == 0) or a
+     * merge pass. The file holding the runs must already be synced.
+     *
+     * @param completed
+     *            merge passes completed
+     * @param runsFile
+     *            file holding the runs
+     * @param table
+     *            the runs in that file
+     * @throws IOException
+     */
+    public void passDone(int completed, String runsFile, RunTable table)
+        throws IOException {
+        StringBuilder entry = new StringBuilder();
+        entry.append("pass ").append(completed).append(' ').append(runsFile)
+            .append('\n');
+        for (int i = 0; i < table.size(); i++) {
+            entry.append("run ").append(table.getStart(i)).append(' ').append(
+                table.getLength(i)).append(' ').append(table.getStripe(i))
+                .append('\n');
+        }
+        entry.append("end\n");
+        append(entry.toString());
+        runs = table;
+        merging = true;
+        passes = completed;
+        source = runsFile;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Load the records carried over at the last completed run into an empty
+     * heap.
+     *
+     * @param heap
+     *            heap to fill
+     * @throws IOException
+     */
+    public void readCarry(DaryHeap heap) throws IOException {
+        if (carried == 0) {
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(carryFile(carrySlot), "r");
+        try {
+            byte[] bytes = new byte[carried * CARRY_BYTES];
+            raf.readFully(bytes);
+            ByteBuffer bb = ByteBuffer.wrap(bytes);
+            for (int i = 0; i < carried; i++) {
+                heap.append(bb.getLong(), bb.getLong(), bb.getLong());
+            }
+        }
+        finally {
+            raf.close();
+        }
+        heap.buildHeap();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Remove the manifest and its carry files once the sort is done.
+     *
+     * @throws IOException
+     */
+    public void delete() throws IOException {
+        journal.close();
+        new File(path).delete();
+        new File(carryFile(0)).delete();
+        new File(carryFile(1)).delete();
+    }
+
+
+    private void writeCarry(int slot, DaryHeap carry) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(carry.heapSize() * CARRY_BYTES);
+        for (int i = 0; i < carry.heapSize(); i++) {
+            bb.putLong(carry.keyAt(i));
+            bb.putLong(carry.tieAt(i));
+            bb.putLong(carry.payloadAt(i));
+        }
+        FileOutputStream out = new FileOutputStream(carryFile(slot));
+        try {
+            out.write(bb.array());
+            out.getFD().sync();
+        }
+        finally {
+            out.close();
+        }
+    }
+
+
+    private void append(String entry) throws IOException {
+        journal.write(entry.getBytes(StandardCharsets.UTF_8));
+        journal.getFD().sync();
+    }
+
+
+    /**
+     * Read the journal back, keeping only committed entries.
+     *
+     * @return the length of the committed part, or -1 if the manifest does
+     *         not belong to this sort
+     */
+    private long replay(String input, String settings) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(path,
+            StandardCharsets.UTF_8));
+        try {
+            if (!HEADER.equals(reader.readLine()) || !input.equals(reader
+                .readLine()) || !settings.equals(reader.readLine())) {
+                return -1;
+            }
+            long committed = lineBytes(HEADER) + lineBytes(input) + lineBytes(
+                settings);
+            long read = committed;
+            long length = new File(path).length();
+            RunTable pending = new RunTable();
+            String pendingSource = null;
+            int pendingPasses = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                read += lineBytes(line);
+                if (read > length) {
+                    break; // torn last line, no newline yet
+                }
+                String[] parts = line.split(" ", 3);
+                if (parts[0].equals("run") && parts.length == 3) {
+                    String[] fields = line.split(" ");
+                    if (fields.length != 4) {
+                        break;
+                    }
+                    pending.add(Long.parseLong(fields[1]), Long.parseLong(
+                        fields[2]), Integer.parseInt(fields[3]));
+                }
+                else if (parts[0].equals("runs") && !merging) {
+                    String[] fields = line.split(" ");
+                    if (fields.length != 5) {
+                        break;
+                    }
+                    for (int i = 0; i < pending.size(); i++) {
+                        runs.add(pending.getStart(i), pending.getLength(i),
+                            pending.getStripe(i));
+                    }
+                    ordinal = Long.parseLong(fields[1]);
+                    runsEnd = Long.parseLong(fields[2]);
+                    carried = Integer.parseInt(fields[3]);
+                    carrySlot = Integer.parseInt(fields[4]);
+                    pending = new RunTable();
+                    committed = read;
+                }
+                else if (parts[0].equals("pass") && parts.length == 3) {
+                    pending = new RunTable();
+                    pendingPasses = Integer.parseInt(parts[1]);
+                    pendingSource = parts[2];
+                }
+                else if (parts[0].equals("end") && pendingSource != null) {
+                    runs = pending;
+                    merging = true;
+                    passes = pendingPasses;
+                    source = pendingSource;
+                    pending = new RunTable();
+                    pendingSource = null;
+                    committed = read;
+                }
+            }
+            return committed;
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+
+    private String carryFile(int slot) {
+        return path + CARRY_SUFFIX + slot;
+    }
+
+
+    private static long lineBytes(String line) {
+        return line.getBytes(StandardCharsets.UTF_8).length + 1;
+    }
+
+
+    private static String inputLine(String inputFile) {
+        File file = new File(inputFile);
+        return "input " + file.length() + " " + file.getAbsolutePath();
+    }
+
+
+    private static String settingsLine(SortOptions options) {
+        String[] dirs = options.getSpillDirs();
+        return "settings " + options.getSortOrder() + " " + options
+            .effectiveTieBreak() + " " + options.getReduction() + " "
+            + options.getHeapBlocks() + " " + (dirs == null || dirs.length == 0
+                ? "-"
+                : String.join(File.pathSeparator, dirs));
+    }
+}
@@ -0,0 +1,216 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import student.TestCase;
+
+/**
+ * Tests for SortManifest and resuming interrupted sorts
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class SortManifestTest extends TestCase {
+    private static final String INPUT = "manifestInput.bin";
+    private static final String RUNS = "manifestRuns.bin";
+    private static final String OUTPUT = "manifestOutput.bin";
+    private static final String MANIFEST = RUNS + SortManifest.SUFFIX;
+
+    private SortOptions options;
+
+    /**
+     * A manifest that dies after a set number of runs or merge passes
+     */
+    private static class CrashingManifest extends SortManifest {
+        private int runsLeft;
+        private int passesLeft;
+
+        CrashingManifest(SortOptions options, int runsLeft, int passesLeft)
+            throws IOException {
+            super(MANIFEST, INPUT, options);
+            this.runsLeft = runsLeft;
+            this.passesLeft = passesLeft;
+        }
+
+
+        @Override
+        public void runDone(
+            long start,
+            long length,
+            int stripe,
+            long consumed,
+            DaryHeap carry)
+            throws IOException {
+            super.runDone(start, length, stripe, consumed, carry);
+            if (--runsLeft == 0) {
+                throw new IOException("simulated crash");
+            }
+        }
+
+
+        @Override
+        public void passDone(int completed, String runsFile, RunTable table)
+            throws IOException {
+            super.passDone(completed, runsFile, table);
+            if (completed > 0 && --passesLeft == 0) {
+                throw new IOException("simulated crash");
+            }
+        }
+    }
+
+    /**
+     * set up for tests
+     * @throws IOException
+     */
+    public void setUp() throws IOException {
+        new ByteFile(INPUT, 24).writeRandomRecords();
+        options = new SortOptions();
+        options.setTieBreak(TieBreak.ORDINAL);
+        options.setHeapBlocks(1);
+        options.setFanIn(2);
+    }
+
+
+    /**
+     * clean up after tests
+     */
+    public void tearDown() {
+        for (String name : new String[] { INPUT, RUNS, OUTPUT, MANIFEST,
+            RUNS + MultiwayMerge.PASS_SUFFIX, MANIFEST + ".carry0",
+            MANIFEST + ".carry1" }) {
+            new File(name).delete();
+        }
+    }
+
+
+    /**
+     * A sort killed during run generation resumes to the same output
+     * @throws IOException
+     */
+    public void testResumeRunGeneration() throws IOException {
+        byte[] expected = sortWithout();
+        try {
+            new ReplacementSelection(INPUT, RUNS, options, new CrashingManifest(
+                options, 3, -1));
+            fail("expected simulated crash");
+        }
+        catch (IOException e) {
+            assertEquals("simulated crash", e.getMessage());
+        }
+        SortManifest manifest = SortManifest.resume(MANIFEST, INPUT, options);
+        assertNotNull(manifest);
+        assertFalse(manifest.isMerging());
+        assertEquals(3, manifest.getRuns().size());
+        assertTrue(Arrays.equals(expected, finish(manifest)));
+    }
+
+
+    /**
+     * A sort killed between merge passes resumes to the same output
+     * @throws IOException
+     */
+    public void testResumeMerge() throws IOException {
+        byte[] expected = sortWithout();
+        SortManifest crashing = new CrashingManifest(options, -1, 2);
+        ReplacementSelection selection = new ReplacementSelection(INPUT, RUNS,
+            options, crashing);
+        try {
+            new MultiwayMerge(selection.getRuns(), RUNS, OUTPUT, options,
+                crashing);
+            fail("expected simulated crash");
+        }
+        catch (IOException e) {
+            assertEquals("simulated crash", e.getMessage());
+        }
+        SortManifest manifest = SortManifest.resume(MANIFEST, INPUT, options);
+        assertTrue(manifest.isMerging());
+        assertEquals(2, manifest.getPasses());
+        assertTrue(Arrays.equals(expected, finish(manifest)));
+    }
+
+
+    /**
+     * A sort striped across spill directories resumes each stripe where
+     * it left off
+     * @throws IOException
+     */
+    public void testResumeStriped() throws IOException {
+        byte[] expected = sortWithout();
+        String[] dirs = { "stripe0", "stripe1" };
+        for (String dir : dirs) {
+            new File(dir).mkdir();
+        }
+        options.setSpillDirs(dirs);
+        try {
+            try {
+                new ReplacementSelection(INPUT, RUNS, options,
+                    new CrashingManifest(options, 5, -1));
+                fail("expected simulated crash");
+            }
+            catch (IOException e) {
+                assertEquals("simulated crash", e.getMessage());
+            }
+            SortManifest manifest = SortManifest.resume(MANIFEST, INPUT,
+                options);
+            RunTable runs = manifest.getRuns();
+            for (int i = 0; i < runs.size(); i++) {
+                assertEquals(i % 2, runs.getStripe(i));
+            }
+            assertEquals(5, manifest.getRuns().size());
+            assertTrue(Arrays.equals(expected, finish(manifest)));
+        }
+        finally {
+            for (String dir : dirs) {
+                new File(dir, RUNS).delete();
+                new File(dir, RUNS + MultiwayMerge.PASS_SUFFIX).delete();
+                new File(dir).delete();
+            }
+        }
+    }
+
+
+    /**
+     * A torn entry is ignored and a manifest for other options is refused
+     * @throws IOException
+     */
+    public void testTornAndMismatched() throws IOException {
+        SortManifest manifest = new SortManifest(MANIFEST, INPUT, options);
+        RunTable table = new RunTable();
+        table.add(0, 10);
+        manifest.passDone(0, RUNS, table);
+        RandomAccessFile raf = new RandomAccessFile(MANIFEST, "rw");
+        raf.seek(raf.length());
+        raf.writeBytes("pass 1 " + RUNS + "\nrun 0 1");
+        raf.close();
+
+        SortManifest resumed = SortManifest.resume(MANIFEST, INPUT, options);
+        assertTrue(resumed.isMerging());
+        assertEquals(0, resumed.getPasses());
+        assertEquals(10, resumed.getRuns().getLength(0));
+        resumed.delete();
+
+        new SortManifest(MANIFEST, INPUT, options);
+        options.setSortOrder(SortOrder.DESCENDING);
+        assertNull(SortManifest.resume(MANIFEST, INPUT, options));
+    }
+
+
+    private byte[] sortWithout() throws IOException {
+        ReplacementSelection selection = new ReplacementSelection(INPUT, RUNS,
+            options);
+        new MultiwayMerge(selection.getRuns(), RUNS, OUTPUT, options);
+        return ByteFile.readAll(OUTPUT);
+    }
+
+
+    private byte[] finish(SortManifest manifest) throws IOException {
+        RunTable runs = manifest.getRuns();
+        if (!manifest.isMerging()) {
+            runs = new ReplacementSelection(INPUT, RUNS, options, manifest)
+                .getRuns();
+        }
+        new MultiwayMerge(runs, RUNS, OUTPUT, options, manifest);
+        manifest.delete();
+        return ByteFile.readAll(OUTPUT);
+    }
+}
@@ -0,0 +1,308 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * An equi-join of two record files on key. Each side that is not already
+ * sorted by key is cut into runs by ReplacementSelection and merged down
+ * by MultiwayMerge, but its last merge is read as a MergeStream rather
+ * than written out, so neither side is ever written whole in sorted
+ * order. The two streams are then walked in lockstep, and every pair of
+ * records with equal keys is written to the output as a joined record:
+ *
+ * <pre>
+ * ID_A (8 bytes) ID_B (8 bytes) KEY (8 bytes)
+ * </pre>
+ *
+ * in key order. Keys are equal when they sort as equal, so -0.0 does not
+ * join 0.0. The IDs of B's records with the key being joined are held in
+ * memory up to GROUP_RECORDS of them, and the rest spilled to a scratch
+ * file read back once per matching record of A, so a key repeated
+ * millions of times does not run out of memory.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class SortMergeJoin {
+    /**
+     * bytes in a joined record
+     */
+    public static final int BYTES = 3 * Long.BYTES;
+    /**
+     * IDs of a key's records from B held in memory before spilling
+     */
+    public static final int GROUP_RECORDS = 1 << 16;
+
+    private static final String RUNS_SUFFIX = ".runs";
+    private static final String GROUP_SUFFIX = ".group";
+
+    private long matches;
+    private int sorted;
+    private long spilled;
+
+    /**
+     * Join two record files on key.
+     *
+     * @param fileA
+     *            the left side
+     * @param fileB
+     *            the right side
+     * @param outputFile
+     *            file the joined records are written to; its name also
+     *            names the scratch files
+     * @param options
+     *            how to sort and merge the sides; the order is always by
+     *            key and nothing is reduced
+     * @throws IOException
+     */
+    public SortMergeJoin(
+        String fileA,
+        String fileB,
+        String outputFile,
+        SortOptions options)
+        throws IOException {
+        SortOptions joining = new SortOptions(options);
+        joining.setSortOrder(SortOrder.ASCENDING);
+        joining.setReduction(Reduction.NONE);
+        String runsA = outputFile + RUNS_SUFFIX + "A";
+        String runsB = outputFile + RUNS_SUFFIX + "B";
+        String group = outputFile + GROUP_SUFFIX;
+        MergeStream a = null;
+        MergeStream b = null;
+        try {
+            a = open(fileA, runsA, joining);
+            b = open(fileB, runsB, joining);
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(outputFile),
+                    ByteFile.BYTES_PER_BLOCK * 8));
+            Group ids = new Group(group);
+            try {
+                join(a, b, ids, out);
+            }
+            finally {
+                out.close();
+                ids.close();
+            }
+        }
+        finally {
+            if (a != null) {
+                a.close();
+            }
+            if (b != null) {
+                b.close();
+            }
+            SpillFiles.delete(runsA, joining);
+            SpillFiles.delete(runsB, joining);
+            new File(group).delete();
+        }
+    }
+
+
+    /**
+     * @return the number of joined records written
+     */
+    public long getMatches() {
+        return matches;
+    }
+
+
+    /**
+     * @return how many of the two sides had to be sorted
+     */
+    public int getSorted() {
+        return sorted;
+    }
+
+
+    /**
+     * @return the IDs from B that did not fit in memory and were spilled
+     */
+    public long getSpilled() {
+        return spilled;
+    }
+
+
+    /**
+     * Stream a side in key order: the file itself if it is sorted,
+     * otherwise the last merge of its runs.
+     */
+    private MergeStream open(String file, String runsFile, SortOptions options)
+        throws IOException {
+        long records = ByteFile.recordCount(file);
+        long blocks = (records + ByteFile.RECORDS_PER_BLOCK - 1)
+            / ByteFile.RECORDS_PER_BLOCK;
+        if (new ByteFile(file, blocks).isSorted(options.getSortOrder())) {
+            return MergeStream.of(file, options);
+        }
+        sorted++;
+        RunTable runs = new ReplacementSelection(file, runsFile, options)
+            .getRuns();
+        return MultiwayMerge.stream(runs, runsFile, options);
+    }
+
+
+    /**
+     * Walk both sides in key order. At each key both have, gather B's IDs
+     * with it, then write every one of them against each of A's records
+     * with it.
+     */
+    private void join(
+        MergeStream a,
+        MergeStream b,
+        Group ids,
+        DataOutputStream out)
+        throws IOException {
+        boolean hasA = a.next();
+        boolean hasB = b.next();
+        while (hasA && hasB) {
+            long key = a.sortKey();
+            if (key < b.sortKey()) {
+                hasA = a.next();
+            }
+            else if (key > b.sortKey()) {
+                hasB = b.next();
+            }
+            else {
+                ids.clear();
+                do {
+                    ids.add(b.id());
+                    hasB = b.next();
+                }
+                while (hasB && b.sortKey() == key);
+                long keyBits = Double.doubleToRawLongBits(a.key());
+                do {
+                    matches += ids.write(a.id(), keyBits, out);
+                    hasA = a.next();
+                }
+                while (hasA && a.sortKey() == key);
+                spilled += ids.spilled();
+            }
+        }
+    }
+
+
+    /**
+     * The IDs of B's records with one key: the first GROUP_RECORDS in
+     * memory, the rest in a scratch file.
+     */
+    private static class Group {
+        private String path;
+        private long[] ids = new long[GROUP_RECORDS];
+        private int size;
+        private RandomAccessFile spill; // opened on the first overflow
+        private ByteBuffer block = ByteBuffer.allocate(
+            ByteFile.BYTES_PER_BLOCK);
+        private long spilledIDs;
+
+        /**
+         * @param path
+         *            scratch file for the overflow
+         */
+        Group(String path) {
+            this.path = path;
+        }
+
+
+        /**
+         * Forget the IDs of the last key.
+         */
+        void clear() throws IOException {
+            if (spilledIDs > 0) {
+                spill.setLength(0);
+            }
+            size = 0;
+            spilledIDs = 0;
+            block.clear();
+        }
+
+
+        /**
+         * Add an ID, spilling it if memory is full.
+         */
+        void add(long id) throws IOException {
+            if (size < ids.length) {
+                ids[size++] = id;
+                return;
+            }
+            if (spill == null) {
+                spill = new RandomAccessFile(path, "rw");
+                spill.setLength(0);
+            }
+            if (!block.hasRemaining()) {
+                spill.seek(spilledIDs * Long.BYTES - block.capacity());
+                spill.write(block.array());
+                block.clear();
+            }
+            block.putLong(id);
+            spilledIDs++;
+        }
+
+
+        /**
+         * @return the IDs added since clear() that were spilled
+         */
+        long spilled() {
+            return spilledIDs;
+        }
+
+
+        /**
+         * Write a joined record of idA with every ID.
+         *
+         * @return the number of records written
+         */
+        long write(long idA, long keyBits, DataOutputStream out)
+            throws IOException {
+            for (int i = 0; i < size; i++) {
+                writeOne(idA, ids[i], keyBits, out);
+            }
+            if (spilledIDs == 0) {
+                return size;
+            }
+            // the spilled IDs whose block is full are in the file, the
+            // rest still in block
+            long inFile = spilledIDs - block.position() / Long.BYTES;
+            byte[] chunk = new byte[ByteFile.BYTES_PER_BLOCK];
+            ByteBuffer read = ByteBuffer.wrap(chunk);
+            spill.seek(0);
+            for (long done = 0; done < inFile; done += chunk.length
+                / Long.BYTES) {
+                spill.readFully(chunk);
+                read.clear();
+                while (read.hasRemaining()) {
+                    writeOne(idA, read.getLong(), keyBits, out);
+                }
+            }
+            for (int at = 0; at < block.position(); at += Long.BYTES) {
+                writeOne(idA, block.getLong(at), keyBits, out);
+            }
+            return size + spilledIDs;
+        }
+
+
+        private static void writeOne(
+            long idA,
+            long idB,
+            long keyBits,
+            DataOutputStream out)
+            throws IOException {
+            out.writeLong(idA);
+            out.writeLong(idB);
+            out.writeLong(keyBits);
+        }
+
+
+        /**
+         * Close the scratch file, if one was opened.
+         */
+        void close() throws IOException {
+            if (spill != null) {
+                spill.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,209 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import student.TestCase;
+
+/**
+ * Tests for SortMergeJoin.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class SortMergeJoinTest extends TestCase {
+    private static final String A = "joinA.bin";
+    private static final String B = "joinB.bin";
+    private static final String SORTED = "joinSorted.bin";
+    private static final String OUTPUT = "joinOutput.bin";
+
+    private SortOptions options;
+
+    /**
+     * set up for tests
+     */
+    public void setUp() {
+        options = new SortOptions();
+        options.setHeapBlocks(1);
+        options.setFanIn(3);
+    }
+
+
+    /**
+     * remove the files of a test
+     */
+    public void tearDown() {
+        new File(A).delete();
+        new File(B).delete();
+        new File(SORTED).delete();
+        new File(OUTPUT).delete();
+        new File("joinRuns.bin").delete();
+    }
+
+
+    /**
+     * Every pair of records with equal keys is joined, in key order, and
+     * the sides' scratch files are gone afterwards
+     * @throws IOException
+     */
+    public void testJoin() throws IOException {
+        long[][] a = writeRecords(A, 9000, 500, new Random(1));
+        long[][] b = writeRecords(B, 7001, 700, new Random(2));
+        SortMergeJoin join = new SortMergeJoin(A, B, OUTPUT, options);
+        assertEquals(2, join.getSorted());
+        long[][] expected = nestedLoopJoin(a, b);
+        assertEquals(expected.length, join.getMatches());
+        assertTrue(Arrays.deepEquals(expected, readJoined(OUTPUT)));
+        assertEquals(1, new File(".").list((dir, name) -> name.startsWith(
+            OUTPUT)).length);
+    }
+
+
+    /**
+     * A side already sorted by key is streamed as it is, with the same
+     * result
+     * @throws IOException
+     */
+    public void testSortedSide() throws IOException {
+        long[][] a = writeRecords(A, 4096, 300, new Random(3));
+        long[][] b = writeRecords(B, 5000, 300, new Random(4));
+        Externalsort.sort(A, "joinRuns.bin", SORTED, options);
+        SortMergeJoin join = new SortMergeJoin(SORTED, B, OUTPUT, options);
+        assertEquals(1, join.getSorted());
+        assertTrue(Arrays.deepEquals(nestedLoopJoin(a, b), readJoined(
+            OUTPUT)));
+
+        join = new SortMergeJoin(SORTED, SORTED, OUTPUT, options);
+        assertEquals(0, join.getSorted());
+        assertTrue(Arrays.deepEquals(nestedLoopJoin(a, a), readJoined(
+            OUTPUT)));
+    }
+
+
+    /**
+     * A key repeated past what is held in memory spills the rest and still
+     * joins all of it
+     * @throws IOException
+     */
+    public void testLargeGroup() throws IOException {
+        int many = 2 * SortMergeJoin.GROUP_RECORDS;
+        ByteBuffer bb = ByteBuffer.allocate(many * Record.BYTES);
+        for (int i = 0; i < many; i++) {
+            bb.putLong(i);
+            bb.putDouble(i % 10 == 9 ? 8 : 7);
+        }
+        write(B, bb.array());
+        bb = ByteBuffer.allocate(4 * Record.BYTES);
+        long[] idsA = { 100, 101, 102, 103 };
+        double[] keysA = { 7, 5, 7, 7 };
+        for (int i = 0; i < idsA.length; i++) {
+            bb.putLong(idsA[i]);
+            bb.putDouble(keysA[i]);
+        }
+        write(A, bb.array());
+        long sevens = 0;
+        for (int i = 0; i < many; i++) {
+            sevens += i % 10 == 9 ? 0 : 1;
+        }
+        SortMergeJoin join = new SortMergeJoin(A, B, OUTPUT, options);
+        assertEquals(3 * sevens, join.getMatches());
+        assertEquals(sevens - SortMergeJoin.GROUP_RECORDS, join.getSpilled());
+        long[][] joined = readJoined(OUTPUT);
+        for (int i = 0; i < 3; i++) {
+            long idA = joined[(int)(i * sevens)][0];
+            boolean[] seen = new boolean[many];
+            for (int j = 0; j < sevens; j++) {
+                long[] record = joined[(int)(i * sevens + j)];
+                assertEquals(idA, record[0]);
+                assertEquals(7, Double.longBitsToDouble(record[2]), 0);
+                assertFalse(seen[(int)record[1]]);
+                seen[(int)record[1]] = true;
+            }
+        }
+    }
+
+
+    /**
+     * Write records with random keys from a small range
+     *
+     * @return each record as { id, key bits }
+     */
+    private long[][] writeRecords(String name, int count, int keys, Random rng)
+        throws IOException {
+        long[][] records = new long[count][];
+        ByteBuffer bb = ByteBuffer.allocate(count * Record.BYTES);
+        for (int i = 0; i < count; i++) {
+            double key = rng.nextInt(keys) / 4.0;
+            records[i] = new long[] { rng.nextLong(), Double
+                .doubleToRawLongBits(key) };
+            bb.putLong(records[i][0]);
+            bb.putDouble(key);
+        }
+        write(name, bb.array());
+        return records;
+    }
+
+
+    /**
+     * @return every (idA, idB, key bits) with equal keys, sorted
+     */
+    private long[][] nestedLoopJoin(long[][] a, long[][] b) {
+        ArrayList<long[]> joined = new ArrayList<long[]>();
+        for (long[] left : a) {
+            for (long[] right : b) {
+                if (left[1] == right[1]) {
+                    joined.add(new long[] { left[0], right[0], left[1] });
+                }
+            }
+        }
+        long[][] result = joined.toArray(new long[0][]);
+        Arrays.sort(result, SortMergeJoinTest::compare);
+        return result;
+    }
+
+
+    /**
+     * @return the joined records of a file, checked to be in key order,
+     *         then sorted
+     */
+    private long[][] readJoined(String name) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(name, "r");
+        byte[] bytes = new byte[(int)raf.length()];
+        raf.readFully(bytes);
+        raf.close();
+        ByteBuffer bb = ByteBuffer.wrap(bytes);
+        long[][] joined = new long[bytes.length / SortMergeJoin.BYTES][];
+        for (int i = 0; i < joined.length; i++) {
+            joined[i] = new long[] { bb.getLong(), bb.getLong(), bb
+                .getLong() };
+            assertTrue(i == 0 || Double.longBitsToDouble(joined[i - 1][2])
+                <= Double.longBitsToDouble(joined[i][2]));
+        }
+        long[][] result = joined.clone();
+        Arrays.sort(result, SortMergeJoinTest::compare);
+        return result;
+    }
+
+
+    private static int compare(long[] x, long[] y) {
+        double keyX = Double.longBitsToDouble(x[2]);
+        double keyY = Double.longBitsToDouble(y[2]);
+        if (keyX != keyY) {
+            return Double.compare(keyX, keyY);
+        }
+        if (x[0] != y[0]) {
+            return Long.compare(x[0], y[0]);
+        }
+        return Long.compare(x[1], y[1]);
+    }
+
+
+    private void write(String name, byte[] bytes) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(name, "rw");
+        raf.setLength(0);
+        raf.write(bytes);
+        raf.close();
+    }
+}
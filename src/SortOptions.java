@@ -0,0 +1,607 @@
+import java.util.Arrays;
+
+/**
+ * Settings shared by run generation and merging.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class SortOptions {
+    /**
+     * blocks of records held by the replacement selection heap
+     */
+    public static final int HEAP_BLOCKS = 8;
+    /**
+     * runs merged at once by default
+     */
+    public static final int DEFAULT_FAN_IN = 8;
+    /**
+     * memory the in-memory sorts may use by default, in bytes
+     */
+    public static final long DEFAULT_MEMORY = 64L << 20;
+    /**
+     * spare blocks a merge reads ahead into by default
+     */
+    public static final int DEFAULT_PREFETCH = 16;
+
+    private SortOrder sortOrder;
+    private TieBreak tieBreak;
+    private Reduction reduction;
+    private int heapBlocks;
+    private int heapArity;
+    private int fanIn;
+    private MergeStrategy mergeStrategy;
+    private int threads;
+    private long memoryBytes;
+    private SortEngine engine;
+    private boolean checkpoint;
+    private boolean resume;
+    private DirectBufferPool bufferPool;
+    private String[] spillDirs;
+    private int prefetchBlocks;
+    private int readBlocks;
+    private boolean calibrate;
+    private RecordArena recordArena;
+    private String recordingFile;
+    private boolean directIo;
+    private int shardCount;
+    private long[] shardBounds;
+    private boolean keyStats;
+    private OutputSink[] sinks = new OutputSink[0];
+
+    /**
+     * Create the default options: ascending keys, no tie breaking or
+     * reduction, an 8 block 4-ary heap, balanced 8-way merges, and one
+     * thread per processor sharing 64 MB, on the merge engine without
+     * checkpoints or pooled buffers, reading 16 blocks ahead a block at a
+     * time while merging, holding records on the Java heap, doing I/O
+     * through the page cache and writing a single output file without
+     * statistics.
+     */
+    public SortOptions() {
+        this.sortOrder = SortOrder.ASCENDING;
+        this.reduction = Reduction.NONE;
+        this.tieBreak = TieBreak.NONE;
+        this.heapBlocks = HEAP_BLOCKS;
+        this.heapArity = DaryHeap.DEFAULT_ARITY;
+        this.fanIn = DEFAULT_FAN_IN;
+        this.mergeStrategy = MergeStrategy.BALANCED;
+        this.threads = Runtime.getRuntime().availableProcessors();
+        this.memoryBytes = DEFAULT_MEMORY;
+        this.engine = SortEngine.MERGE;
+        this.prefetchBlocks = DEFAULT_PREFETCH;
+        this.readBlocks = 1;
+    }
+
+
+    /**
+     * Create a copy of other options.
+     *
+     * @param other
+     *            options to copy
+     */
+    public SortOptions(SortOptions other) {
+        this.sortOrder = other.sortOrder;
+        this.tieBreak = other.tieBreak;
+        this.reduction = other.reduction;
+        this.heapBlocks = other.heapBlocks;
+        this.heapArity = other.heapArity;
+        this.fanIn = other.fanIn;
+        this.mergeStrategy = other.mergeStrategy;
+        this.threads = other.threads;
+        this.memoryBytes = other.memoryBytes;
+        this.engine = other.engine;
+        this.checkpoint = other.checkpoint;
+        this.resume = other.resume;
+        this.bufferPool = other.bufferPool;
+        this.spillDirs = other.spillDirs;
+        this.prefetchBlocks = other.prefetchBlocks;
+        this.readBlocks = other.readBlocks;
+        this.calibrate = other.calibrate;
+        this.recordArena = other.recordArena;
+        this.recordingFile = other.recordingFile;
+        this.directIo = other.directIo;
+        this.shardCount = other.shardCount;
+        this.shardBounds = other.shardBounds;
+        this.keyStats = other.keyStats;
+        this.sinks = other.sinks;
+    }
+
+
+    /**
+     * @return the order records are sorted in
+     */
+    public SortOrder getSortOrder() {
+        return sortOrder;
+    }
+
+
+    /**
+     * @param sortOrder
+     *            the order records are sorted in
+     */
+    public void setSortOrder(SortOrder sortOrder) {
+        this.sortOrder = sortOrder;
+    }
+
+
+    /**
+     * @return how equal keys are ordered
+     */
+    public TieBreak getTieBreak() {
+        return tieBreak;
+    }
+
+
+    /**
+     * @param tieBreak
+     *            how equal keys are ordered
+     */
+    public void setTieBreak(TieBreak tieBreak) {
+        this.tieBreak = tieBreak;
+    }
+
+
+    /**
+     * Refuse combinations no sort can honor: counting records per ID would
+     * write each count over the ID it groups by, losing the group and the
+     * order of the output.
+     *
+     * @throws IllegalArgumentException
+     *             if options count records per key under SortOrder.ID
+     */
+    public void check() {
+        if (sortOrder == SortOrder.ID
+            && reduction == Reduction.COUNT_PER_KEY) {
+            throw new IllegalArgumentException(
+                "Counts per key cannot be sorted by ID");
+        }
+    }
+
+
+    /**
+     * Return the tie breaking the sort actually uses. Some orders and
+     * reductions need equal records next to each other and override what
+     * was asked for.
+     *
+     * @return tie breaking for the heaps
+     */
+    public TieBreak effectiveTieBreak() {
+        if (reduction == Reduction.DISTINCT) {
+            return sortOrder == SortOrder.ID ? TieBreak.KEY : TieBreak.ID;
+        }
+        return sortOrder.tieBreak(tieBreak);
+    }
+
+
+    /**
+     * @return what happens to records that sort as equal
+     */
+    public Reduction getReduction() {
+        return reduction;
+    }
+
+
+    /**
+     * @param reduction
+     *            what happens to records that sort as equal
+     */
+    public void setReduction(Reduction reduction) {
+        this.reduction = reduction;
+    }
+
+
+    /**
+     * @return blocks of records held by the run generation heap
+     */
+    public int getHeapBlocks() {
+        return heapBlocks;
+    }
+
+
+    /**
+     * @param heapBlocks
+     *            blocks of records held by the run generation heap
+     */
+    public void setHeapBlocks(int heapBlocks) {
+        this.heapBlocks = heapBlocks;
+    }
+
+
+    /**
+     * @return children per node of the run generation heap
+     */
+    public int getHeapArity() {
+        return heapArity;
+    }
+
+
+    /**
+     * @param heapArity
+     *            children per node of the run generation heap
+     */
+    public void setHeapArity(int heapArity) {
+        this.heapArity = heapArity;
+    }
+
+
+    /**
+     * @return the most runs merged at once
+     */
+    public int getFanIn() {
+        return fanIn;
+    }
+
+
+    /**
+     * @param fanIn
+     *            the most runs merged at once
+     */
+    public void setFanIn(int fanIn) {
+        this.fanIn = fanIn;
+    }
+
+
+    /**
+     * @return how runs are merged down before the last merge
+     */
+    public MergeStrategy getMergeStrategy() {
+        return mergeStrategy;
+    }
+
+
+    /**
+     * @param mergeStrategy
+     *            how runs are merged down before the last merge
+     */
+    public void setMergeStrategy(MergeStrategy mergeStrategy) {
+        this.mergeStrategy = mergeStrategy;
+    }
+
+
+    /**
+     * Return the merge strategy the sort actually uses. Polyphase merges
+     * runs that were not next to each other in the input, so a stable sort
+     * stays balanced, and so does a checkpointed one, whose manifest
+     * records every pass as a single runs file.
+     *
+     * @return merge strategy for MultiwayMerge
+     */
+    public MergeStrategy effectiveMergeStrategy() {
+        if (checkpoint || effectiveTieBreak() == TieBreak.ORDINAL) {
+            return MergeStrategy.BALANCED;
+        }
+        return mergeStrategy;
+    }
+
+
+    /**
+     * @return threads parallel engines may use
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+
+    /**
+     * @param threads
+     *            threads parallel engines may use
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+
+    /**
+     * @return bytes the in-memory sorts may use in total
+     */
+    public long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+
+    /**
+     * @param memoryBytes
+     *            bytes the in-memory sorts may use in total
+     */
+    public void setMemoryBytes(long memoryBytes) {
+        this.memoryBytes = memoryBytes;
+    }
+
+
+    /**
+     * @return the engine that sorts the records
+     */
+    public SortEngine getEngine() {
+        return engine;
+    }
+
+
+    /**
+     * @param engine
+     *            the engine that sorts the records
+     */
+    public void setEngine(SortEngine engine) {
+        this.engine = engine;
+    }
+
+
+    /**
+     * @return true if the merge engine journals its progress to a manifest
+     */
+    public boolean isCheckpoint() {
+        return checkpoint;
+    }
+
+
+    /**
+     * @param checkpoint
+     *            true if the merge engine journals its progress to a manifest
+     */
+    public void setCheckpoint(boolean checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+
+    /**
+     * @return true if an interrupted checkpointed sort is picked up again
+     */
+    public boolean isResume() {
+        return resume;
+    }
+
+
+    /**
+     * @param resume
+     *            true if an interrupted checkpointed sort is picked up again
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+
+    /**
+     * @return pool the merge engine takes its I/O blocks from, or null to
+     *         allocate its own
+     */
+    public DirectBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+
+    /**
+     * @param bufferPool
+     *            pool the merge engine takes its I/O blocks from, or null to
+     *            allocate its own
+     */
+    public void setBufferPool(DirectBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+
+    /**
+     * @return directories the runs are striped across, or null to keep
+     *         them in one file where the runs file is named
+     */
+    public String[] getSpillDirs() {
+        return spillDirs;
+    }
+
+
+    /**
+     * @param spillDirs
+     *            directories the runs are striped across, or null to keep
+     *            them in one file where the runs file is named
+     */
+    public void setSpillDirs(String[] spillDirs) {
+        this.spillDirs = spillDirs;
+    }
+
+
+    /**
+     * @return spare blocks a merge reads ahead into, 0 to read each block
+     *         only when it is needed
+     */
+    public int getPrefetchBlocks() {
+        return prefetchBlocks;
+    }
+
+
+    /**
+     * @param prefetchBlocks
+     *            spare blocks a merge reads ahead into, 0 to read each block
+     *            only when it is needed
+     */
+    public void setPrefetchBlocks(int prefetchBlocks) {
+        this.prefetchBlocks = prefetchBlocks;
+    }
+
+
+    /**
+     * @return blocks of a run a merge reads ahead in one I/O
+     */
+    public int getReadBlocks() {
+        return readBlocks;
+    }
+
+
+    /**
+     * @param readBlocks
+     *            blocks of a run a merge reads ahead in one I/O
+     */
+    public void setReadBlocks(int readBlocks) {
+        this.readBlocks = readBlocks;
+    }
+
+
+    /**
+     * @return true if the merge engine picks fan-in and read size from an
+     *         IoCostModel of the spill directories
+     */
+    public boolean isCalibrate() {
+        return calibrate;
+    }
+
+
+    /**
+     * @param calibrate
+     *            true if the merge engine picks fan-in and read size from an
+     *            IoCostModel of the spill directories
+     */
+    public void setCalibrate(boolean calibrate) {
+        this.calibrate = calibrate;
+    }
+
+
+    /**
+     * @return arena the run generation heap is stored in, or null to keep
+     *         it on the Java heap
+     */
+    public RecordArena getRecordArena() {
+        return recordArena;
+    }
+
+
+    /**
+     * @param recordArena
+     *            arena the run generation heap is stored in, or null to keep
+     *            it on the Java heap
+     */
+    public void setRecordArena(RecordArena recordArena) {
+        this.recordArena = recordArena;
+    }
+
+
+    /**
+     * @return file the command line writes a Flight Recorder recording of
+     *         the sort to, or null for none
+     */
+    public String getRecordingFile() {
+        return recordingFile;
+    }
+
+
+    /**
+     * @param recordingFile
+     *            file the command line writes a Flight Recorder recording of
+     *            the sort to, or null for none
+     */
+    public void setRecordingFile(String recordingFile) {
+        this.recordingFile = recordingFile;
+    }
+
+
+    /**
+     * @return true if the input, runs and output are read and written
+     *         around the page cache, see DirectFile
+     */
+    public boolean isDirectIo() {
+        return directIo;
+    }
+
+
+    /**
+     * @param directIo
+     *            true if the input, runs and output are read and written
+     *            around the page cache, see DirectFile
+     */
+    public void setDirectIo(boolean directIo) {
+        this.directIo = directIo;
+    }
+
+
+    /**
+     * @return about how many shards the output is split into by record
+     *         count, 0 or 1 for a single output file
+     */
+    public int getShardCount() {
+        return shardCount;
+    }
+
+
+    /**
+     * @param shardCount
+     *            about how many shards the output is split into by record
+     *            count, 0 or 1 for a single output file
+     */
+    public void setShardCount(int shardCount) {
+        this.shardCount = shardCount;
+    }
+
+
+    /**
+     * @return ascending sort keys at which a new output shard starts, or
+     *         null not to split by key
+     */
+    public long[] getShardBounds() {
+        return shardBounds;
+    }
+
+
+    /**
+     * @param shardBounds
+     *            ascending sort keys, as given by SortOrder.sortKey(), at
+     *            which a new output shard starts, or null not to split by
+     *            key
+     */
+    public void setShardBounds(long[] shardBounds) {
+        this.shardBounds = shardBounds;
+    }
+
+
+    /**
+     * @return true if the output is split into shards, see ShardedOutput
+     */
+    public boolean isSharded() {
+        return shardBounds != null || shardCount > 1;
+    }
+
+
+    /**
+     * @return true if the output, or each shard of it, gets a KeyStats
+     *         sidecar
+     */
+    public boolean isKeyStats() {
+        return keyStats;
+    }
+
+
+    /**
+     * @param keyStats
+     *            true if the output, or each shard of it, gets a KeyStats
+     *            sidecar
+     */
+    public void setKeyStats(boolean keyStats) {
+        this.keyStats = keyStats;
+    }
+
+
+    /**
+     * @return the sinks the final output is teed to, see OutputTee
+     */
+    public OutputSink[] getSinks() {
+        return sinks;
+    }
+
+
+    /**
+     * Tee the final output to a sink as well, in the same pass that writes
+     * it.
+     *
+     * @param sink
+     *            sink to add
+     */
+    public void addSink(OutputSink sink) {
+        sinks = Arrays.copyOf(sinks, sinks.length + 1);
+        sinks[sinks.length - 1] = sink;
+    }
+
+
+    /**
+     * @param sinks
+     *            the sinks the final output is teed to, none if empty
+     */
+    public void setSinks(OutputSink[] sinks) {
+        this.sinks = sinks;
+    }
+}
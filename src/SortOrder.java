@@ -0,0 +1,182 @@
+/**
+ * The order records are sorted in. Each record is reduced once, when it is
+ * read, to a long sort key whose signed order is the wanted order, so the
+ * heaps compare plain longs and never ask which order is in use.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public enum SortOrder {
+    /**
+     * ascending by key
+     */
+    ASCENDING,
+    /**
+     * descending by key
+     */
+    DESCENDING,
+    /**
+     * ascending by key, equal keys ascending by ID
+     */
+    KEY_THEN_ID,
+    /**
+     * ascending by ID, the key is ignored
+     */
+    ID;
+
+
+    /**
+     * Map a double to a long with the order of Double.compare for every
+     * number: -0.0 sorts before 0.0 and the NaN Java makes after positive
+     * infinity. The raw bits are kept, so unsortable() gives back exactly
+     * the double that was read, which the engines rely on to write keys
+     * back out. Other NaNs would sort apart, but Buffer decodes every NaN
+     * as the canonical one, so keys read from a file order exactly as
+     * comparable() orders them.
+     *
+     * @param key
+     *            record key
+     * @return order preserving long
+     */
+    public static long sortable(double key) {
+        long bits = Double.doubleToRawLongBits(key);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+
+
+    /**
+     * Map a double to a long with exactly the order of Double.compare:
+     * like sortable(), but every NaN is first made the one canonical NaN,
+     * so all NaNs are equal and after positive infinity, for keys that did
+     * not come through Buffer. It cannot be undone for NaNs, so the key
+     * itself has to be kept for output.
+     *
+     * @param key
+     *            record key
+     * @return order preserving long
+     */
+    public static long comparable(double key) {
+        long bits = Double.doubleToLongBits(key);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+
+
+    /**
+     * Undo sortable()
+     *
+     * @param sortable
+     *            value returned by sortable()
+     * @return the original key
+     */
+    public static double unsortable(long sortable) {
+        return Double.longBitsToDouble(sortable ^ ((sortable >> 63)
+            & Long.MAX_VALUE));
+    }
+
+
+    /**
+     * Return the sort key of a record
+     *
+     * @param id
+     *            record ID
+     * @param key
+     *            record key
+     * @return long whose signed order is this order
+     */
+    public long sortKey(long id, double key) {
+        switch (this) {
+            case DESCENDING:
+                return ~sortable(key);
+            case ID:
+                return id;
+            default:
+                return sortable(key);
+        }
+    }
+
+
+    /**
+     * Return what has to be stored next to the sort key to rebuild the
+     * record: the key's bits when sorting by ID, otherwise the ID.
+     *
+     * @param id
+     *            record ID
+     * @param key
+     *            record key
+     * @return payload for recordID()/recordKey()
+     */
+    public long payload(long id, double key) {
+        return this == ID ? Double.doubleToRawLongBits(key) : id;
+    }
+
+
+    /**
+     * Rebuild a record's ID from its sort key and payload
+     *
+     * @param sortKey
+     *            value from sortKey()
+     * @param payload
+     *            value from payload()
+     * @return record ID
+     */
+    public long recordID(long sortKey, long payload) {
+        return this == ID ? sortKey : payload;
+    }
+
+
+    /**
+     * Rebuild a record's key from its sort key and payload
+     *
+     * @param sortKey
+     *            value from sortKey()
+     * @param payload
+     *            value from payload()
+     * @return record key
+     */
+    public double recordKey(long sortKey, long payload) {
+        switch (this) {
+            case DESCENDING:
+                return unsortable(~sortKey);
+            case ID:
+                return Double.longBitsToDouble(payload);
+            default:
+                return unsortable(sortKey);
+        }
+    }
+
+
+    /**
+     * Return how ties are broken under this order. KEY_THEN_ID always
+     * breaks ties by ID, and ID has nothing left to break ties on but input
+     * order.
+     *
+     * @param requested
+     *            tie breaking asked for
+     * @return tie breaking to use
+     */
+    public TieBreak tieBreak(TieBreak requested) {
+        if (this == KEY_THEN_ID) {
+            return TieBreak.ID;
+        }
+        if (this == ID && requested == TieBreak.ID) {
+            return TieBreak.NONE;
+        }
+        return requested;
+    }
+
+
+    /**
+     * Compare two records under this order. Used for checking output, not in
+     * the sort itself.
+     *
+     * @return negative, zero or positive as the first record sorts before,
+     *         with or after the second
+     */
+    public int compare(long id1, double key1, long id2, double key2) {
+        int result = Long.compare(sortKey(id1, key1), sortKey(id2, key2));
+        if (result == 0 && this == KEY_THEN_ID) {
+            result = Long.compare(id1, id2);
+        }
+        return result;
+    }
+}
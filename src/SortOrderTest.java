@@ -0,0 +1,170 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import student.TestCase;
+
+/**
+ * Tests for SortOrder
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class SortOrderTest extends TestCase {
+    private static final double[] ASCENDING_KEYS = { Double.NEGATIVE_INFINITY,
+        -1e300, -1.0, -Double.MIN_VALUE, -0.0, 0.0, Double.MIN_VALUE, 1.0,
+        1e300, Double.POSITIVE_INFINITY, Double.NaN };
+
+    /**
+     * set up for tests
+     */
+    public void setUp() {
+        // nothing to set up.
+    }
+
+
+    /**
+     * sortable() orders like Double.compare, special values included
+     */
+    public void testSortable() {
+        for (int i = 1; i < ASCENDING_KEYS.length; i++) {
+            assertTrue(SortOrder.sortable(ASCENDING_KEYS[i - 1]) < SortOrder
+                .sortable(ASCENDING_KEYS[i]));
+        }
+    }
+
+
+    /**
+     * Every order rebuilds the exact record it was given
+     */
+    public void testRoundTrip() {
+        for (SortOrder order : SortOrder.values()) {
+            for (double key : ASCENDING_KEYS) {
+                long sortKey = order.sortKey(-7, key);
+                long payload = order.payload(-7, key);
+                assertEquals(-7, order.recordID(sortKey, payload));
+                assertEquals(Double.doubleToRawLongBits(key), Double
+                    .doubleToRawLongBits(order.recordKey(sortKey, payload)));
+            }
+        }
+    }
+
+
+    /**
+     * Descending and ID orders compare the right field
+     */
+    public void testCompare() {
+        assertTrue(SortOrder.DESCENDING.compare(1, 2.0, 2, 1.0) < 0);
+        assertTrue(SortOrder.ID.compare(1, 2.0, 2, 1.0) < 0);
+        assertTrue(SortOrder.ASCENDING.compare(1, 2.0, 2, 1.0) > 0);
+        assertEquals(0, SortOrder.ASCENDING.compare(2, 1.0, 1, 1.0));
+        assertTrue(SortOrder.KEY_THEN_ID.compare(2, 1.0, 1, 1.0) > 0);
+    }
+
+
+    /**
+     * Records compare by their normalized keys the way Double.compare
+     * orders the keys, a MinHeap of them gives them back in that order,
+     * and a record decoded from a buffer keeps its key's exact bits
+     */
+    public void testRecordOrder() {
+        Record[] records = new Record[ASCENDING_KEYS.length];
+        for (int i = 0; i < records.length; i++) {
+            // reversed, so the heap has to reorder them
+            records[i] = new Record(i, ASCENDING_KEYS[records.length - 1 - i]);
+        }
+        for (Record a : records) {
+            for (Record b : records) {
+                assertEquals(Integer.signum(Double.compare(a.getKey(), b
+                    .getKey())), Integer.signum(a.compareTo(b)));
+            }
+        }
+        MinHeap<Record> heap = new MinHeap<Record>(records, records.length,
+            records.length);
+        for (double key : ASCENDING_KEYS) {
+            assertEquals(0, Double.compare(key, heap.removeMin().getKey()));
+        }
+
+        ByteBuffer bytes = ByteBuffer.allocate(Record.BYTES);
+        bytes.putLong(5).putLong(0x7ff0000000000123L); // a NaN
+        Record decoded = new Buffer(null, 0, bytes).getNextRecord();
+        assertEquals(Double.doubleToRawLongBits(Double.NaN), Double
+            .doubleToRawLongBits(decoded.getKey()));
+        assertEquals(SortOrder.comparable(Double.NaN), decoded.getSortKey());
+
+        // every NaN is equal and last, whatever its sign and payload
+        Record negativeNaN = new Record(1, Double.longBitsToDouble(
+            0xfff8000000000000L));
+        Record otherNaN = new Record(2, Double.longBitsToDouble(
+            0x7ff0000000000456L));
+        Record lowest = new Record(3, Double.NEGATIVE_INFINITY);
+        assertEquals(Double.compare(negativeNaN.getKey(), lowest.getKey()),
+            negativeNaN.compareTo(lowest));
+        assertEquals(1, negativeNaN.compareTo(lowest));
+        assertEquals(0, negativeNaN.compareTo(otherNaN));
+        assertEquals(0, decoded.compareTo(otherNaN));
+        assertEquals(0xfff8000000000000L, Double.doubleToRawLongBits(
+            negativeNaN.getKey()));
+    }
+
+
+    /**
+     * Both engines put NaNs of any sign and payload together after
+     * positive infinity, as Double.compare and Record do
+     * @throws IOException
+     */
+    public void testEngineNaNOrder() throws IOException {
+        int count = 8 * ByteFile.RECORDS_PER_BLOCK;
+        ByteBuffer bytes = ByteBuffer.allocate(count * Record.BYTES);
+        Random rng = new Random(50);
+        int nans = 0;
+        for (int i = 0; i < count; i++) {
+            double key = rng.nextGaussian();
+            if (i % 97 == 0) {
+                key = Double.longBitsToDouble((rng.nextBoolean()
+                    ? 0xfff0000000000000L
+                    : 0x7ff0000000000000L) | (1 + rng.nextInt(1000)));
+                nans++;
+            }
+            else if (i % 89 == 0) {
+                key = i % 2 == 0
+                    ? Double.NEGATIVE_INFINITY
+                    : Double.POSITIVE_INFINITY;
+            }
+            bytes.putLong(i).putDouble(key);
+        }
+        RandomAccessFile input = new RandomAccessFile("nanInput.bin", "rw");
+        input.write(bytes.array());
+        input.close();
+        SortOptions options = new SortOptions();
+        options.setHeapBlocks(1);
+        try {
+            for (SortEngine engine : SortEngine.values()) {
+                options.setEngine(engine);
+                Externalsort.sort("nanInput.bin", "nanRuns.bin",
+                    "nanOutput.bin", options);
+                byte[] sorted = ByteFile.readAll("nanOutput.bin");
+                ByteBuffer records = ByteBuffer.wrap(sorted);
+                assertEquals(count * Record.BYTES, sorted.length);
+                Record previous = null;
+                for (int i = 0; i < count; i++) {
+                    Record record = new Record(records.getLong(), records
+                        .getDouble());
+                    assertEquals(i >= count - nans, Double.isNaN(record
+                        .getKey()));
+                    assertTrue(previous == null || Double.compare(previous
+                        .getKey(), record.getKey()) <= 0);
+                    assertTrue(previous == null || previous.compareTo(
+                        record) <= 0);
+                    previous = record;
+                }
+            }
+        }
+        finally {
+            new File("nanInput.bin").delete();
+            new File("nanRuns.bin").delete();
+            new File("nanOutput.bin").delete();
+        }
+    }
+}
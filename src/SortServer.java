@@ -0,0 +1,400 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A long running sort service, so short sorts do not each pay for starting
+ * and warming up a JVM. It listens on a loopback socket; a client connects
+ * and sends one line,
+ *
+ * <pre>
+ * INPUT OUTPUT [OPTIONS]
+ * </pre>
+ *
+ * with the same options as Externalsort, and gets back the first record of
+ * each block of OUTPUT, as Externalsort prints it, then a line "done", or a
+ * single line "error MESSAGE". Each job runs on its own virtual thread when
+ * the JVM has them, else on a pooled platform thread. Jobs share one memory
+ * budget through an AdmissionController, which sizes each job's heap, and
+ * one DirectBufferPool for their I/O blocks.
+ * <p>
+ * Any local process can connect, and the server reads and writes with its
+ * own rights, so every file a job names, spill directories and recording
+ * included, must lie under the server's root directory once symbolic links
+ * are resolved. Relative names are taken from the root. Jobs sort with the
+ * merge engine, whose memory the server can account for.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class SortServer implements Closeable {
+    /**
+     * port listened on when none is given
+     */
+    public static final int DEFAULT_PORT = 3114;
+    /**
+     * memory shared by all jobs by default, in bytes
+     */
+    public static final long DEFAULT_BUDGET = 256L << 20;
+    /**
+     * I/O blocks shared by all jobs by default
+     */
+    public static final int DEFAULT_BUFFERS = 256;
+
+    private static final int HEAP_ENTRY_BYTES = 3 * Long.BYTES;
+    private static final long HEAP_BLOCK_BYTES = ByteFile.RECORDS_PER_BLOCK
+        * HEAP_ENTRY_BYTES;
+    private static final int DECODED_BYTES = Long.BYTES + Double.BYTES;
+
+    private File root;
+    private ServerSocket socket;
+    private AdmissionController admission;
+    private DirectBufferPool pool;
+    private ExecutorService jobs;
+
+    /**
+     * Create a new SortServer listening on the loopback interface, for
+     * files under the working directory.
+     *
+     * @param port
+     *            port to listen on, 0 for any free one
+     * @param budget
+     *            bytes of memory shared by all jobs
+     * @param buffers
+     *            I/O blocks shared by all jobs, at least 3
+     * @throws IOException
+     */
+    public SortServer(int port, long budget, int buffers) throws IOException {
+        this(port, budget, buffers, ".");
+    }
+
+
+    /**
+     * Create a new SortServer listening on the loopback interface.
+     *
+     * @param port
+     *            port to listen on, 0 for any free one
+     * @param budget
+     *            bytes of memory shared by all jobs
+     * @param buffers
+     *            I/O blocks shared by all jobs, at least 3
+     * @param root
+     *            directory every file of a job must be under
+     * @throws IOException
+     */
+    public SortServer(int port, long budget, int buffers, String root)
+        throws IOException {
+        this.root = new File(root).getCanonicalFile();
+        if (!this.root.isDirectory()) {
+            throw new IllegalArgumentException("No such directory: " + root);
+        }
+        if (buffers < 3) {
+            throw new IllegalArgumentException("A merge needs 3 buffers: "
+                + buffers);
+        }
+        this.admission = new AdmissionController(budget);
+        this.pool = new DirectBufferPool(buffers);
+        this.socket = new ServerSocket(port, 50, InetAddress
+            .getLoopbackAddress());
+        this.jobs = newJobExecutor();
+    }
+
+
+    /**
+     * @return the port listened on
+     */
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+
+    /**
+     * @return the controller splitting the memory budget
+     */
+    public AdmissionController getAdmission() {
+        return admission;
+    }
+
+
+    /**
+     * @return the pool of I/O blocks
+     */
+    public DirectBufferPool getBufferPool() {
+        return pool;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Accept jobs until the server is closed.
+     *
+     * @throws IOException
+     */
+    public void serve() throws IOException {
+        while (!socket.isClosed()) {
+            Socket client;
+            try {
+                client = socket.accept();
+            }
+            catch (SocketException e) {
+                return; // closed while waiting
+            }
+            try {
+                jobs.execute(() -> handle(client));
+            }
+            catch (RejectedExecutionException e) {
+                client.close(); // closed while accepting
+            }
+        }
+    }
+
+
+    /**
+     * Stop taking jobs and wait for the running ones to finish.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        socket.close();
+        jobs.shutdown();
+        try {
+            jobs.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Send a job to a server and wait for the reply.
+     *
+     * @param port
+     *            port the server listens on
+     * @param request
+     *            "INPUT OUTPUT [OPTIONS]"
+     * @return the server's reply
+     * @throws IOException
+     */
+    public static String submit(int port, String request) throws IOException {
+        Socket client = new Socket(InetAddress.getLoopbackAddress(), port);
+        try {
+            Writer out = new OutputStreamWriter(client.getOutputStream(),
+                StandardCharsets.UTF_8);
+            out.write(request + "\n");
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                client.getInputStream(), StandardCharsets.UTF_8));
+            StringBuilder reply = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null) {
+                reply.append(line).append('\n');
+            }
+            return reply.toString();
+        }
+        finally {
+            client.close();
+        }
+    }
+
+
+    /**
+     * Run a server until the JVM is stopped.
+     *
+     * @param args
+     *            optional port, --budget=MB, --buffers=N and --root=DIR,
+     *            the working directory if not given
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        long budget = DEFAULT_BUDGET;
+        int buffers = DEFAULT_BUFFERS;
+        String root = ".";
+        for (String arg : args) {
+            if (arg.startsWith("--budget=")) {
+                budget = Long.parseLong(arg.substring(9)) << 20;
+            }
+            else if (arg.startsWith("--buffers=")) {
+                buffers = Integer.parseInt(arg.substring(10));
+            }
+            else if (arg.startsWith("--root=")) {
+                root = arg.substring(7);
+            }
+            else {
+                port = Integer.parseInt(arg);
+            }
+        }
+        SortServer server = new SortServer(port, budget, buffers, root);
+        System.out.println("Sorting on port " + server.getPort());
+        server.serve();
+    }
+
+
+    private void handle(Socket client) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                client.getInputStream(), StandardCharsets.UTF_8));
+            Writer out = new OutputStreamWriter(client.getOutputStream(),
+                StandardCharsets.UTF_8);
+            String request = in.readLine();
+            String reply;
+            try {
+                reply = run(request == null ? "" : request.trim()) + "done\n";
+            }
+            catch (IOException | RuntimeException e) {
+                reply = "error " + e + "\n";
+            }
+            catch (InterruptedException e) {
+                reply = "error interrupted\n";
+                Thread.currentThread().interrupt();
+            }
+            out.write(reply);
+            out.flush();
+        }
+        catch (IOException e) {
+            // the client went away, nothing to tell it
+        }
+        finally {
+            try {
+                client.close();
+            }
+            catch (IOException e) {
+                // already closing
+            }
+        }
+    }
+
+
+    /**
+     * Admit and run one job.
+     *
+     * @return the block sample of its output
+     */
+    private String run(String request)
+        throws IOException,
+        InterruptedException {
+        String[] args = request.split("\\s+");
+        if (args.length < 2) {
+            throw new IllegalArgumentException(
+                "Expected INPUT OUTPUT [OPTIONS]");
+        }
+        SortOptions options = Externalsort.parseOptions(args, 2,
+            new SortOptions());
+        if (options.getEngine() != SortEngine.MERGE) {
+            throw new IllegalArgumentException(
+                "The server sorts with the merge engine only");
+        }
+        String input = underRoot(args[0]);
+        String output = underRoot(args[1]);
+        String[] dirs = options.getSpillDirs();
+        if (dirs != null) {
+            dirs = dirs.clone();
+            for (int d = 0; d < dirs.length; d++) {
+                dirs[d] = underRoot(dirs[d]);
+            }
+            options.setSpillDirs(dirs);
+        }
+        if (options.getRecordingFile() != null) {
+            options.setRecordingFile(underRoot(options.getRecordingFile()));
+        }
+        // a merge pass takes a block per run and one per stripe
+        int stripes = dirs == null ? 1 : Math.max(1, dirs.length);
+        options.setFanIn(Math.min(options.getFanIn(), pool.capacity()
+            - stripes));
+        long grant = admission.admit(options.getMemoryBytes() + bufferBytes(
+            options));
+        try {
+            // where the grant is short of that, read ahead less and then
+            // merge fewer runs at once until a heap block is left over
+            long heapBytes = grant - bufferBytes(options);
+            while (heapBytes < HEAP_BLOCK_BYTES && (options
+                .getPrefetchBlocks() > 0 || options.getFanIn() > 2)) {
+                if (options.getPrefetchBlocks() > 0) {
+                    options.setPrefetchBlocks(0);
+                }
+                else {
+                    options.setFanIn(options.getFanIn() - 1);
+                }
+                heapBytes = grant - bufferBytes(options);
+            }
+            options.setMemoryBytes(grant);
+            options.setHeapBlocks((int)Math.max(1, Math.min(Integer.MAX_VALUE,
+                heapBytes / HEAP_BLOCK_BYTES)));
+            options.setBufferPool(pool);
+            return Externalsort.sort(input, output + ".runs", output, options)
+                .toString();
+        }
+        finally {
+            admission.release(grant);
+        }
+    }
+
+
+    /**
+     * Bytes a job's I/O takes from the Java heap rather than the pool: the
+     * block of input run generation decodes, and in a merge the records
+     * decoded from every run's current read plus the spare blocks read
+     * ahead into.
+     */
+    private static long bufferBytes(SortOptions options) {
+        int prefetch = Math.max(0, options.getPrefetchBlocks());
+        int read = prefetch > 0 ? Math.max(1, options.getReadBlocks()) : 1;
+        long decoded = (1L + (long)Math.max(2, options.getFanIn()) * read)
+            * ByteFile.RECORDS_PER_BLOCK * DECODED_BYTES;
+        long spares = (long)(prefetch + read - 1) / read * read
+            * ByteFile.BYTES_PER_BLOCK;
+        return decoded + spares;
+    }
+
+
+    /**
+     * Resolve a file a job names against the root, following symbolic
+     * links, and refuse it unless it lies under the root.
+     *
+     * @return the resolved path
+     */
+    private String underRoot(String name) throws IOException {
+        File file = new File(name);
+        if (!file.isAbsolute()) {
+            file = new File(root, name);
+        }
+        File canonical = file.getCanonicalFile();
+        if (!canonical.toPath().startsWith(root.toPath())) {
+            throw new IllegalArgumentException("Not under " + root + ": "
+                + name);
+        }
+        return canonical.getPath();
+    }
+
+
+    /**
+     * Use a virtual thread per job when the JVM has them (Java 21 and on),
+     * found by reflection since this code targets Java 11, and a growing
+     * pool of platform threads otherwise.
+     */
+    private static ExecutorService newJobExecutor() {
+        try {
+            return (ExecutorService)Executors.class.getMethod(
+                "newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
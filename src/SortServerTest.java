@@ -0,0 +1,221 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import student.TestCase;
+
+/**
+ * Tests for SortServer, AdmissionController and DirectBufferPool
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class SortServerTest extends TestCase {
+    private static final int JOBS = 4;
+
+    /**
+     * Concurrent jobs all sort correctly and hand back their memory and
+     * buffers
+     * @throws Exception
+     */
+    public void testConcurrentJobs() throws Exception {
+        SortServer server = new SortServer(0, 1 << 20, 12);
+        Thread acceptor = new Thread(() -> {
+            try {
+                server.serve();
+            }
+            catch (IOException e) {
+                fail(e.toString());
+            }
+        });
+        acceptor.start();
+        ExecutorService clients = Executors.newFixedThreadPool(JOBS);
+        try {
+            @SuppressWarnings({ "unchecked", "rawtypes" })
+            Future<String>[] replies = new Future[JOBS];
+            for (int i = 0; i < JOBS; i++) {
+                new ByteFile("serverInput" + i + ".bin", 10 + i)
+                    .writeRandomRecords();
+                String request = "serverInput" + i + ".bin serverOutput" + i
+                    + ".bin --memory=1" + (i % 2 == 0 ? "" : " --stable");
+                replies[i] = clients.submit(() -> SortServer.submit(server
+                    .getPort(), request));
+            }
+            for (int i = 0; i < JOBS; i++) {
+                String output = "serverOutput" + i + ".bin";
+                String reply = replies[i].get();
+                assertEquals(BlockSample.read(output) + "done\n", reply);
+                assertTrue(new ByteFile(output, 10 + i).isSorted());
+                assertEquals((10 + i) * ByteFile.RECORDS_PER_BLOCK, ByteFile
+                    .recordCount(output));
+            }
+            assertTrue(SortServer.submit(server.getPort(),
+                "serverInput0.bin").startsWith("error "));
+            assertTrue(SortServer.submit(server.getPort(),
+                "missing.bin serverOutput0.bin").startsWith("error "));
+            assertEquals(12, server.getBufferPool().available());
+            assertEquals(1 << 20, server.getAdmission().available());
+        }
+        finally {
+            clients.shutdown();
+            server.close();
+            acceptor.join();
+            for (int i = 0; i < JOBS; i++) {
+                new File("serverInput" + i + ".bin").delete();
+                new File("serverOutput" + i + ".bin").delete();
+            }
+        }
+    }
+
+
+    /**
+     * A job striping its runs over several spill directories narrows its
+     * merges to leave a pooled block for each stripe
+     * @throws Exception
+     */
+    public void testSpillDirs() throws Exception {
+        SortServer server = new SortServer(0, 1 << 16, 5);
+        Thread acceptor = new Thread(() -> {
+            try {
+                server.serve();
+            }
+            catch (IOException e) {
+                fail(e.toString());
+            }
+        });
+        acceptor.start();
+        String[] dirs = { "serverSpill0", "serverSpill1" };
+        try {
+            for (String dir : dirs) {
+                new File(dir).mkdir();
+            }
+            new ByteFile("serverInput.bin", 40).writeRandomRecords();
+            String reply = SortServer.submit(server.getPort(),
+                "serverInput.bin serverOutput.bin --memory=1 --spill="
+                    + dirs[0] + " --spill=" + dirs[1]);
+            assertEquals(BlockSample.read("serverOutput.bin") + "done\n",
+                reply);
+            assertTrue(new ByteFile("serverOutput.bin", 40).isSorted());
+            assertEquals(5, server.getBufferPool().available());
+        }
+        finally {
+            server.close();
+            acceptor.join();
+            new File("serverInput.bin").delete();
+            new File("serverOutput.bin").delete();
+            for (String dir : dirs) {
+                new File(dir, "serverOutput.bin.runs").delete();
+                new File(dir, "serverOutput.bin.runs"
+                    + MultiwayMerge.PASS_SUFFIX).delete();
+                new File(dir).delete();
+            }
+        }
+    }
+
+
+    /**
+     * Files a job names resolve from the server's root, and a job naming a
+     * file outside it is refused
+     * @throws Exception
+     */
+    public void testRoot() throws Exception {
+        File root = new File("serverRoot");
+        root.mkdir();
+        SortServer server = new SortServer(0, 1 << 20, 12, root.getPath());
+        Thread acceptor = new Thread(() -> {
+            try {
+                server.serve();
+            }
+            catch (IOException e) {
+                fail(e.toString());
+            }
+        });
+        acceptor.start();
+        File input = new File(root, "serverInput.bin");
+        File output = new File(root, "serverOutput.bin");
+        try {
+            new ByteFile(input.getPath(), 4).writeRandomRecords();
+            new ByteFile("serverOutside.bin", 4).writeRandomRecords();
+            String reply = SortServer.submit(server.getPort(),
+                "serverInput.bin serverOutput.bin");
+            assertTrue(reply.endsWith("done\n"));
+            assertTrue(new ByteFile(output.getPath(), 4).isSorted());
+
+            String[] refused = { "../serverOutside.bin serverOutput.bin",
+                "serverInput.bin ../serverOutput.bin", new File(
+                    "serverOutside.bin").getAbsolutePath()
+                    + " serverOutput.bin",
+                "serverInput.bin serverOutput.bin --spill=..",
+                "serverInput.bin serverOutput.bin --jfr=../server.jfr",
+                "serverInput.bin serverOutput.bin --engine=sample" };
+            for (String request : refused) {
+                assertTrue(request, SortServer.submit(server.getPort(),
+                    request).startsWith("error "));
+            }
+            assertFalse(new File("serverOutput.bin").exists());
+            assertFalse(new File("server.jfr").exists());
+            assertEquals(12, server.getBufferPool().available());
+            assertEquals(1 << 20, server.getAdmission().available());
+        }
+        finally {
+            server.close();
+            acceptor.join();
+            input.delete();
+            output.delete();
+            new File("serverOutside.bin").delete();
+            root.delete();
+        }
+    }
+
+
+    /**
+     * Grants are capped at the budget and a sort waits until its grant is
+     * free
+     * @throws Exception
+     */
+    public void testAdmission() throws Exception {
+        AdmissionController admission = new AdmissionController(100);
+        assertEquals(100, admission.admit(1000));
+        long[] second = new long[1];
+        Thread waiter = new Thread(() -> {
+            try {
+                second[0] = admission.admit(40);
+            }
+            catch (InterruptedException e) {
+                second[0] = -1;
+            }
+        });
+        waiter.start();
+        Thread.sleep(50);
+        assertEquals(0, second[0]);
+        admission.release(100);
+        waiter.join();
+        assertEquals(40, second[0]);
+        assertEquals(60, admission.available());
+    }
+
+
+    /**
+     * Blocks are handed out all at once and never more than the pool holds
+     * @throws Exception
+     */
+    public void testBufferPool() throws Exception {
+        DirectBufferPool pool = new DirectBufferPool(3);
+        ByteBuffer[] blocks = pool.acquire(2);
+        assertTrue(blocks[0].isDirect());
+        assertEquals(1, pool.available());
+        pool.release(blocks);
+        assertEquals(3, pool.available());
+        Exception thrown = null;
+        try {
+            pool.acquire(4);
+        }
+        catch (IllegalArgumentException e) {
+            thrown = e;
+        }
+        assertNotNull(thrown);
+        assertNull(DirectBufferPool.acquire(null, 4));
+    }
+}
@@ -0,0 +1,239 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import student.TestCase;
+
+/**
+ * Runs at byte offsets past 2^31 blocks, in sparse files, so offsets that
+ * would overflow an int as bytes, records or blocks are exercised without
+ * terabytes of disk. Where the file system caps file size lower than that
+ * each test notes so and returns without checking anything.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public class SparseFileTest extends TestCase {
+    private static final String RUNS = "sparseRuns.bin";
+    private static final String INPUT = "sparseInput.bin";
+    private static final String OUTPUT = "sparseOutput.bin";
+    private static final String MANIFEST = RUNS + SortManifest.SUFFIX;
+    private static final long ROOM = 1 << 20; // bytes written past the base
+    private static final int HIGH_BITS = 45; // 2^32 blocks, with room
+
+    private SortOptions options;
+    private Random rng;
+    private long base;
+
+    /**
+     * set up for tests
+     * @throws IOException
+     */
+    public void setUp() throws IOException {
+        options = new SortOptions();
+        options.setTieBreak(TieBreak.ORDINAL);
+        options.setHeapBlocks(1);
+        rng = new Random(3114);
+        base = highOffset();
+        if (base == 0) {
+            System.out.println("Sparse runs not tested: the file system caps"
+                + " files below 2^" + HIGH_BITS + " bytes");
+            return;
+        }
+        assertTrue(base / ByteFile.BYTES_PER_BLOCK >= 1L << 31);
+    }
+
+
+    /**
+     * remove the files of a test
+     */
+    public void tearDown() {
+        new File(RUNS).delete();
+        new File(RUNS + MultiwayMerge.PASS_SUFFIX).delete();
+        new File(INPUT).delete();
+        new File(OUTPUT).delete();
+        new File(MANIFEST).delete();
+    }
+
+
+    /**
+     * Runs far into the runs file merge the same with and without read
+     * ahead, in one merge or through intermediate passes
+     * @throws IOException
+     */
+    public void testMergeHighRuns() throws IOException {
+        if (base == 0) {
+            return; // the file system cannot hold the runs
+        }
+        ByteBuffer records = randomRecords(2100);
+        RandomAccessFile raf = new RandomAccessFile(RUNS, "rw");
+        RunTable runs = new RunTable();
+        long start = base;
+        for (int length : new int[] { 700, 1100, 300 }) {
+            ByteBuffer run = records.slice();
+            run.limit(length * Record.BYTES);
+            records.position(records.position() + length * Record.BYTES);
+            writeRun(raf, start, run);
+            runs.add(start, length);
+            start += length * Record.BYTES;
+        }
+        raf.close();
+        records.rewind();
+
+        options.setPrefetchBlocks(0);
+        MultiwayMerge merge = new MultiwayMerge(runs, RUNS, OUTPUT, options);
+        assertEquals(1, merge.getPasses());
+        byte[] expected = ByteFile.readAll(OUTPUT);
+        assertTrue(sameRecords(records, expected));
+
+        options.setPrefetchBlocks(16);
+        new MultiwayMerge(runs, RUNS, OUTPUT, options);
+        assertTrue(Arrays.equals(expected, ByteFile.readAll(OUTPUT)));
+
+        options.setFanIn(2);
+        merge = new MultiwayMerge(runs, RUNS, OUTPUT, options);
+        assertEquals(2, merge.getPasses());
+        assertTrue(Arrays.equals(expected, ByteFile.readAll(OUTPUT)));
+    }
+
+
+    /**
+     * A single run far into the runs file is copied out intact
+     * @throws IOException
+     */
+    public void testMoveHighRun() throws IOException {
+        if (base == 0) {
+            return; // the file system cannot hold the runs
+        }
+        ByteBuffer run = randomRecords(1000);
+        RandomAccessFile raf = new RandomAccessFile(RUNS, "rw");
+        writeRun(raf, base, run);
+        raf.close();
+        RunTable runs = new RunTable();
+        runs.add(base, 1000);
+        new MultiwayMerge(runs, RUNS, OUTPUT, options);
+        assertEquals(sort(run), ByteBuffer.wrap(ByteFile.readAll(OUTPUT)));
+    }
+
+
+    /**
+     * Run generation resumed after a checkpointed run that ends far into
+     * the runs file carries on from there
+     * @throws IOException
+     */
+    public void testResumeHighRuns() throws IOException {
+        if (base == 0) {
+            return; // the file system cannot hold the runs
+        }
+        ByteBuffer records = randomRecords(5000);
+        RandomAccessFile raf = new RandomAccessFile(INPUT, "rw");
+        raf.write(records.array());
+        raf.close();
+        Externalsort.sort(INPUT, RUNS, OUTPUT, options);
+        byte[] expected = ByteFile.readAll(OUTPUT);
+        new File(RUNS).delete();
+
+        // the first 600 records, sorted, as a run already written
+        int first = 600;
+        ByteBuffer run = records.duplicate();
+        run.limit(first * Record.BYTES);
+        raf = new RandomAccessFile(RUNS, "rw");
+        writeRun(raf, base, sort(run));
+        raf.close();
+        SortManifest checkpoint = new SortManifest(MANIFEST, INPUT, options);
+        checkpoint.runDone(base, first, 0, first, new DaryHeap(1));
+
+        SortManifest resumed = SortManifest.resume(MANIFEST, INPUT, options);
+        RunTable runs = new ReplacementSelection(INPUT, RUNS, options,
+            resumed).getRuns();
+        assertEquals(base, runs.getStart(0));
+        assertTrue(runs.size() > 2);
+        for (int i = 1; i < runs.size(); i++) {
+            assertEquals(runs.getStart(i - 1) + runs.getLength(i - 1)
+                * Record.BYTES, runs.getStart(i));
+        }
+        new MultiwayMerge(runs, RUNS, OUTPUT, options, resumed);
+        resumed.delete();
+        assertTrue(Arrays.equals(expected, ByteFile.readAll(OUTPUT)));
+    }
+
+
+    /**
+     * Find an offset past 2^31 blocks for the runs, just below 2^HIGH_BITS
+     * bytes, if the file system takes files that big. The offset is
+     * deliberately not block aligned.
+     *
+     * @return the offset, or 0 if the file system caps files lower
+     */
+    private long highOffset() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(RUNS, "rw");
+        try {
+            raf.setLength(1L << HIGH_BITS);
+            raf.setLength(0);
+            return (1L << HIGH_BITS) - ROOM + 3 * Record.BYTES;
+        }
+        catch (IOException e) {
+            return 0; // past the file system's largest file
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+
+    /**
+     * count records with IDs counting up and few distinct keys
+     */
+    private ByteBuffer randomRecords(int count) {
+        ByteBuffer bb = ByteBuffer.allocate(count * Record.BYTES);
+        for (long id = 0; bb.hasRemaining(); id++) {
+            bb.putLong(id);
+            bb.putDouble(rng.nextInt(40));
+        }
+        bb.flip();
+        return bb;
+    }
+
+
+    /**
+     * Sort records by key, equal keys in the order given, and write them
+     * at start.
+     */
+    private void writeRun(RandomAccessFile raf, long start, ByteBuffer run)
+        throws IOException {
+        ByteBuffer sorted = sort(run);
+        raf.getChannel().write(sorted, start);
+    }
+
+
+    private ByteBuffer sort(ByteBuffer records) {
+        ByteBuffer in = records.duplicate();
+        int count = in.remaining() / Record.BYTES;
+        Integer[] at = new Integer[count];
+        long[] ids = new long[count];
+        double[] keys = new double[count];
+        for (int i = 0; i < count; i++) {
+            at[i] = i;
+            ids[i] = in.getLong();
+            keys[i] = in.getDouble();
+        }
+        Arrays.sort(at, (a, b) -> Double.compare(keys[a], keys[b]));
+        ByteBuffer out = ByteBuffer.allocate(count * Record.BYTES);
+        for (int i : at) {
+            out.putLong(ids[i]);
+            out.putDouble(keys[i]);
+        }
+        out.flip();
+        return out;
+    }
+
+
+    /**
+     * @return true if output is records sorted
+     */
+    private boolean sameRecords(ByteBuffer records, byte[] output) {
+        return sort(records).equals(ByteBuffer.wrap(output));
+    }
+}
@@ -0,0 +1,263 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The files a runs file is striped across, one per spill directory, so the
+ * runs of a big sort are spread over several devices. Run k of a pass goes
+ * to stripe k % stripes(). With no spill directories there is one stripe,
+ * the runs file itself.
+ *
+ * Each stripe can also have its own reader thread, so a merge keeps every
+ * device busy at once rather than queueing all its reads on one.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+class SpillFiles implements Closeable {
+    private String[] paths;
+    private RandomAccessFile[] files;
+    private ExecutorService[] readers;
+
+    /**
+     * Open the stripes of a runs file.
+     *
+     * @param runsFile
+     *            name of the runs file
+     * @param options
+     *            options naming the spill directories and whether to go
+     *            around the page cache
+     * @param mode
+     *            "r" to read the stripes, "rw" to write them
+     * @throws IOException
+     */
+    SpillFiles(String runsFile, SortOptions options, String mode)
+        throws IOException {
+        this(paths(runsFile, options), mode, options.isDirectIo());
+    }
+
+
+    /**
+     * Open files named outright as the stripes.
+     *
+     * @param paths
+     *            a path per stripe
+     * @param mode
+     *            "r" to read the stripes, "rw" to write them
+     * @param direct
+     *            true to read and write them around the page cache, see
+     *            DirectFile
+     * @throws IOException
+     */
+    SpillFiles(String[] paths, String mode, boolean direct)
+        throws IOException {
+        this.paths = paths;
+        this.files = new RandomAccessFile[paths.length];
+        try {
+            for (int s = 0; s < paths.length; s++) {
+                files[s] = DirectFile.open(paths[s], mode, direct);
+            }
+        }
+        catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Name the stripes of a runs file: the runs file's name in each spill
+     * directory, or just the runs file when there are none.
+     *
+     * @param runsFile
+     *            name of the runs file
+     * @param options
+     *            options naming the spill directories
+     * @return a path per stripe
+     */
+    public static String[] paths(String runsFile, SortOptions options) {
+        String[] dirs = options.getSpillDirs();
+        if (dirs == null || dirs.length == 0) {
+            return new String[] { runsFile };
+        }
+        String name = new File(runsFile).getName();
+        String[] paths = new String[dirs.length];
+        for (int s = 0; s < dirs.length; s++) {
+            paths[s] = new File(dirs[s], name).getPath();
+        }
+        return paths;
+    }
+
+
+    /**
+     * Delete the stripes of a runs file.
+     *
+     * @param runsFile
+     *            name of the runs file
+     * @param options
+     *            options naming the spill directories
+     */
+    public static void delete(String runsFile, SortOptions options) {
+        for (String path : paths(runsFile, options)) {
+            new File(path).delete();
+        }
+    }
+
+
+    /**
+     * @return the number of stripes
+     */
+    public int stripes() {
+        return paths.length;
+    }
+
+
+    /**
+     * @param stripe
+     *            which stripe
+     * @return its path
+     */
+    public String path(int stripe) {
+        return paths[stripe];
+    }
+
+
+    /**
+     * @param stripe
+     *            which stripe
+     * @return its open file
+     */
+    public RandomAccessFile file(int stripe) {
+        return files[stripe];
+    }
+
+
+    /**
+     * Truncate every stripe.
+     *
+     * @throws IOException
+     */
+    public void clear() throws IOException {
+        for (RandomAccessFile file : files) {
+            file.setLength(0);
+        }
+    }
+
+
+    /**
+     * Force every stripe to disk.
+     *
+     * @throws IOException
+     */
+    public void sync() throws IOException {
+        for (RandomAccessFile file : files) {
+            DirectFile.sync(file);
+        }
+    }
+
+
+    /**
+     * Force one stripe to disk.
+     *
+     * @param stripe
+     *            which stripe
+     * @throws IOException
+     */
+    public void sync(int stripe) throws IOException {
+        DirectFile.sync(files[stripe]);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Queue a read on a stripe's own reader thread. Once a stripe is read
+     * this way, every read of it must be, since the stripe's file is not
+     * safe to share between threads.
+     *
+     * @param stripe
+     *            stripe read from
+     * @param read
+     *            the read, returning bytes read
+     * @return the pending read
+     */
+    public synchronized Future<Integer> submit(
+        int stripe,
+        Callable<Integer> read) {
+        if (readers == null) {
+            readers = new ExecutorService[paths.length];
+        }
+        if (readers[stripe] == null) {
+            readers[stripe] = Executors.newSingleThreadExecutor(task -> {
+                Thread reader = new Thread(task, "spill-reader-" + stripe);
+                reader.setDaemon(true);
+                return reader;
+            });
+        }
+        return readers[stripe].submit(read);
+    }
+
+
+    /**
+     * Wait for a read queued by submit()
+     *
+     * @param read
+     *            the pending read
+     * @return bytes read
+     * @throws IOException
+     *             if the read failed
+     */
+    public static int await(Future<Integer> read) throws IOException {
+        SortEvents.IoWaitEvent event = new SortEvents.IoWaitEvent();
+        event.begin();
+        try {
+            int bytes = read.get();
+            event.end();
+            if (event.shouldCommit()) {
+                event.operation = "read ahead";
+                event.bytes = bytes;
+                event.commit();
+            }
+            return bytes;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a read");
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+
+    /**
+     * Stop the reader threads and close the stripes.
+     *
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (readers != null) {
+            for (ExecutorService reader : readers) {
+                if (reader != null) {
+                    reader.shutdownNow();
+                }
+            }
+        }
+        for (RandomAccessFile file : files) {
+            if (file != null) {
+                file.close();
+            }
+        }
+    }
+}
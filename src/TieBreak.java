@@ -0,0 +1,52 @@
+/**
+ * How records with equal keys are ordered. NONE leaves the order to the
+ * heaps; the other modes make the output fully deterministic.
+ *
+ * @author Nimay Goradia (ngoradia) and Nico Turner (nicturn)
+ * @version Nov 8, 2024
+ */
+public enum TieBreak {
+    /**
+     * equal keys come out in whatever order the heaps produce
+     */
+    NONE,
+    /**
+     * equal keys keep their input order (a stable sort)
+     */
+    ORDINAL,
+    /**
+     * equal keys are ordered by record ID
+     */
+    ID,
+    /**
+     * equal sort keys are ordered by record key, which only matters when
+     * sorting by ID
+     */
+    KEY;
+
+
+    /**
+     * Return the value compared when two keys are equal
+     *
+     * @param ordinal
+     *            position of the record in its input, or of its run among
+     *            the runs being merged
+     * @param id
+     *            record ID
+     * @param key
+     *            record key
+     * @return tie breaker
+     */
+    public long tie(long ordinal, long id, double key) {
+        switch (this) {
+            case ORDINAL:
+                return ordinal;
+            case ID:
+                return id;
+            case KEY:
+                return SortOrder.sortable(key);
+            default:
+                return 0;
+        }
+    }
+}